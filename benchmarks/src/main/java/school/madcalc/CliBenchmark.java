@@ -0,0 +1,73 @@
+package school.madcalc;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end benchmark of the interactive {@code main} loop, fed 1000 input
+ * lines from memory and writing to a discarding stream. The score is the time
+ * for the whole session, so divide by 1000 for the cost per line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CliBenchmark {
+    private static final int LINES = 1000;
+
+    private byte[] session;
+    private InputStream originalIn;
+    private PrintStream originalOut;
+
+    /**
+     * Builds the session input and redirects standard output.
+     */
+    @Setup
+    public void setUp() {
+        String[] lines = {"3 + (9 + 1)", "sqrt 16", "pow2 4", "cube 3", "2*(3+4)-10/4", "(2+3"};
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            sb.append(lines[i % lines.length]).append('\n');
+        }
+        sb.append("exit\n");
+        session = sb.toString().getBytes(StandardCharsets.UTF_8);
+        originalIn = System.in;
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream(), false, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Restores the standard streams.
+     */
+    @TearDown
+    public void tearDown() {
+        System.setIn(originalIn);
+        System.setOut(originalOut);
+    }
+
+    /**
+     * Runs one complete interactive session.
+     */
+    @Benchmark
+    public void interactiveSession() {
+        System.setIn(new ByteArrayInputStream(session));
+        MadCalc.main(new String[0]);
+    }
+}
@@ -0,0 +1,52 @@
+package school.madcalc;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of one {@link Evaluator} shared by several threads. Compare
+ * the scores of the benchmarks: with enough processors, four threads
+ * should answer about four times as many expressions as one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluatorBenchmark {
+
+    private final Evaluator evaluator = new Evaluator();
+    private final String expression = Expressions.of("shallow");
+
+    /**
+     * Evaluates on a single thread.
+     *
+     * @return the answer
+     */
+    @Benchmark
+    @Threads(1)
+    public double oneThread() {
+        return evaluator.evaluate(expression);
+    }
+
+    /**
+     * Evaluates on four threads sharing the evaluator.
+     *
+     * @return the answer
+     */
+    @Benchmark
+    @Threads(4)
+    public double fourThreads() {
+        return evaluator.evaluate(expression);
+    }
+}
@@ -0,0 +1,36 @@
+package school.madcalc;
+
+/**
+ * Expression inputs shared by the benchmarks.
+ */
+final class Expressions {
+
+    private Expressions() {
+    }
+
+    /**
+     * Builds an expression of the given shape.
+     *
+     * @param shape {@code shallow}, {@code nested} or {@code long}
+     * @return the expression text
+     * @throws IllegalArgumentException if the shape is unknown
+     */
+    static String of(String shape) {
+        switch (shape) {
+            case "shallow":
+                return "3 + (9 + 1) * 2 - 4 / 8";
+            case "nested":
+                return "(".repeat(500) + "1" + "+1)".repeat(500);
+            case "long": {
+                StringBuilder sb = new StringBuilder("1");
+                char[] ops = {'+', '-', '*', '/'};
+                for (int i = 0; i < 2000; i++) {
+                    sb.append(' ').append(ops[i % 4]).append(' ').append(i % 97 + 1).append(".5");
+                }
+                return sb.toString();
+            }
+            default:
+                throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package school.madcalc;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the expression parser over differently shaped inputs.
+ *
+ * <ul>
+ *   <li>{@code shallow} - a short everyday expression</li>
+ *   <li>{@code nested} - 500 levels of parentheses</li>
+ *   <li>{@code long} - 2000 flat terms with mixed operators</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"shallow", "nested", "long"})
+    public String shape;
+
+    private String expression;
+    private CompiledExpression compiled;
+
+    /**
+     * Builds the expression for the selected shape.
+     */
+    @Setup
+    public void setUp() {
+        expression = Expressions.of(shape);
+        compiled = MadCalc.compile(expression);
+    }
+
+    /**
+     * Parses the expression into a tree.
+     *
+     * @return the parsed tree
+     */
+    @Benchmark
+    public Object parse() {
+        return new Parser(expression).parse();
+    }
+
+    /**
+     * Parses and evaluates the expression, as the interactive session does.
+     *
+     * @return the answer
+     */
+    @Benchmark
+    public double parseAndEvaluate() {
+        return MadCalc.calculate(expression);
+    }
+
+    /**
+     * Evaluates an expression that was compiled once.
+     *
+     * @return the answer
+     */
+    @Benchmark
+    public double evaluateCompiled() {
+        return compiled.eval();
+    }
+}
@@ -0,0 +1,354 @@
+package school.madcalc;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Load and soak test harness: feeds generated lines through Mad Calc from
+ * several threads for a fixed time and reports, every interval and for the
+ * whole run, the throughput, the latency percentiles, the allocation rate
+ * and the garbage collection pauses.
+ *
+ * <p>Lines go through the same code paths as in the application: single
+ * answers as for {@code --serve}, chunks through the batch runner as for
+ * {@code --batch}, or session lines with named formulas as in the
+ * interactive session. Only the calculation is timed, not the generation of
+ * the line. Latencies are those of one line, or of one chunk in batch
+ * mode. The warm-up is run but not reported, so the JIT compiler has
+ * settled before anything is measured.</p>
+ *
+ * <pre>
+ * java -jar loadgen/target/loadgen.jar --threads 4 --duration 600 --distinct 10000 --skew 1.2 --cache 1000
+ * </pre>
+ */
+public final class LoadGenerator {
+    private final LoadOptions options;
+    private final Workload workload;
+
+    /** Lines answered, and those that failed, since the last report. */
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    /** The latencies since the last report, replaced at each report. */
+    private final AtomicReference<Metrics.Histogram> latencies = new AtomicReference<>(new Metrics.Histogram());
+    /** The collection pauses since the last report, replaced at each report. */
+    private final AtomicReference<Metrics.Histogram> pauses = new AtomicReference<>(new Metrics.Histogram());
+
+    private final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running = true;
+
+    private LoadGenerator(LoadOptions options) {
+        this.options = options;
+        this.workload = new Workload(options);
+    }
+
+    /**
+     * Runs the load generator.
+     *
+     * @param args command-line arguments, see {@link LoadOptions}
+     */
+    public static void main(String[] args) throws Exception {
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LoadOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.print > 0) {
+            print(options);
+            return;
+        }
+        MadCalc.configure(options.calculator);
+        new LoadGenerator(options).run(System.out);
+    }
+
+    /**
+     * Prints generated lines instead of running them.
+     *
+     * @param options the workload options and the number of lines
+     */
+    private static void print(LoadOptions options) throws IOException {
+        Workload workload = new Workload(options);
+        SplittableRandom random = workload.random(0);
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+        for (long i = 0; i < options.print; i++) {
+            out.write(workload.next(random));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Starts the workers, reports every interval and stops after the duration.
+     *
+     * @param out where the reports are written
+     */
+    private void run(PrintStream out) throws InterruptedException {
+        listenForPauses();
+        for (int t = 0; t < options.threads; t++) {
+            int thread = t;
+            Thread worker = new Thread(() -> feed(thread), "loadgen-" + t);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        out.printf(Locale.ROOT, "Feeding %s lines on %d threads: %ds warm-up, then %ds%n",
+                options.mode.name().toLowerCase(Locale.ROOT), options.threads, options.warmup, options.duration);
+        Thread.sleep(options.warmup * 1000L);
+        lines.reset();
+        failures.reset();
+        latencies.set(new Metrics.Histogram());
+        pauses.set(new Metrics.Histogram());
+
+        Interval total = new Interval("total");
+        Interval interval = new Interval("interval");
+        long end = total.start + options.duration * 1_000_000_000L;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            Thread.sleep(Math.min(options.interval * 1000L, (end - now) / 1_000_000 + 1));
+            interval.finish();
+            interval.take();
+            out.println(interval.report());
+            total.add(interval);
+            interval = new Interval("interval");
+        }
+        // the allocation of a thread can only be read while it runs
+        total.finish();
+        running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Interval last = new Interval("last");
+        last.take();
+        total.add(last);
+        out.println(total.report());
+        ResultCache cache = MadCalc.resultCache();
+        if (cache != null) {
+            out.println(cache);
+        }
+    }
+
+    /**
+     * Feeds lines from one thread until the run ends.
+     *
+     * @param thread the thread number, from 0
+     */
+    private void feed(int thread) {
+        SplittableRandom random = workload.random(thread);
+        switch (options.mode) {
+            case BATCH:
+                feedBatches(random);
+                break;
+            case INTERACTIVE:
+                feedSession(random);
+                break;
+            default:
+                feedAnswers(random);
+        }
+    }
+
+    /**
+     * Answers one line per call, as the HTTP service does.
+     *
+     * @param random the random generator of this thread
+     */
+    private void feedAnswers(SplittableRandom random) {
+        while (running) {
+            String line = workload.next(random);
+            long start = System.nanoTime();
+            boolean failed = false;
+            try {
+                MadCalc.answer(line);
+            } catch (RuntimeException e) {
+                MadCalc.errorMessage(line, e);
+                failed = true;
+            }
+            count(System.nanoTime() - start, 1, failed);
+        }
+    }
+
+    /**
+     * Answers chunks of lines through the batch runner, as {@code --batch} does.
+     * Failures are not counted in this mode, because the runner turns them into messages.
+     *
+     * @param random the random generator of this thread
+     */
+    private void feedBatches(SplittableRandom random) {
+        StringBuilder chunk = new StringBuilder(options.chunk * 32);
+        Writer discard = Writer.nullWriter();
+        while (running) {
+            chunk.setLength(0);
+            for (int i = 0; i < options.chunk; i++) {
+                chunk.append(workload.next(random)).append('\n');
+            }
+            long start = System.nanoTime();
+            try {
+                BatchRunner.run(new StringReader(chunk.toString()), discard);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            count(System.nanoTime() - start, options.chunk, false);
+        }
+    }
+
+    /**
+     * Answers session lines with a workbook of this thread, as the
+     * interactive session does. One line in eight assigns a named formula
+     * and one in eight uses one.
+     *
+     * @param random the random generator of this thread
+     */
+    private void feedSession(SplittableRandom random) {
+        Workbook workbook = new Workbook(MadCalc.preciseCalculator());
+        while (running) {
+            String line = workload.next(random);
+            switch (random.nextInt(8)) {
+                case 0:
+                    line = "c" + random.nextInt(16) + " = " + line;
+                    break;
+                case 1:
+                    line = line + " + c" + random.nextInt(16);
+                    break;
+                default:
+                    break;
+            }
+            long start = System.nanoTime();
+            String response = MadCalc.respond(workbook, line);
+            count(System.nanoTime() - start, 1, !response.startsWith("🎉"));
+        }
+    }
+
+    private void count(long nanos, int n, boolean failed) {
+        latencies.get().record(nanos);
+        lines.add(n);
+        if (failed) {
+            failures.increment();
+        }
+    }
+
+    /**
+     * Records the pause of every collection reported by the JVM. Collectors
+     * that report whole concurrent cycles rather than pauses are left out.
+     */
+    private void listenForPauses() {
+        NotificationListener listener = (notification, handback) -> {
+            if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                pauses.get().record(info.getGcInfo().getDuration() * 1_000_000);
+            }
+        };
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter && !gc.getName().endsWith("Cycles")) {
+                ((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes allocated so far by all workers.
+     *
+     * @return the allocated bytes, or -1 if the JVM cannot tell
+     */
+    private long allocatedBytes() {
+        if (!threadBean.isThreadAllocatedMemorySupported() || !threadBean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (Thread worker : workers) {
+            total += Math.max(threadBean.getThreadAllocatedBytes(worker.threadId()), 0);
+        }
+        return total;
+    }
+
+    /**
+     * The measurements of one reporting interval, or of the whole run.
+     */
+    private final class Interval {
+        final String name;
+        final long start = System.nanoTime();
+        final long startAllocated = allocatedBytes();
+        long nanos, lineCount, failureCount, allocated;
+        Metrics.Histogram latency = new Metrics.Histogram();
+        Metrics.Histogram pause = new Metrics.Histogram();
+
+        Interval(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Ends the interval, measuring its length and allocation.
+         */
+        void finish() {
+            nanos = System.nanoTime() - start;
+            long now = allocatedBytes();
+            allocated = startAllocated < 0 || now < 0 ? -1 : now - startAllocated;
+        }
+
+        /**
+         * Takes the counters and histograms recorded since the last report.
+         */
+        void take() {
+            lineCount = lines.sumThenReset();
+            failureCount = failures.sumThenReset();
+            latency = latencies.getAndSet(new Metrics.Histogram());
+            pause = pauses.getAndSet(new Metrics.Histogram());
+        }
+
+        /**
+         * Adds a finished interval to the whole run.
+         *
+         * @param interval the finished interval
+         */
+        void add(Interval interval) {
+            lineCount += interval.lineCount;
+            failureCount += interval.failureCount;
+            latency.addAll(interval.latency);
+            pause.addAll(interval.pause);
+        }
+
+        /**
+         * Describes the interval in one line.
+         *
+         * @return the report
+         */
+        String report() {
+            double seconds = nanos / 1e9;
+            return String.format(Locale.ROOT,
+                    "%-8s %7.1fs %,12.0f lines/s %5.1f%% failed | latency p50 %s p90 %s p99 %s p99.9 %s max %s"
+                            + " | alloc %s | gc %d pauses, %.1f ms total, max %.1f ms",
+                    name, seconds, lineCount / seconds, lineCount == 0 ? 0 : 100.0 * failureCount / lineCount,
+                    micros(latency.percentile(50)), micros(latency.percentile(90)), micros(latency.percentile(99)),
+                    micros(latency.percentile(99.9)), micros(latency.getMaxNanos()),
+                    allocated < 0 ? "n/a" : String.format(Locale.ROOT, "%.1f MB/s", allocated / seconds / 1e6),
+                    pause.getCount(), pause.getCount() * pause.getMeanNanos() / 1e6, pause.getMaxNanos() / 1e6);
+        }
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1fus", nanos / 1000.0);
+    }
+}
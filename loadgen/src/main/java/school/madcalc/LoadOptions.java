@@ -0,0 +1,265 @@
+package school.madcalc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command-line options of the load generator.
+ *
+ * <p>The workload options shape the generated expressions:</p>
+ * <ul>
+ *   <li>{@code --seed <n>} - the random seed; the same seed gives the same lines</li>
+ *   <li>{@code --depth <n>} - the deepest nesting of parentheses and function calls</li>
+ *   <li>{@code --terms <n>} - the most operands of one chain, which sets the line length</li>
+ *   <li>{@code --operators <+:w,-:w,*:w,/:w>} - the relative weight of each operator</li>
+ *   <li>{@code --functions <ratio>} - the share of operands that are calls of sqrt, pow2 or cube</li>
+ *   <li>{@code --invalid <ratio>} - the share of lines that are malformed on purpose</li>
+ *   <li>{@code --distinct <n>} - draw lines from a pool of n, or 0 for a new line every time</li>
+ *   <li>{@code --skew <s>} - the Zipf exponent of the draw from the pool, 0 for uniform</li>
+ * </ul>
+ *
+ * <p>The run options say how the lines are fed to Mad Calc:</p>
+ * <ul>
+ *   <li>{@code --mode <answer|batch|interactive>} - one answer per call, chunks through the
+ *       batch runner, or session lines with named formulas</li>
+ *   <li>{@code --threads <n>} - the number of threads feeding lines</li>
+ *   <li>{@code --chunk <n>} - the number of lines per batch in batch mode</li>
+ *   <li>{@code --duration <seconds>} - how long to run after the warm-up</li>
+ *   <li>{@code --warmup <seconds>} - how long to run before measuring</li>
+ *   <li>{@code --interval <seconds>} - how often to report</li>
+ *   <li>{@code --print <n>} - only print n lines, for example to make a file for {@code --batch}</li>
+ * </ul>
+ *
+ * <p>{@code --cache}, {@code --cache-policy} and {@code --precision} are
+ * passed on to Mad Calc itself, see {@link Options}.</p>
+ */
+final class LoadOptions {
+    /** The usage text printed when the options cannot be understood. */
+    static final String USAGE = "Usage: loadgen [--mode answer|batch|interactive] [--threads <n>] [--chunk <n>]"
+            + " [--duration <s>] [--warmup <s>] [--interval <s>] [--print <n>]"
+            + " [--seed <n>] [--depth <n>] [--terms <n>] [--operators +:1,-:1,*:1,/:1] [--functions <ratio>]"
+            + " [--invalid <ratio>] [--distinct <n>] [--skew <s>]"
+            + " [--cache <n> [--cache-policy lru|tinylfu]] [--precision double|long|decimal[:<digits>]|rational]";
+
+    /** How lines are fed to Mad Calc. */
+    enum Mode { ANSWER, BATCH, INTERACTIVE }
+
+    Mode mode = Mode.ANSWER;
+    int threads = 1;
+    int chunk = 1024;
+    int duration = 60;
+    int warmup = 5;
+    int interval = 10;
+    /** The number of lines to print instead of running, or 0 to run. */
+    long print;
+
+    long seed = 42;
+    int depth = 3;
+    int terms = 4;
+    /** The operators and their weights, in the same order. */
+    char[] operators = {'+', '-', '*', '/'};
+    int[] operatorWeights = {1, 1, 1, 1};
+    double functions = 0.2;
+    double invalid = 0.1;
+    int distinct;
+    double skew = 1.0;
+
+    /** The options for Mad Calc itself. */
+    Options calculator = new Options();
+
+    /**
+     * Parses command-line arguments.
+     *
+     * @param args the command-line arguments
+     * @return the parsed options
+     * @throws IllegalArgumentException if an option is unknown or its value is invalid
+     */
+    static LoadOptions parse(String[] args) {
+        LoadOptions options = new LoadOptions();
+        List<String> calculatorArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--mode":
+                    options.mode = mode(value(args, ++i, "--mode"));
+                    break;
+                case "--threads":
+                    options.threads = whole(value(args, ++i, "--threads"), "--threads", 1);
+                    break;
+                case "--chunk":
+                    options.chunk = whole(value(args, ++i, "--chunk"), "--chunk", 1);
+                    break;
+                case "--duration":
+                    options.duration = whole(value(args, ++i, "--duration"), "--duration", 1);
+                    break;
+                case "--warmup":
+                    options.warmup = whole(value(args, ++i, "--warmup"), "--warmup", 0);
+                    break;
+                case "--interval":
+                    options.interval = whole(value(args, ++i, "--interval"), "--interval", 1);
+                    break;
+                case "--print":
+                    options.print = whole(value(args, ++i, "--print"), "--print", 1);
+                    break;
+                case "--seed":
+                    try {
+                        options.seed = Long.parseLong(value(args, ++i, "--seed"));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("--seed needs a whole number, got: " + args[i]);
+                    }
+                    break;
+                case "--depth":
+                    options.depth = whole(value(args, ++i, "--depth"), "--depth", 0);
+                    break;
+                case "--terms":
+                    options.terms = whole(value(args, ++i, "--terms"), "--terms", 1);
+                    break;
+                case "--operators":
+                    options.operators(value(args, ++i, "--operators"));
+                    break;
+                case "--functions":
+                    options.functions = ratio(value(args, ++i, "--functions"), "--functions");
+                    break;
+                case "--invalid":
+                    options.invalid = ratio(value(args, ++i, "--invalid"), "--invalid");
+                    break;
+                case "--distinct":
+                    options.distinct = whole(value(args, ++i, "--distinct"), "--distinct", 0);
+                    break;
+                case "--skew":
+                    options.skew = decimal(value(args, ++i, "--skew"), "--skew");
+                    break;
+                case "--cache":
+                case "--cache-policy":
+                case "--precision":
+                    calculatorArgs.add(args[i]);
+                    calculatorArgs.add(value(args, ++i, args[i - 1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        options.calculator = Options.parse(calculatorArgs.toArray(new String[0]));
+        return options;
+    }
+
+    /**
+     * Parses a feeding mode.
+     *
+     * @param value the option value
+     * @return the mode
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    private static Mode mode(String value) {
+        switch (value.toLowerCase()) {
+            case "answer":
+                return Mode.ANSWER;
+            case "batch":
+                return Mode.BATCH;
+            case "interactive":
+                return Mode.INTERACTIVE;
+            default:
+                throw new IllegalArgumentException("--mode must be answer, batch or interactive, got: " + value);
+        }
+    }
+
+    /**
+     * Parses operator weights such as {@code +:4,-:3,*:2,/:1}. Operators
+     * that are not listed are not generated.
+     *
+     * @param value the option value
+     * @throws IllegalArgumentException if an entry is not an operator with a whole weight, or all weights are 0
+     */
+    private void operators(String value) {
+        String[] entries = value.split(",");
+        char[] ops = new char[entries.length];
+        int[] weights = new int[entries.length];
+        int total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            String entry = entries[i].trim();
+            if (entry.length() < 3 || "+-*/".indexOf(entry.charAt(0)) < 0 || entry.charAt(1) != ':') {
+                throw new IllegalArgumentException("--operators needs entries like +:4, got: " + entry);
+            }
+            ops[i] = entry.charAt(0);
+            weights[i] = whole(entry.substring(2), "--operators", 0);
+            total += weights[i];
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("--operators needs at least one weight above 0, got: " + value);
+        }
+        operators = ops;
+        operatorWeights = weights;
+    }
+
+    /**
+     * Returns the value that follows an option.
+     *
+     * @param args the command-line arguments
+     * @param i the position of the value
+     * @param option the option the value belongs to
+     * @return the option value
+     * @throws IllegalArgumentException if the value is missing
+     */
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    /**
+     * Parses a whole number option value.
+     *
+     * @param value the option value
+     * @param option the option the value belongs to
+     * @param min the smallest accepted value
+     * @return the parsed number
+     * @throws IllegalArgumentException if the value is not a whole number of at least min
+     */
+    private static int whole(String value, String option, int min) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= min) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(option + " needs a whole number of at least " + min + ", got: " + value);
+    }
+
+    /**
+     * Parses a non-negative decimal option value.
+     *
+     * @param value the option value
+     * @param option the option the value belongs to
+     * @return the parsed number
+     * @throws IllegalArgumentException if the value is not a non-negative number
+     */
+    private static double decimal(String value, String option) {
+        try {
+            double d = Double.parseDouble(value);
+            if (d >= 0 && d < Double.POSITIVE_INFINITY) {
+                return d;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(option + " needs a number of at least 0, got: " + value);
+    }
+
+    /**
+     * Parses a ratio option value.
+     *
+     * @param value the option value
+     * @param option the option the value belongs to
+     * @return the ratio, between 0 and 1
+     * @throws IllegalArgumentException if the value is not between 0 and 1
+     */
+    private static double ratio(String value, String option) {
+        double d = decimal(value, option);
+        if (d > 1) {
+            throw new IllegalArgumentException(option + " needs a ratio between 0 and 1, got: " + value);
+        }
+        return d;
+    }
+}
@@ -0,0 +1,195 @@
+package school.madcalc;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Generator of synthetic input lines: valid expressions of a configurable
+ * shape, and a share of malformed ones.
+ *
+ * <p>A valid line is a chain of up to {@code terms} operands joined by
+ * operators drawn by weight. An operand is a number, a parenthesized chain
+ * or a call of {@code sqrt}, {@code pow2} or {@code cube}, down to
+ * {@code depth} levels; sometimes the whole line is a command such as
+ * {@code sqrt 9+7}. A malformed line is a valid one with one defect: an
+ * unclosed or extra parenthesis, a missing operand, an unknown name or a
+ * number with two points.</p>
+ *
+ * <p>With {@code distinct} lines the workload first builds a fixed pool and
+ * then draws from it with a Zipf distribution, so that a few lines come back
+ * very often, as they do in real feeds, which is what makes the answer cache
+ * pay off. Without a pool every line is new. Either way the lines depend
+ * only on the seed, so runs can be repeated exactly. A workload is immutable;
+ * every thread draws with its own random generator.</p>
+ */
+final class Workload {
+    private static final String[] FUNCTIONS = {"sqrt", "pow2", "cube"};
+
+    private final LoadOptions options;
+    /** The running totals of the operator weights, for drawing by weight. */
+    private final int[] operatorTotals;
+    /** The pool of lines, or null to generate a new line every time. */
+    private final String[] pool;
+    /** The running totals of the Zipf probabilities of the pool lines. */
+    private final double[] poolTotals;
+
+    /**
+     * Creates a workload, building its pool if it has one.
+     *
+     * @param options the shape of the lines
+     */
+    Workload(LoadOptions options) {
+        this.options = options;
+        operatorTotals = new int[options.operatorWeights.length];
+        int total = 0;
+        for (int i = 0; i < operatorTotals.length; i++) {
+            total += options.operatorWeights[i];
+            operatorTotals[i] = total;
+        }
+        if (options.distinct > 0) {
+            SplittableRandom random = new SplittableRandom(options.seed);
+            pool = new String[options.distinct];
+            poolTotals = new double[options.distinct];
+            double sum = 0;
+            for (int i = 0; i < pool.length; i++) {
+                pool[i] = generate(random);
+                sum += 1 / Math.pow(i + 1, options.skew);
+                poolTotals[i] = sum;
+            }
+        } else {
+            pool = null;
+            poolTotals = null;
+        }
+    }
+
+    /**
+     * Creates the random generator of one thread. Threads get different
+     * streams that are the same in every run with the same seed.
+     *
+     * @param thread the thread number, from 0
+     * @return the random generator
+     */
+    SplittableRandom random(int thread) {
+        return new SplittableRandom(options.seed * 31 + thread + 1);
+    }
+
+    /**
+     * Returns the next line.
+     *
+     * @param random the random generator of the calling thread
+     * @return the line, without line end
+     */
+    String next(SplittableRandom random) {
+        if (pool == null) {
+            return generate(random);
+        }
+        double target = random.nextDouble() * poolTotals[poolTotals.length - 1];
+        int i = Arrays.binarySearch(poolTotals, target);
+        return pool[i >= 0 ? i : Math.min(-i - 1, pool.length - 1)];
+    }
+
+    /**
+     * Generates a new line, malformed with the configured probability.
+     *
+     * @param random the random generator
+     * @return the line
+     */
+    private String generate(SplittableRandom random) {
+        StringBuilder sb = new StringBuilder(64);
+        if (random.nextDouble() < options.functions / 4) {
+            sb.append(FUNCTIONS[random.nextInt(FUNCTIONS.length)]).append(' ');
+        }
+        chain(sb, random, options.depth);
+        if (random.nextDouble() < options.invalid) {
+            return corrupt(sb, random);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends a chain of operands.
+     *
+     * @param sb the line so far
+     * @param random the random generator
+     * @param depth the remaining nesting depth
+     */
+    private void chain(StringBuilder sb, SplittableRandom random, int depth) {
+        int operands = 1 + random.nextInt(options.terms);
+        for (int i = 0; i < operands; i++) {
+            if (i > 0) {
+                sb.append(' ').append(operator(random)).append(' ');
+            }
+            operand(sb, random, depth);
+        }
+    }
+
+    /**
+     * Appends one operand: a number, a parenthesized chain or a function call.
+     *
+     * @param sb the line so far
+     * @param random the random generator
+     * @param depth the remaining nesting depth
+     */
+    private void operand(StringBuilder sb, SplittableRandom random, int depth) {
+        if (depth > 0) {
+            double r = random.nextDouble();
+            if (r < options.functions) {
+                sb.append(FUNCTIONS[random.nextInt(FUNCTIONS.length)]).append('(');
+                chain(sb, random, depth - 1);
+                sb.append(')');
+                return;
+            }
+            if (r < options.functions + 0.25) {
+                sb.append('(');
+                chain(sb, random, depth - 1);
+                sb.append(')');
+                return;
+            }
+        }
+        if (random.nextInt(8) == 0) {
+            sb.append('-');
+        }
+        sb.append(random.nextInt(1000));
+        if (random.nextBoolean()) {
+            sb.append('.').append(random.nextInt(100));
+        }
+    }
+
+    /**
+     * Draws an operator by weight.
+     *
+     * @param random the random generator
+     * @return the operator
+     */
+    private char operator(SplittableRandom random) {
+        int r = random.nextInt(operatorTotals[operatorTotals.length - 1]);
+        int i = 0;
+        while (r >= operatorTotals[i]) {
+            i++;
+        }
+        return options.operators[i];
+    }
+
+    /**
+     * Gives a valid line one defect.
+     *
+     * @param sb the valid line
+     * @param random the random generator
+     * @return the malformed line
+     */
+    private static String corrupt(StringBuilder sb, SplittableRandom random) {
+        int at = random.nextInt(sb.length() + 1);
+        switch (random.nextInt(5)) {
+            case 0:
+                return sb.insert(0, '(').toString();
+            case 1:
+                return sb.append(')').toString();
+            case 2:
+                return sb.append(" *").toString();
+            case 3:
+                return sb.insert(at, " x ").toString();
+            default:
+                return sb.append(" + 1.2.3").toString();
+        }
+    }
+}
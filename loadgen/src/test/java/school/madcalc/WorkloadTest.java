@@ -0,0 +1,113 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for the synthetic workload generator.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class WorkloadTest {
+    /**
+     * Tests reproducibility.
+     * Verifies that the same seed gives the same lines and another seed other lines.
+     */
+    @Test
+    void testSameSeedSameLines() {
+        Workload a = new Workload(LoadOptions.parse(new String[] {"--seed", "5"}));
+        Workload b = new Workload(LoadOptions.parse(new String[] {"--seed", "5"}));
+        Workload c = new Workload(LoadOptions.parse(new String[] {"--seed", "6"}));
+        SplittableRandom ra = a.random(0), rb = b.random(0), rc = c.random(0);
+        boolean different = false;
+        for (int i = 0; i < 1000; i++) {
+            String line = a.next(ra);
+            assertEquals(line, b.next(rb));
+            different |= !line.equals(c.next(rc));
+        }
+        assertTrue(different);
+    }
+
+    /**
+     * Tests the share of malformed lines.
+     * Verifies that every malformed line is refused and that the ratio is respected.
+     */
+    @Test
+    void testInvalidRatio() {
+        Workload workload = new Workload(LoadOptions.parse(new String[] {"--invalid", "0.3", "--depth", "4", "--functions", "0"}));
+        SplittableRandom random = workload.random(0);
+        int failed = 0, lines = 10_000;
+        for (int i = 0; i < lines; i++) {
+            try {
+                MadCalc.answer(workload.next(random));
+            } catch (ExpressionException e) {
+                failed++;
+            }
+        }
+        assertEquals(0.3, (double) failed / lines, 0.02);
+    }
+
+    /**
+     * Tests valid lines.
+     * Verifies that they parse, with function calls and commands, and use only the chosen operators.
+     * They may still fail to calculate, for example the square root of a negative number.
+     */
+    @Test
+    void testValidLines() {
+        Workload workload = new Workload(LoadOptions.parse(new String[] {"--invalid", "0", "--functions", "0.4", "--operators", "+:1,*:1"}));
+        SplittableRandom random = workload.random(0);
+        for (int i = 0; i < 2000; i++) {
+            String line = workload.next(random);
+            try {
+                MadCalc.answer(line);
+            } catch (ExpressionException e) {
+                fail(line + ": " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                // a valid expression that cannot be calculated
+            }
+            assertFalse(line.contains(" - ") || line.contains(" / "), line);
+        }
+    }
+
+    /**
+     * Tests drawing from a pool.
+     * Verifies that only pool lines come back and that a skewed draw favors the first lines.
+     */
+    @Test
+    void testSkewedPool() {
+        Workload workload = new Workload(LoadOptions.parse(new String[] {"--distinct", "100", "--skew", "1.5"}));
+        SplittableRandom random = workload.random(0);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 20_000; i++) {
+            counts.merge(workload.next(random), 1, Integer::sum);
+        }
+        assertTrue(counts.size() <= 100);
+        int most = counts.values().stream().max(Integer::compare).orElse(0);
+        assertTrue(most > 20_000 / 4, "most frequent line came " + most + " times");
+    }
+
+    /**
+     * Tests invalid options.
+     * Verifies that bad values are refused and calculator options are passed on.
+     */
+    @Test
+    void testOptions() {
+        assertThrows(IllegalArgumentException.class, () -> LoadOptions.parse(new String[] {"--invalid", "2"}));
+        assertThrows(IllegalArgumentException.class, () -> LoadOptions.parse(new String[] {"--operators", "+:0"}));
+        assertThrows(IllegalArgumentException.class, () -> LoadOptions.parse(new String[] {"--operators", "%:1"}));
+        assertThrows(IllegalArgumentException.class, () -> LoadOptions.parse(new String[] {"--mode", "http"}));
+        assertThrows(IllegalArgumentException.class, () -> LoadOptions.parse(new String[] {"--batch", "x"}));
+        LoadOptions options = LoadOptions.parse(new String[] {"--cache", "10", "--mode", "batch", "--precision", "long"});
+        assertEquals(10, options.calculator.cacheSize);
+        assertEquals(PreciseCalculator.Backend.LONG, options.calculator.precision);
+        assertEquals(LoadOptions.Mode.BATCH, options.mode);
+    }
+}
@@ -1,9 +1,56 @@
 #!/bin/bash
 JAR="target/madcalc-1.0-SNAPSHOT.jar"
 MAIN="school.madcalc.MadCalc"
+NATIVE="target/madcalc"
+ARCHIVE="target/madcalc.jsa"
+SOCKET=${MADCALC_SOCKET:-"${TMPDIR:-/tmp}/madcalc-$(id -un).sock"}
+
+# --client [expression]: ask the daemon started with --daemon, without starting
+# a JVM. Answers the expression given, or every line of standard input.
+if [ "$1" = "--client" ]; then
+  shift
+  if [ ! -S "$SOCKET" ]; then
+    echo "No daemon is listening on $SOCKET"
+    echo "Please run: $0 --daemon &"
+    exit 1
+  fi
+  if [ $# -gt 0 ]; then
+    exec "$0" --client <<< "$*"
+  fi
+  if command -v socat > /dev/null; then
+    exec socat -t 60 - UNIX-CONNECT:"$SOCKET"
+  fi
+  if command -v nc > /dev/null && nc -h 2>&1 | grep -q -- '-U'; then
+    exec nc -N -U "$SOCKET"
+  fi
+  set -- --client "$SOCKET"
+elif [ "$1" = "--daemon" ] && [ $# -eq 1 ]; then
+  set -- --daemon "$SOCKET"
+fi
+
+if [ -x "$NATIVE" ]; then
+  exec "$NATIVE" "$@"
+fi
 if [ ! -f "$JAR" ]; then
   echo "JAR file not found: $JAR"
   echo "Please run: mvn package"
   exit 1
 fi
-exec java -cp "$JAR" $MAIN
\ No newline at end of file
+# Short runs spend most of their time starting the JVM: load classes from the
+# CDS archive (written at exit if missing) and keep the runtime small.
+if [ "$ARCHIVE" -ot "$JAR" ]; then
+  rm -f "$ARCHIVE"
+fi
+# Only one-shot and interactive runs get the startup flags. Batch runs, the
+# HTTP service and the daemon run long enough to profit from the optimizing
+# compiler and the default collector.
+SHORT_RUN=1
+for arg in "$@"; do
+  case "$arg" in
+    --batch|--serve|--daemon) SHORT_RUN= ;;
+  esac
+done
+if [ -n "$SHORT_RUN" ]; then
+  JAVA_OPTS=${JAVA_OPTS:-"-XX:+UseSerialGC -XX:TieredStopAtLevel=1 -XX:-UsePerfData"}
+fi
+exec java -XX:SharedArchiveFile="$ARCHIVE" -XX:+AutoCreateSharedArchive $JAVA_OPTS -cp "$JAR" $MAIN "$@"
@@ -0,0 +1,224 @@
+package school.madcalc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Non-interactive evaluation of a whole file of expressions.
+ *
+ * <p>Each input line is evaluated on its own and produces exactly one output
+ * line: the plain result, or the same friendly message the interactive
+ * session would print. There is no prompt and no banner. Input is streamed
+ * through a large read buffer and output goes through a single buffered
+ * writer, so memory use does not depend on the size of the input file. A
+ * line containing only {@code exit} ends the batch, just like in the
+ * interactive session.</p>
+ *
+ * <p>With more than one thread the batch runs as a pipeline: the calling
+ * thread reads the input in chunks of lines and hands each chunk to a worker
+ * pool, then writes the finished chunks back in input order. At most two
+ * chunks per worker are in flight at any time; when that limit is reached
+ * the reader waits for the oldest chunk and writes it before reading more,
+ * so memory stays bounded no matter how fast the input can be read.</p>
+ */
+final class BatchRunner {
+    /** Size in characters of the read and write buffers. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Number of lines handed to a worker at once in parallel mode. */
+    private static final int CHUNK_LINES = 1024;
+
+    /** Number of chunks each worker may have queued or in progress. */
+    private static final int CHUNKS_PER_THREAD = 2;
+
+    private BatchRunner() {
+    }
+
+    /**
+     * Evaluates every line of a file.
+     *
+     * @param input the file to read expressions from
+     * @param output the file to write results to, or null for standard output
+     * @param threads the number of worker threads, 1 to evaluate on the calling thread
+     * @return the number of lines evaluated
+     * @throws IOException if the input cannot be read or the output cannot be written
+     */
+    static long run(Path input, Path output, int threads) throws IOException {
+        try (BufferedReader in = new BufferedReader(Files.newBufferedReader(input, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            if (output == null) {
+                Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), BUFFER_SIZE);
+                long lines = run(in, out, threads);
+                out.flush();
+                return lines;
+            }
+            try (Writer out = new BufferedWriter(Files.newBufferedWriter(output, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+                return run(in, out, threads);
+            }
+        }
+    }
+
+    /**
+     * Evaluates every line read from a reader.
+     *
+     * @param in the reader to read expressions from
+     * @param out the writer to write results to; it is not flushed or closed
+     * @return the number of lines evaluated
+     * @throws IOException if reading or writing fails
+     */
+    static long run(Reader in, Writer out) throws IOException {
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in, BUFFER_SIZE);
+        Metrics.Recorder recorder = MadCalc.recorder();
+        long lines = 0;
+        String line;
+        try {
+            while ((line = reader.readLine()) != null) {
+                if (MadCalc.isExit(line)) {
+                    break;
+                }
+                out.write(answer(line, recorder));
+                out.write('\n');
+                if (++lines % CHUNK_LINES == 0 && recorder != null) {
+                    recorder.flush();
+                }
+            }
+        } finally {
+            if (recorder != null) {
+                recorder.flush();
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Evaluates every line read from a reader, using several worker threads.
+     * Results are written in input order.
+     *
+     * @param in the reader to read expressions from
+     * @param out the writer to write results to; it is not flushed or closed
+     * @param threads the number of worker threads, 1 to evaluate on the calling thread
+     * @return the number of lines evaluated
+     * @throws IOException if reading or writing fails
+     */
+    static long run(Reader in, Writer out, int threads) throws IOException {
+        if (threads <= 1) {
+            return run(in, out);
+        }
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in, BUFFER_SIZE);
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "madcalc-batch-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Deque<Future<String>> pending = new ArrayDeque<>();
+            int maxPending = threads * CHUNKS_PER_THREAD;
+            long lines = 0;
+            boolean exit = false;
+            while (!exit) {
+                String[] chunk = new String[CHUNK_LINES];
+                int count = 0;
+                String line;
+                while (count < CHUNK_LINES && (line = reader.readLine()) != null) {
+                    if (MadCalc.isExit(line)) {
+                        exit = true;
+                        break;
+                    }
+                    chunk[count++] = line;
+                }
+                if (count == 0) {
+                    break;
+                }
+                if (count < CHUNK_LINES) {
+                    exit = true;
+                }
+                if (pending.size() == maxPending) {
+                    out.write(await(pending.removeFirst()));
+                }
+                pending.addLast(workers.submit(answerChunk(chunk, count)));
+                lines += count;
+            }
+            while (!pending.isEmpty()) {
+                out.write(await(pending.removeFirst()));
+            }
+            return lines;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates the task that evaluates one chunk of lines.
+     *
+     * @param chunk the lines of the chunk
+     * @param count the number of lines used in the chunk
+     * @return a task producing the output text for the whole chunk
+     */
+    private static Callable<String> answerChunk(String[] chunk, int count) {
+        return () -> {
+            StringBuilder sb = new StringBuilder(count * 16);
+            Metrics.Recorder recorder = MadCalc.recorder();
+            try {
+                for (int i = 0; i < count; i++) {
+                    sb.append(answer(chunk[i], recorder)).append('\n');
+                }
+            } finally {
+                if (recorder != null) {
+                    recorder.flush();
+                }
+            }
+            return sb.toString();
+        };
+    }
+
+    /**
+     * Waits for a chunk to finish.
+     *
+     * @param chunk the pending chunk
+     * @return the output text of the chunk
+     * @throws IOException if the wait is interrupted
+     */
+    private static String await(Future<String> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a batch chunk");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (RuntimeException) cause;
+        }
+    }
+
+    /**
+     * Evaluates one line and returns the text to write for it.
+     *
+     * @param line the input line
+     * @param recorder the metrics recorder of the calling thread, or null
+     * @return the result, or a friendly error message
+     */
+    static String answer(String line, Metrics.Recorder recorder) {
+        try {
+            return MadCalc.answer(line, recorder);
+        } catch (RuntimeException e) {
+            return MadCalc.errorMessage(line, e);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package school.madcalc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Translates an expression tree into a hidden class whose single method
+ * computes the formula as straight-line JVM bytecode.
+ *
+ * <p>The generated method loads constants and variables onto the operand
+ * stack and applies {@code dadd}, {@code dsub}, {@code dmul}, {@code ddiv}
+ * and {@code dneg} in exactly the order the tree interpreter would; squares
+ * and cubes duplicate their operand with {@code dup2} instead of computing
+ * it again, and square roots call {@link Node.SquareRoot#sqrt} directly.
+ * Calls of user-registered functions are left to the interpreter. Java
+ * double arithmetic is strict, so the results are bit-for-bit identical to
+ * {@link Node#eval(double[])}. The method has no branches, so the class file
+ * needs no stack map frames.</p>
+ *
+ * <p>The class file is written by hand with the constant pool and the one
+ * method it needs, and it is defined with
+ * {@link MethodHandles.Lookup#defineHiddenClass}, so no external bytecode
+ * library is involved. A hidden class can be unloaded as soon as its
+ * expression is no longer referenced.</p>
+ */
+final class BytecodeCompiler {
+
+    /**
+     * A formula compiled to bytecode.
+     */
+    interface Program {
+        /**
+         * Evaluates the formula.
+         *
+         * @param vars the variable values, indexed by variable position
+         * @return the result
+         */
+        double eval(double[] vars);
+    }
+
+    /** Class file version 61 (Java 17), the oldest version the generated code needs. */
+    private static final int CLASS_VERSION = 61;
+
+    /** The JVM limit on the size of a method's code. */
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    /** The JVM limit on the operand stack size of a method. */
+    private static final int MAX_STACK = 65535;
+
+    /** Constant pool entries left for doubles after the fixed entries every class needs. */
+    private static final int MAX_POOL_ENTRIES = 65535 - 16;
+
+    private static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1, CONSTANT_DOUBLE = 6, CONSTANT_CLASS = 7,
+            CONSTANT_METHODREF = 10, CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC2_W = 0x14,
+            DCONST_0 = 0x0e, DCONST_1 = 0x0f, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, DALOAD = 0x31, DUP2 = 0x5c,
+            DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DNEG = 0x77,
+            DRETURN = 0xaf, RETURN = 0xb1, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+
+    private static final String CLASS_NAME = "school/madcalc/BytecodeCompiler$Compiled";
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<Object, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+    /** The constant pool entry of {@link Node.SquareRoot#sqrt}, or 0 until it is first needed. */
+    private int squareRoot;
+
+    private BytecodeCompiler() {
+    }
+
+    /**
+     * Compiles an expression tree to a hidden class.
+     *
+     * @param root the root of the tree
+     * @return the compiled formula, or null if the tree cannot be compiled
+     *         (too large for one method, or using a node type without a translation)
+     */
+    static Program compile(Node root) {
+        try {
+            byte[] bytes = new BytecodeCompiler().generate(root);
+            if (bytes == null) {
+                return null;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (Program) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not instantiate compiled expression", e);
+        }
+    }
+
+    /**
+     * Writes the class file for a tree.
+     *
+     * @param root the root of the tree
+     * @return the class file bytes, or null if the tree cannot be compiled
+     */
+    private byte[] generate(Node root) {
+        if (!emit(root) || code.size() + 1 > MAX_CODE_LENGTH) {
+            return null;
+        }
+        code.write(DRETURN);
+        int maxStack = stack(root);
+        if (maxStack > MAX_STACK || poolCount > MAX_POOL_ENTRIES) {
+            return null;
+        }
+        try {
+            int thisClass = classEntry(CLASS_NAME);
+            int superClass = classEntry("java/lang/Object");
+            int programInterface = classEntry(Program.class.getName().replace('.', '/'));
+            int objectInit = methodEntry(superClass, "<init>", "()V");
+            int codeName = utf8("Code");
+            int initName = utf8("<init>");
+            int initDesc = utf8("()V");
+            int evalName = utf8("eval");
+            int evalDesc = utf8("([D)D");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(programInterface);
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+
+            byte[] init = {(byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit, (byte) RETURN};
+            writeMethod(out, ACC_PUBLIC, initName, initDesc, codeName, 1, 1, init);
+            writeMethod(out, ACC_PUBLIC | ACC_FINAL, evalName, evalDesc, codeName, maxStack, 2, code.toByteArray());
+
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes one method with a Code attribute.
+     */
+    private static void writeMethod(DataOutputStream out, int access, int name, int descriptor, int codeName,
+                                    int maxStack, int maxLocals, byte[] body) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + body.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    /**
+     * Emits the bytecode that leaves the value of a node on the operand stack.
+     *
+     * @param node the node to translate
+     * @return false if the node cannot be translated
+     */
+    private boolean emit(Node node) {
+        if (code.size() > MAX_CODE_LENGTH) {
+            return false;
+        }
+        if (node instanceof Node.Constant) {
+            double value = ((Node.Constant) node).value;
+            if (Double.doubleToRawLongBits(value) == 0L) {
+                code.write(DCONST_0);
+            } else if (value == 1.0) {
+                code.write(DCONST_1);
+            } else {
+                int index = doubleEntry(value);
+                code.write(LDC2_W);
+                code.write(index >> 8);
+                code.write(index);
+            }
+            return true;
+        } else if (node instanceof Node.Variable) {
+            int index = ((Node.Variable) node).index;
+            code.write(ALOAD_1);
+            if (index <= 5) {
+                code.write(ICONST_0 + index);
+            } else if (index <= Byte.MAX_VALUE) {
+                code.write(BIPUSH);
+                code.write(index);
+            } else if (index <= Short.MAX_VALUE) {
+                code.write(SIPUSH);
+                code.write(index >> 8);
+                code.write(index);
+            } else {
+                return false;
+            }
+            code.write(DALOAD);
+            return true;
+        } else if (node instanceof Node.Negate) {
+            if (!emit(((Node.Negate) node).operand)) {
+                return false;
+            }
+            code.write(DNEG);
+            return true;
+        } else if (node instanceof Node.Square) {
+            if (!emit(((Node.Square) node).operand)) {
+                return false;
+            }
+            code.write(DUP2);
+            code.write(DMUL);
+            return true;
+        } else if (node instanceof Node.Cube) {
+            if (!emit(((Node.Cube) node).operand)) {
+                return false;
+            }
+            code.write(DUP2);
+            code.write(DUP2);
+            code.write(DMUL);
+            code.write(DMUL);
+            return true;
+        } else if (node instanceof Node.SquareRoot) {
+            if (!emit(((Node.SquareRoot) node).operand)) {
+                return false;
+            }
+            if (squareRoot == 0) {
+                try {
+                    squareRoot = methodEntry(classEntry(Node.SquareRoot.class.getName().replace('.', '/')), "sqrt", "(D)D");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            code.write(INVOKESTATIC);
+            code.write(squareRoot >> 8);
+            code.write(squareRoot);
+            return true;
+        } else if (node instanceof Node.Chain) {
+            Node.Chain chain = (Node.Chain) node;
+            if (!emit(chain.operands[0])) {
+                return false;
+            }
+            for (int i = 0; i < chain.operators.length; i++) {
+                if (!emit(chain.operands[i + 1])) {
+                    return false;
+                }
+                code.write(opcode(chain.operators[i]));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the maximum operand stack size, in slots, needed to evaluate a node.
+     * Every double takes two slots.
+     *
+     * @param node the node
+     * @return the stack size
+     */
+    private static int stack(Node node) {
+        if (node instanceof Node.Negate) {
+            return stack(((Node.Negate) node).operand);
+        } else if (node instanceof Node.Square) {
+            return Math.max(4, stack(((Node.Square) node).operand));
+        } else if (node instanceof Node.Cube) {
+            return Math.max(6, stack(((Node.Cube) node).operand));
+        } else if (node instanceof Node.SquareRoot) {
+            return stack(((Node.SquareRoot) node).operand);
+        } else if (node instanceof Node.Chain) {
+            Node.Chain chain = (Node.Chain) node;
+            int max = stack(chain.operands[0]);
+            for (int i = 1; i < chain.operands.length; i++) {
+                max = Math.max(max, 2 + stack(chain.operands[i]));
+            }
+            return max;
+        }
+        return 2;
+    }
+
+    /**
+     * Returns the instruction for a binary operator.
+     *
+     * @param op the operator, one of {@code + - * /}
+     * @return the opcode
+     */
+    private static int opcode(char op) {
+        switch (op) {
+            case '+': return DADD;
+            case '-': return DSUB;
+            case '*': return DMUL;
+            default: return DDIV;
+        }
+    }
+
+    private int utf8(String value) throws IOException {
+        Integer index = poolIndex.get(value);
+        if (index != null) {
+            return index;
+        }
+        poolOut.writeByte(CONSTANT_UTF8);
+        poolOut.writeUTF(value);
+        poolIndex.put(value, poolCount);
+        return poolCount++;
+    }
+
+    private int classEntry(String internalName) throws IOException {
+        int name = utf8(internalName);
+        poolOut.writeByte(CONSTANT_CLASS);
+        poolOut.writeShort(name);
+        return poolCount++;
+    }
+
+    private int methodEntry(int owner, String name, String descriptor) throws IOException {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        poolOut.writeByte(CONSTANT_NAME_AND_TYPE);
+        poolOut.writeShort(nameIndex);
+        poolOut.writeShort(descriptorIndex);
+        int nameAndType = poolCount++;
+        poolOut.writeByte(CONSTANT_METHODREF);
+        poolOut.writeShort(owner);
+        poolOut.writeShort(nameAndType);
+        return poolCount++;
+    }
+
+    /**
+     * Returns the constant pool entry of a double, adding it if needed.
+     * Double entries take two constant pool slots.
+     *
+     * @param value the constant
+     * @return the constant pool index
+     */
+    private int doubleEntry(double value) {
+        Long bits = Double.doubleToRawLongBits(value);
+        Integer index = poolIndex.get(bits);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(CONSTANT_DOUBLE);
+            poolOut.writeLong(bits);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        poolIndex.put(bits, poolCount);
+        int entry = poolCount;
+        poolCount += 2;
+        return entry;
+    }
+}
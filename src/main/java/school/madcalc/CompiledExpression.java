@@ -0,0 +1,313 @@
+package school.madcalc;
+
+import java.util.Arrays;
+import java.util.stream.DoubleStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A mathematical expression that has been parsed once and can be evaluated
+ * many times.
+ *
+ * <p>Instances are created with {@link MadCalc#compile(String, String...)}.
+ * They are immutable and thread-safe: the parsed tree is never modified, and
+ * every evaluation reads its variable values from the array supplied by the
+ * caller. Evaluating allocates nothing, so a compiled expression can be used
+ * in a hot loop without paying the parse cost again.</p>
+ *
+ * <p>Evaluation is tiered. The first calls walk the parsed tree. Once an
+ * expression has been evaluated 1000 times (configurable with the system
+ * property {@code madcalc.jit.threshold}), it is translated into a hidden
+ * class whose method computes the formula as straight-line bytecode, and
+ * later calls run that instead.
+ * Both tiers give bit-for-bit identical results.</p>
+ *
+ * <pre>
+ * CompiledExpression area = MadCalc.compile("w * h / 2", "w", "h");
+ * double[] row = new double[2];
+ * row[0] = 3; row[1] = 4;
+ * double result = area.eval(row); // 6.0
+ * </pre>
+ *
+ * <p>A formula of one variable can also be swept over an arithmetic
+ * sequence with {@link #evalRange}, or bounded over a whole range at once
+ * with {@link #bound(Interval...)}.</p>
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+public final class CompiledExpression {
+    /** Number of rows evaluated together by {@link #evalColumns}, small enough to stay in the CPU cache. */
+    static final int BLOCK_ROWS = 1024;
+
+    /** System property holding the number of evaluations after which an expression is compiled to bytecode. */
+    static final String JIT_THRESHOLD_PROPERTY = "madcalc.jit.threshold";
+
+    /** Number of evaluations after which an expression is compiled to bytecode. */
+    private static final int JIT_THRESHOLD = Integer.getInteger(JIT_THRESHOLD_PROPERTY, 1000);
+
+    /**
+     * Whether this is a GraalVM native image, which cannot define classes at
+     * run time; expressions then always stay interpreted.
+     */
+    private static final boolean NATIVE_IMAGE = System.getProperty("org.graalvm.nativeimage.imagecode") != null;
+
+    private final String source;
+    private final String[] variables;
+    private final Node root;
+    private final int scratchDepth;
+
+    /** The bytecode tier, or null while the expression is interpreted. */
+    private volatile BytecodeCompiler.Program program;
+
+    /**
+     * Evaluations so far in the interpreted tier. Updated without
+     * synchronization: a lost increment only delays the tier-up slightly.
+     */
+    private int calls;
+
+    /**
+     * Creates a compiled expression.
+     *
+     * @param source the original expression text
+     * @param variables the variable names, in the order their values are passed to {@link #eval}
+     * @param root the root of the parsed tree
+     */
+    CompiledExpression(String source, String[] variables, Node root) {
+        this.source = source;
+        this.variables = variables;
+        this.root = root;
+        this.scratchDepth = root.scratchDepth();
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * <p>Passing a reused array instead of separate arguments avoids the
+     * varargs array allocation on every call.</p>
+     *
+     * @param vars the variable values, in the order the variables were declared
+     * @return the result of the evaluation
+     * @throws IllegalArgumentException if the number of values does not match the number of variables
+     */
+    public double eval(double... vars) {
+        if (vars.length != variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + " variable values but got " + vars.length);
+        }
+        BytecodeCompiler.Program compiled = program;
+        if (compiled != null) {
+            return compiled.eval(vars);
+        }
+        if (++calls >= JIT_THRESHOLD && !NATIVE_IMAGE) {
+            tierUp();
+        }
+        return root.eval(vars);
+    }
+
+    /**
+     * Compiles the tree to bytecode. If that is not possible, for example
+     * because the formula is too large for one method or the runtime cannot
+     * define classes, the expression simply stays interpreted.
+     */
+    private void tierUp() {
+        calls = Integer.MIN_VALUE;
+        try {
+            program = BytecodeCompiler.compile(root);
+        } catch (RuntimeException | LinkageError e) {
+            // keep interpreting
+        }
+    }
+
+    /**
+     * Tells whether later evaluations run compiled bytecode.
+     *
+     * @return true once the expression has been compiled to bytecode
+     */
+    boolean isJitCompiled() {
+        return program != null;
+    }
+
+    /**
+     * Evaluates the expression for every row of columnar variable values.
+     * Equivalent to {@code evalColumns(columns, out, 0, out.length)}.
+     *
+     * @param columns one array of values per variable, in declaration order
+     * @param out receives one result per row
+     * @throws IllegalArgumentException if the number of columns does not match the number of variables,
+     *         or a column is shorter than {@code out}
+     */
+    public void evalColumns(double[][] columns, double[] out) {
+        evalColumns(columns, out, 0, out.length);
+    }
+
+    /**
+     * Evaluates the expression for a range of rows of columnar variable values.
+     *
+     * <p>Row {@code r} uses {@code columns[v][r]} as the value of variable
+     * {@code v} and writes its result to {@code out[r]}. The rows are
+     * processed in blocks: for each block every node of the tree runs one
+     * tight loop over primitive arrays, so the cost of walking the tree is
+     * paid once per block instead of once per row. Only a few block-sized
+     * scratch buffers are allocated per call; nothing is allocated per row.
+     * The results are identical to calling {@link #eval} row by row.
+     * {@code out} must not be one of the columns.</p>
+     *
+     * @param columns one array of values per variable, in declaration order
+     * @param out receives one result per row
+     * @param from the first row to evaluate
+     * @param to the row after the last row to evaluate
+     * @throws IllegalArgumentException if the number of columns does not match the number of variables,
+     *         or the range does not fit in {@code out} or in a column
+     */
+    public void evalColumns(double[][] columns, double[] out, int from, int to) {
+        if (columns.length != variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + " columns but got " + columns.length);
+        }
+        if (from < 0 || from > to || to > out.length) {
+            throw new IllegalArgumentException("Invalid row range " + from + " to " + to + " for " + out.length + " results");
+        }
+        for (int v = 0; v < columns.length; v++) {
+            if (columns[v].length < to) {
+                throw new IllegalArgumentException("Column " + variables[v] + " has only " + columns[v].length + " rows");
+            }
+        }
+        double[][] scratch = new double[scratchDepth][Math.min(BLOCK_ROWS, to - from)];
+        for (int row = from; row < to; row += BLOCK_ROWS) {
+            root.evalBlock(columns, row, Math.min(BLOCK_ROWS, to - row), out, row, scratch, 0);
+        }
+    }
+
+    /**
+     * Evaluates a formula of one variable for an arithmetic sequence of values.
+     *
+     * <p>Element {@code i} of the stream is the result for
+     * {@code x = start + i * step}, for {@code i} from 0 to {@code count - 1},
+     * identical to {@code eval(start + i * step)}. The results are computed
+     * lazily, a block at a time as {@link #evalColumns} does, so a stream that
+     * is cut short, for example with {@code takeWhile}, stops computing soon
+     * after. The stream may be made parallel: it then splits the sequence into
+     * halves that are computed independently and keeps their order.</p>
+     *
+     * <pre>{@code
+     * CompiledExpression f = MadCalc.compile("(x + 1) * x / 2", "x");
+     * double largest = f.evalRange(0, 1, 10_000_001).parallel().max().getAsDouble();
+     * }</pre>
+     *
+     * @param start the value of the variable for the first result
+     * @param step the difference between the values of the variable for two neighboring results
+     * @param count the number of results
+     * @return the results, in order
+     * @throws IllegalArgumentException if the expression does not have exactly one variable,
+     *         start or step is not finite, or count is negative
+     */
+    public DoubleStream evalRange(double start, double step, long count) {
+        if (variables.length != 1) {
+            throw new IllegalArgumentException("Expected an expression of 1 variable but it has " + variables.length);
+        }
+        if (!Double.isFinite(start) || !Double.isFinite(step)) {
+            throw new IllegalArgumentException("Invalid sequence start " + start + " and step " + step);
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("Invalid number of results: " + count);
+        }
+        return StreamSupport.doubleStream(new RangeSpliterator(root, scratchDepth, start, step, 0, count), false);
+    }
+
+    /**
+     * Bounds the expression over ranges of its variables in one walk of the tree.
+     *
+     * <p>The result contains every value {@link #eval} can return for
+     * variable values inside the ranges; see {@link Interval} for how it is
+     * computed and why it can be wider than the values actually reached.
+     * Where a square root would be taken of a negative number, and
+     * {@code eval} would fail, there is no value to bound.</p>
+     *
+     * @param ranges the range of each variable, in declaration order
+     * @return an interval containing the value of the expression anywhere in the ranges
+     * @throws IllegalArgumentException if the number of ranges does not match the number of variables,
+     *         or a square root is only ever taken of negative numbers
+     */
+    public Interval bound(Interval... ranges) {
+        if (ranges.length != variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + " variable ranges but got " + ranges.length);
+        }
+        return root.bound(ranges);
+    }
+
+    /**
+     * Bounds a formula of one variable over a range, split into pieces of
+     * equal width. The result is the hull of the bounds of the pieces: the
+     * more pieces, the more walks of the tree and the tighter the bound.
+     * Pieces where the formula can never be calculated are left out.
+     *
+     * @param from the smallest value of the variable
+     * @param to the largest value of the variable
+     * @param pieces the number of pieces, at least one
+     * @return an interval containing the value of the expression anywhere in the range
+     * @throws IllegalArgumentException if the expression does not have exactly one variable, the range is
+     *         invalid, pieces is below one, or a square root is only ever taken of negative numbers
+     */
+    public Interval bound(double from, double to, int pieces) {
+        if (variables.length != 1) {
+            throw new IllegalArgumentException("Expected an expression of 1 variable but it has " + variables.length);
+        }
+        if (pieces < 1) {
+            throw new IllegalArgumentException("Invalid number of pieces: " + pieces);
+        }
+        Interval whole = new Interval(from, to);
+        double width = to - from;
+        if (pieces == 1 || !Double.isFinite(width)) {
+            return bound(whole);
+        }
+        Interval hull = null;
+        IllegalArgumentException failure = null;
+        Interval[] range = new Interval[1];
+        double lower = from;
+        for (int k = 1; k <= pieces; k++) {
+            double upper = k == pieces ? to : Math.min(from + width * k / pieces, to);
+            range[0] = new Interval(lower, upper);
+            try {
+                Interval piece = root.bound(range);
+                hull = hull == null ? piece : hull.hull(piece);
+            } catch (IllegalArgumentException e) {
+                failure = e;
+            }
+            lower = upper;
+        }
+        if (hull == null) {
+            throw failure;
+        }
+        return hull;
+    }
+
+    /**
+     * Returns the variable names of this expression.
+     *
+     * @return a copy of the variable names, in declaration order
+     */
+    public String[] getVariables() {
+        return Arrays.copyOf(variables, variables.length);
+    }
+
+    /**
+     * Returns the expression text this instance was compiled from.
+     *
+     * @return the original expression
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the root of the parsed tree.
+     *
+     * @return the root node
+     */
+    Node root() {
+        return root;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
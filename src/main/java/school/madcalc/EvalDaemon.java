@@ -0,0 +1,222 @@
+package school.madcalc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-running evaluation process listening on a Unix domain socket.
+ *
+ * <p>Starting a JVM and warming up its just-in-time compiler costs far more
+ * than answering one expression, so a shell loop that runs the calculator
+ * once per expression spends nearly all its time starting up. The daemon
+ * pays that cost once: it stays running with everything loaded and
+ * compiled, and each client connection is answered like a batch, one output
+ * line per input line, with the same friendly messages. Answers are flushed
+ * whenever the client has sent no more input yet, so a client can also talk
+ * to the daemon line by line. A line containing only {@code exit} ends the
+ * connection, not the daemon.</p>
+ *
+ * <p>Every connection is handled on its own virtual thread. The socket file
+ * is readable and writable by its owner only: it is bound in a new directory
+ * only the owner can enter and moved into place once its permissions are
+ * set, so no one else can connect in between. It is removed when the daemon
+ * is closed or the process ends normally. A socket file left behind by a
+ * daemon that was killed is replaced; one that still answers is not.</p>
+ */
+final class EvalDaemon implements Closeable {
+    /** Size in characters of the read and write buffers of a connection. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path socket;
+    private final ServerSocketChannel server;
+    private final ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+    private final Thread acceptor;
+
+    private EvalDaemon(Path socket, ServerSocketChannel server) {
+        this.socket = socket;
+        this.server = server;
+        this.acceptor = new Thread(this::acceptLoop, "madcalc-daemon");
+    }
+
+    /**
+     * Starts listening on a socket file.
+     *
+     * @param socket the path of the socket file
+     * @return the running daemon; call {@link #close()} to shut it down
+     * @throws IOException if another daemon is already listening on the socket, or the socket cannot be bound
+     */
+    static EvalDaemon start(Path socket) throws IOException {
+        if (Files.exists(socket)) {
+            if (isListening(socket)) {
+                throw new IOException("A daemon is already listening on " + socket);
+            }
+            Files.delete(socket);
+        }
+        Path parent = socket.toAbsolutePath().getParent();
+        Path privateDir;
+        try {
+            privateDir = Files.createTempDirectory(parent, ".madcalc-", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system; there are no permissions to protect the socket with
+            privateDir = Files.createTempDirectory(parent, ".madcalc-");
+        }
+        Path bound = privateDir.resolve(socket.getFileName());
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            // the socket is created where only the owner can reach it, restricted, and only then moved into place
+            server.bind(UnixDomainSocketAddress.of(bound));
+            try {
+                Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system; keep the default permissions
+            }
+            Files.move(bound, socket, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            Files.deleteIfExists(bound);
+            throw e;
+        } finally {
+            Files.delete(privateDir);
+        }
+        EvalDaemon daemon = new EvalDaemon(socket, server);
+        daemon.acceptor.start();
+        return daemon;
+    }
+
+    /**
+     * Checks whether a daemon answers on a socket file.
+     *
+     * @param socket the path of the socket file
+     * @return true if a connection could be made
+     */
+    private static boolean isListening(Path socket) {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            return false;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // the connection was made, which is all that is asked
+        }
+        return true;
+    }
+
+    /**
+     * Accepts connections until the daemon is closed.
+     */
+    private void acceptLoop() {
+        try {
+            while (true) {
+                SocketChannel channel = server.accept();
+                connections.execute(() -> serve(channel));
+            }
+        } catch (AsynchronousCloseException e) {
+            // closed
+        } catch (IOException e) {
+            System.err.println("Oops! The daemon stopped accepting connections: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers every line of one connection.
+     *
+     * @param channel the connection
+     */
+    private static void serve(SocketChannel channel) {
+        try (channel;
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8), BUFFER_SIZE);
+             Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            Metrics.Recorder recorder = MadCalc.recorder();
+            try {
+                String line;
+                while ((line = in.readLine()) != null && !MadCalc.isExit(line)) {
+                    out.write(BatchRunner.answer(line, recorder));
+                    out.write('\n');
+                    if (!in.ready()) {
+                        out.flush();
+                    }
+                }
+            } finally {
+                if (recorder != null) {
+                    recorder.flush();
+                }
+            }
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    /**
+     * Stops accepting connections, drops the open ones and removes the socket file.
+     *
+     * @throws IOException if the socket file cannot be removed
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        connections.shutdownNow();
+        Files.deleteIfExists(socket);
+    }
+
+    /**
+     * Sends lines to a daemon and copies its answers back, as a client.
+     *
+     * @param socket the path of the daemon's socket file
+     * @param in the reader to read expressions from
+     * @param out the writer to write answers to; it is flushed but not closed
+     * @throws IOException if the daemon cannot be reached or the connection fails
+     */
+    static void forward(Path socket, Reader in, Writer out) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            Thread sender = Thread.ofVirtual().start(() -> {
+                // closing the writer would close the whole channel, so only its output is shut down
+                Writer toDaemon = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8), BUFFER_SIZE);
+                try {
+                    BufferedReader lines = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in, BUFFER_SIZE);
+                    String line;
+                    while ((line = lines.readLine()) != null) {
+                        toDaemon.write(line);
+                        toDaemon.write('\n');
+                        if (!lines.ready()) {
+                            toDaemon.flush();
+                        }
+                    }
+                    toDaemon.flush();
+                    channel.shutdownOutput();
+                } catch (IOException e) {
+                    // the daemon closed the connection; its answers tell why
+                }
+            });
+            Reader fromDaemon = new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8);
+            char[] buffer = new char[BUFFER_SIZE];
+            int n;
+            while ((n = fromDaemon.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+                out.flush();
+            }
+            sender.interrupt();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package school.madcalc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Embedded HTTP evaluation service built on the JDK HTTP server.
+ *
+ * <p>Every request is handled on its own virtual thread, so thousands of
+ * concurrent clients cost only a little memory each and a slow client never
+ * blocks the others. Two endpoints are offered:</p>
+ * <ul>
+ *   <li>{@code POST /eval} - the request body is one input line; the response
+ *       is {@code 200} with the answer, or {@code 400} with the friendly
+ *       message the interactive session would print; if the line cannot be
+ *       read, the headers {@code X-Error-Code} and {@code X-Error-Position}
+ *       tell why and at which character</li>
+ *   <li>{@code POST /eval/batch} - the request body holds one input line per
+ *       line; the response streams back one answer or message per line, as in
+ *       batch mode</li>
+ * </ul>
+ */
+final class EvalServer {
+    /** Maximum number of pending connections the operating system queues for us. */
+    private static final int BACKLOG = 4096;
+
+    /** Largest accepted body for a single evaluation, in bytes. */
+    private static final int MAX_SINGLE_BODY = 64 * 1024;
+
+    private static final String TEXT = "text/plain; charset=utf-8";
+
+    private EvalServer() {
+    }
+
+    /**
+     * Starts serving on a port.
+     *
+     * @param port the port to listen on, or 0 for any free port
+     * @return the running server; call {@link HttpServer#stop(int)} to shut it down
+     * @throws IOException if the port cannot be bound
+     */
+    static HttpServer start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/eval", EvalServer::handleEval);
+        server.createContext("/eval/batch", EvalServer::handleBatch);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Handles {@code POST /eval}.
+     *
+     * @param exchange the HTTP exchange
+     * @throws IOException if the response cannot be sent
+     */
+    private static void handleEval(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!accept(exchange, "/eval")) {
+                return;
+            }
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = in.readNBytes(MAX_SINGLE_BODY + 1);
+            }
+            if (body.length > MAX_SINGLE_BODY) {
+                send(exchange, 413, "Oops! That expression is too long.");
+                return;
+            }
+            String input = stripLineEnd(new String(body, StandardCharsets.UTF_8));
+            String result;
+            try {
+                result = MadCalc.answer(input);
+            } catch (RuntimeException e) {
+                if (e instanceof ExpressionException) {
+                    ExpressionException error = (ExpressionException) e;
+                    exchange.getResponseHeaders().set("X-Error-Code", error.getCode().name());
+                    exchange.getResponseHeaders().set("X-Error-Position", Integer.toString(error.getPosition()));
+                }
+                send(exchange, 400, MadCalc.errorMessage(input, e));
+                return;
+            }
+            send(exchange, 200, result);
+        }
+    }
+
+    /**
+     * Handles {@code POST /eval/batch}.
+     *
+     * @param exchange the HTTP exchange
+     * @throws IOException if the request cannot be read or the response cannot be sent
+     */
+    private static void handleBatch(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!accept(exchange, "/eval/batch")) {
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", TEXT);
+            exchange.sendResponseHeaders(200, 0);
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+                 Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+                BatchRunner.run(in, out);
+            }
+        }
+    }
+
+    /**
+     * Checks the path and method of a request, answering it with an error if they do not match.
+     *
+     * @param exchange the HTTP exchange
+     * @param path the exact path of the endpoint
+     * @return true if the request should be handled
+     * @throws IOException if the error response cannot be sent
+     */
+    private static boolean accept(HttpExchange exchange, String path) throws IOException {
+        if (!exchange.getRequestURI().getPath().equals(path)) {
+            send(exchange, 404, "Not found");
+            return false;
+        }
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            send(exchange, 405, "Use POST");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends a complete plain-text response.
+     *
+     * @param exchange the HTTP exchange
+     * @param status the HTTP status code
+     * @param text the response text, without line end
+     * @throws IOException if the response cannot be sent
+     */
+    private static void send(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", TEXT);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Removes one trailing line end, as left by tools like {@code curl --data-binary @file}.
+     *
+     * @param text the request body
+     * @return the body without its final line end
+     */
+    private static String stripLineEnd(String text) {
+        if (text.endsWith("\r\n")) {
+            return text.substring(0, text.length() - 2);
+        }
+        if (text.endsWith("\n")) {
+            return text.substring(0, text.length() - 1);
+        }
+        return text;
+    }
+}
@@ -0,0 +1,78 @@
+package school.madcalc;
+
+import java.util.Objects;
+
+/**
+ * Evaluates expressions given as text, such as {@code 3 + (9 + 1)} or
+ * {@code 2*sqrt(16)+cube(3)}, from any number of threads at once.
+ *
+ * <p>An evaluator is immutable from the outside and is meant to be created
+ * once and shared. Each thread that uses it gets its own parser, which is
+ * kept and reused for every later expression of that thread, so threads
+ * never wait for each other and, once warmed up, evaluating an expression
+ * allocates nothing: no parser, no tree and no boxed numbers. Threads that
+ * live for a single task, such as virtual threads, still get correct
+ * answers but create a parser per thread.</p>
+ *
+ * <p>An expression is read and computed in one pass, without building a
+ * tree. To evaluate the same formula many times with different values, use
+ * {@link MadCalc#compile(String, String...)} instead.</p>
+ *
+ * <pre>{@code
+ * Evaluator evaluator = new Evaluator();
+ * double answer = evaluator.evaluate("3 + (9 + 1)"); // 13.0
+ * }</pre>
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+public final class Evaluator {
+    /** Variable values for expressions that declare no variables. */
+    private static final double[] NO_VARIABLES = new double[0];
+
+    private final FunctionRegistry functions;
+    private final ThreadLocal<Parser> parsers;
+
+    /**
+     * Creates an evaluator for expressions that use the built-in functions only.
+     */
+    public Evaluator() {
+        this(FunctionRegistry.BUILT_INS);
+    }
+
+    /**
+     * Creates an evaluator for expressions that may call the functions of a registry.
+     *
+     * @param functions the functions expressions may call; functions registered later are seen too
+     */
+    public Evaluator(FunctionRegistry functions) {
+        this.functions = Objects.requireNonNull(functions, "functions");
+        this.parsers = ThreadLocal.withInitial(() -> new Parser("").usingFunctions(this.functions));
+    }
+
+    /**
+     * Evaluates an expression.
+     *
+     * <p>A registered function may itself call this method; the nested call
+     * then uses a new parser instead of the one of its thread.</p>
+     *
+     * @param expression the expression; it is read in place, never copied
+     * @return the value of the expression
+     * @throws ExpressionException if the expression cannot be read, including a malformed number
+     * @throws IllegalArgumentException if the square root of a negative number is requested
+     */
+    public double evaluate(CharSequence expression) {
+        Objects.requireNonNull(expression, "expression");
+        Parser parser = parsers.get();
+        if (parser.busy) {
+            return new Parser(expression).usingFunctions(functions).evaluate(NO_VARIABLES);
+        }
+        parser.busy = true;
+        try {
+            return parser.reset(expression).evaluate(NO_VARIABLES);
+        } finally {
+            parser.reset("");
+            parser.busy = false;
+        }
+    }
+}
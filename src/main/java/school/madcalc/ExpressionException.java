@@ -0,0 +1,76 @@
+package school.madcalc;
+
+/**
+ * Signals that an expression cannot be read, telling what is wrong and where.
+ *
+ * <p>Invalid input is as common as valid input in some feeds, so this
+ * exception is cheap to throw: it records no stack trace, which would cost
+ * far more than reading the whole line, and callers classify it by its
+ * {@link ErrorCode} instead of by its message. The message is kept for
+ * people and is the same as it always was, such as
+ * {@code Unexpected: )} or {@code Mismatched parentheses}.</p>
+ *
+ * <pre>{@code
+ * try {
+ *     MadCalc.compile("2 * (x + 1", "x");
+ * } catch (ExpressionException e) {
+ *     // e.getCode() is MISMATCHED_PARENTHESES, e.getPosition() is 10
+ * }
+ * }</pre>
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+public final class ExpressionException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * What is wrong with an expression.
+     */
+    public enum ErrorCode {
+        /** A character that cannot start an operand or follow one, including the end of the input. */
+        UNEXPECTED,
+        /** A parenthesis or function call that is not closed where the expression ends. */
+        MISMATCHED_PARENTHESES,
+        /** A function call with fewer or more arguments than the function takes. */
+        WRONG_NUMBER_OF_ARGUMENTS,
+        /** A number literal without digits or with more than one decimal point, such as {@code 1.2.3}. */
+        MALFORMED_NUMBER
+    }
+
+    private final ErrorCode code;
+    private final int position;
+
+    /**
+     * Creates an exception without a stack trace.
+     *
+     * @param code what is wrong
+     * @param position the offset of the offending character in the input, or the input length at its end
+     * @param message the message for people
+     */
+    ExpressionException(ErrorCode code, int position, String message) {
+        super(message, null, false, false);
+        this.code = code;
+        this.position = position;
+    }
+
+    /**
+     * Returns what is wrong with the expression.
+     *
+     * @return the error code
+     */
+    public ErrorCode getCode() {
+        return code;
+    }
+
+    /**
+     * Returns where reading stopped: the offset of the offending character,
+     * counted in chars from the start of the input including whitespace, or
+     * the length of the input if it ended too early.
+     *
+     * @return the zero-based position
+     */
+    public int getPosition() {
+        return position;
+    }
+}
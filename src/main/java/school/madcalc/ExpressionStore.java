@@ -0,0 +1,534 @@
+package school.madcalc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file of compiled expressions that a restarted process can load without
+ * parsing them again.
+ *
+ * <p>The file is memory-mapped read-only. Each expression is stored under a
+ * 64-bit hash of its text and variable names, and {@link #compile} finds it
+ * with a binary search over the index and decodes its program straight
+ * from the mapping, so opening a store costs the same whether it holds ten
+ * expressions or ten thousand, and an expression that is never used is
+ * never read. Expressions that are not in the file are compiled as usual
+ * and written by the next {@link #save}.</p>
+ *
+ * <p>The layout, all numbers big-endian:</p>
+ * <ul>
+ *   <li>header: the magic number {@code MCXS}, the {@link #FORMAT_VERSION} and the number of entries</li>
+ *   <li>index: per entry the hash and the file offset of its record, sorted by hash</li>
+ *   <li>records: the key, as a length and UTF-16 characters so it can be
+ *       compared without decoding, then the length and bytes of the program</li>
+ * </ul>
+ *
+ * <p>A program is the optimized expression tree in postfix order: each
+ * node is one opcode byte with its operands, after the programs of its
+ * children. Constants keep their exact bits, so a loaded expression gives
+ * bit-for-bit the results of a freshly compiled one. Expressions that call
+ * user-registered functions cannot be stored, because a function is code,
+ * not data; they are simply compiled every time.</p>
+ *
+ * <p>A file with another magic number or version, or one that is damaged,
+ * is stale: it is ignored, every expression is compiled again, and
+ * {@link #save} replaces it. Saving writes a new file next to the old one
+ * and renames it over it, so a crash never leaves a half-written store and
+ * other processes mapping the old file are not disturbed.</p>
+ *
+ * <pre>{@code
+ * ExpressionStore store = ExpressionStore.open(Path.of("formulas.mcx"));
+ * CompiledExpression area = store.compile("w * h / 2", "w", "h");
+ * store.save();
+ * }</pre>
+ *
+ * <p>A store is thread-safe; its methods are synchronized.</p>
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+public final class ExpressionStore {
+
+    /** The version of the layout and of the program encoding; files of any other version are rebuilt. */
+    static final int FORMAT_VERSION = 1;
+
+    /** The first four bytes of a store file, {@code MCXS}. */
+    private static final int MAGIC = 0x4d435853;
+
+    private static final int HEADER_BYTES = 12;
+    private static final int INDEX_ENTRY_BYTES = 12;
+
+    private static final byte CONSTANT = 1, VARIABLE = 2, NEGATE = 3, SQUARE = 4, CUBE = 5, SQUARE_ROOT = 6, CHAIN = 7;
+
+    private final Path file;
+
+    /** The mapped file, or null if it is missing or stale. */
+    private ByteBuffer mapped;
+    private int count;
+    private boolean stale;
+
+    /** Programs compiled since the file was mapped, by key, waiting for {@link #save}. */
+    private final Map<String, byte[]> added = new HashMap<>();
+
+    private ExpressionStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens a store, mapping its file if it exists and has the current format.
+     *
+     * @param file the store file; it need not exist yet
+     * @return the store
+     * @throws IOException if the file exists but cannot be read
+     */
+    public static ExpressionStore open(Path file) throws IOException {
+        ExpressionStore store = new ExpressionStore(file);
+        store.map();
+        return store;
+    }
+
+    /**
+     * Returns a compiled expression, loaded from the file if it is stored
+     * there and compiled with {@link MadCalc#compile(String, String...)}
+     * otherwise.
+     *
+     * @param expr the mathematical expression
+     * @param variables the names of the variables the expression may refer to
+     * @return the compiled expression
+     * @throws IllegalArgumentException if a variable name is not a valid name, is a function name or is declared twice
+     * @throws RuntimeException if the expression is invalid or contains mismatched parentheses
+     */
+    public synchronized CompiledExpression compile(String expr, String... variables) {
+        String key = key(expr, variables);
+        Node root = load(key, variables.length);
+        if (root != null) {
+            return new CompiledExpression(expr, variables.clone(), root);
+        }
+        CompiledExpression compiled = MadCalc.compile(expr, variables);
+        byte[] program = encode(compiled.root());
+        if (program != null) {
+            added.put(key, program);
+        }
+        return compiled;
+    }
+
+    /**
+     * Tells whether an expression can be loaded without parsing it.
+     *
+     * @param expr the mathematical expression
+     * @param variables the names of its variables
+     * @return true if the expression is in the file or was compiled since
+     */
+    public synchronized boolean contains(String expr, String... variables) {
+        String key = key(expr, variables);
+        return added.containsKey(key) || locate(key) >= 0;
+    }
+
+    /**
+     * Returns the number of stored expressions, including those not saved yet.
+     *
+     * @return the number of expressions
+     */
+    public synchronized int size() {
+        return count + added.size();
+    }
+
+    /**
+     * Tells whether the file had another format or was damaged, so that it
+     * is being rebuilt.
+     *
+     * @return true if the file is ignored and will be replaced by {@link #save}
+     */
+    public synchronized boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Writes the stored expressions and those compiled since to the file,
+     * replacing it atomically, and maps the new file. Nothing is written if
+     * nothing changed.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void save() throws IOException {
+        if (added.isEmpty() && !stale) {
+            return;
+        }
+        List<long[]> order = new ArrayList<>();
+        List<byte[]> records = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                int offset = mapped.getInt(HEADER_BYTES + i * INDEX_ENTRY_BYTES + 8);
+                int keyChars = mapped.getInt(offset);
+                int length = 8 + 2 * keyChars + mapped.getInt(offset + 4 + 2 * keyChars);
+                byte[] record = new byte[length];
+                mapped.get(offset, record);
+                order.add(new long[] {mapped.getLong(HEADER_BYTES + i * INDEX_ENTRY_BYTES), records.size()});
+                records.add(record);
+            }
+        } catch (IndexOutOfBoundsException | NegativeArraySizeException e) { // a damaged record: drop the old entries
+            order.clear();
+            records.clear();
+        }
+        for (Map.Entry<String, byte[]> entry : added.entrySet()) {
+            order.add(new long[] {hash(entry.getKey()), records.size()});
+            records.add(record(entry.getKey(), entry.getValue()));
+        }
+        order.sort(Comparator.comparingLong(entry -> entry[0]));
+
+        int indexEnd = HEADER_BYTES + order.size() * INDEX_ENTRY_BYTES;
+        long size = indexEnd;
+        for (byte[] record : records) {
+            size += record.length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Expression store too large: " + size + " bytes");
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) size);
+        out.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(order.size());
+        int offset = indexEnd;
+        for (long[] entry : order) {
+            out.putLong(entry[0]).putInt(offset);
+            offset += records.get((int) entry[1]).length;
+        }
+        for (long[] entry : order) {
+            out.put(records.get((int) entry[1]));
+        }
+        out.flip();
+
+        Path absolute = file.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        added.clear();
+        map();
+    }
+
+    /**
+     * Maps the file and checks its header and index, marking it stale if they are not valid.
+     *
+     * @throws IOException if the file exists but cannot be read
+     */
+    private void map() throws IOException {
+        mapped = null;
+        count = 0;
+        stale = false;
+        if (!Files.exists(file)) {
+            return;
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                stale = true;
+                return;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        int entries = valid(buffer);
+        if (entries < 0) {
+            stale = true;
+            return;
+        }
+        mapped = buffer;
+        count = entries;
+    }
+
+    /**
+     * Checks the header and that every index entry points into the file, in hash order.
+     *
+     * @param buffer the mapped file
+     * @return the number of entries, or -1 if the file is not a valid store of this version
+     */
+    private static int valid(ByteBuffer buffer) {
+        int size = buffer.limit();
+        if (size < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            return -1;
+        }
+        int entries = buffer.getInt(8);
+        if (entries < 0 || entries > (size - HEADER_BYTES) / INDEX_ENTRY_BYTES) {
+            return -1;
+        }
+        int indexEnd = HEADER_BYTES + entries * INDEX_ENTRY_BYTES;
+        for (int i = 0; i < entries; i++) {
+            int at = HEADER_BYTES + i * INDEX_ENTRY_BYTES;
+            int offset = buffer.getInt(at + 8);
+            if (offset < indexEnd || offset > size - 8 || (i > 0 && buffer.getLong(at) < buffer.getLong(at - INDEX_ENTRY_BYTES))) {
+                return -1;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Loads the tree stored under a key. A record that turns out to be
+     * damaged makes the whole file stale.
+     *
+     * @param key the key
+     * @param variables the number of variables
+     * @return the tree, or null if the key is not in the file
+     */
+    private Node load(String key, int variables) {
+        int program = locate(key);
+        if (program < 0) {
+            return null;
+        }
+        try {
+            return decode(mapped, program + 4, mapped.getInt(program), variables);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            markStale();
+            return null;
+        }
+    }
+
+    /**
+     * Finds the program of a key and checks that its key and program lie
+     * within the file. A record that does not makes the whole file stale.
+     *
+     * @param key the key
+     * @return the offset of the program length of the record, or -1 if the key is not in the file
+     */
+    private int locate(String key) {
+        if (mapped == null) {
+            return -1;
+        }
+        try {
+            int program = find(key, hash(key));
+            if (program >= 0) {
+                int length = mapped.getInt(program);
+                if (length < 0 || length > mapped.limit() - program - 4) {
+                    throw new IndexOutOfBoundsException("Program of " + length + " bytes past the end of the file");
+                }
+            }
+            return program;
+        } catch (IndexOutOfBoundsException e) {
+            markStale();
+            return -1;
+        }
+    }
+
+    /**
+     * Stops using a damaged file, so that every expression is compiled again
+     * and {@link #save} replaces the file.
+     */
+    private void markStale() {
+        mapped = null;
+        count = 0;
+        stale = true;
+    }
+
+    /**
+     * Finds the record of a key: a binary search for the first index entry
+     * with its hash, then a comparison of the keys of every entry with that hash.
+     *
+     * @param key the key
+     * @param hash the hash of the key
+     * @return the offset of the program length of the record, or -1 if the key is not in the file
+     * @throws IndexOutOfBoundsException if a record with the hash runs past the end of the file
+     */
+    private int find(String key, long hash) {
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mapped.getLong(HEADER_BYTES + mid * INDEX_ENTRY_BYTES) < hash) low = mid + 1;
+            else high = mid;
+        }
+        for (int i = low; i < count && mapped.getLong(HEADER_BYTES + i * INDEX_ENTRY_BYTES) == hash; i++) {
+            int offset = mapped.getInt(HEADER_BYTES + i * INDEX_ENTRY_BYTES + 8);
+            if (keyEquals(offset, key)) {
+                return offset + 4 + 2 * key.length();
+            }
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(int offset, String key) {
+        if (mapped.getInt(offset) != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (mapped.getChar(offset + 4 + 2 * i) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the key of an expression: its text and variable names, separated by NUL characters.
+     */
+    private static String key(String expr, String[] variables) {
+        StringBuilder sb = new StringBuilder(expr);
+        for (String variable : variables) {
+            sb.append('\0').append(variable);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Hashes a key with 64-bit FNV-1a over its characters.
+     *
+     * @param key the key
+     * @return the hash
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static byte[] record(String key, byte[] program) {
+        ByteBuffer record = ByteBuffer.allocate(8 + 2 * key.length() + program.length);
+        record.putInt(key.length());
+        for (int i = 0; i < key.length(); i++) {
+            record.putChar(key.charAt(i));
+        }
+        record.putInt(program.length).put(program);
+        return record.array();
+    }
+
+    /**
+     * Encodes a tree as a postfix program.
+     *
+     * @param root the root of the tree
+     * @return the program, or null if the tree calls a user-registered function
+     */
+    static byte[] encode(Node root) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            return encode(root, out) ? bytes.toByteArray() : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean encode(Node node, DataOutputStream out) throws IOException {
+        if (node instanceof Node.Constant) {
+            out.writeByte(CONSTANT);
+            out.writeLong(Double.doubleToRawLongBits(((Node.Constant) node).value));
+        } else if (node instanceof Node.Variable) {
+            out.writeByte(VARIABLE);
+            out.writeInt(((Node.Variable) node).index);
+        } else if (node instanceof Node.Negate) {
+            if (!encode(((Node.Negate) node).operand, out)) return false;
+            out.writeByte(NEGATE);
+        } else if (node instanceof Node.Square) {
+            if (!encode(((Node.Square) node).operand, out)) return false;
+            out.writeByte(SQUARE);
+        } else if (node instanceof Node.Cube) {
+            if (!encode(((Node.Cube) node).operand, out)) return false;
+            out.writeByte(CUBE);
+        } else if (node instanceof Node.SquareRoot) {
+            if (!encode(((Node.SquareRoot) node).operand, out)) return false;
+            out.writeByte(SQUARE_ROOT);
+        } else if (node instanceof Node.Chain) {
+            Node.Chain chain = (Node.Chain) node;
+            for (Node operand : chain.operands) {
+                if (!encode(operand, out)) return false;
+            }
+            out.writeByte(CHAIN);
+            out.writeInt(chain.operands.length);
+            for (char op : chain.operators) {
+                out.writeByte(op);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a postfix program with an explicit operand stack, so that
+     * deeply nested trees need no recursion.
+     *
+     * @param in the buffer holding the program
+     * @param start the offset of the first opcode
+     * @param length the length of the program in bytes
+     * @param variables the number of variables the expression declares
+     * @return the root of the tree
+     * @throws IllegalArgumentException if the program is malformed
+     * @throws IndexOutOfBoundsException if the program runs past the end of the buffer
+     */
+    static Node decode(ByteBuffer in, int start, int length, int variables) {
+        Node[] stack = new Node[16];
+        int depth = 0;
+        int at = start, end = start + length;
+        while (at < end) {
+            byte op = in.get(at++);
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+            }
+            switch (op) {
+                case CONSTANT:
+                    stack[depth++] = new Node.Constant(Double.longBitsToDouble(in.getLong(at)));
+                    at += 8;
+                    break;
+                case VARIABLE: {
+                    int index = in.getInt(at);
+                    at += 4;
+                    if (index < 0 || index >= variables) throw new IllegalArgumentException("Bad variable: " + index);
+                    stack[depth++] = new Node.Variable(index);
+                    break;
+                }
+                case NEGATE:
+                case SQUARE:
+                case CUBE:
+                case SQUARE_ROOT: {
+                    if (depth < 1) throw new IllegalArgumentException("Missing operand");
+                    Node operand = stack[depth - 1];
+                    stack[depth - 1] = op == NEGATE ? new Node.Negate(operand)
+                            : op == SQUARE ? new Node.Square(operand)
+                            : op == CUBE ? new Node.Cube(operand)
+                            : new Node.SquareRoot(operand);
+                    break;
+                }
+                case CHAIN: {
+                    int n = in.getInt(at);
+                    at += 4;
+                    if (n < 2 || n > depth) throw new IllegalArgumentException("Bad chain: " + n);
+                    char[] operators = new char[n - 1];
+                    for (int i = 0; i < operators.length; i++) {
+                        operators[i] = (char) in.get(at++);
+                        if ("+-*/".indexOf(operators[i]) < 0) throw new IllegalArgumentException("Bad operator: " + operators[i]);
+                    }
+                    depth -= n;
+                    Node[] operands = Arrays.copyOfRange(stack, depth, depth + n);
+                    Arrays.fill(stack, depth + 1, depth + n, null);
+                    stack[depth++] = new Node.Chain(operands, operators);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Bad opcode: " + op);
+            }
+        }
+        if (depth != 1 || at != end) {
+            throw new IllegalArgumentException("Malformed program");
+        }
+        return stack[0];
+    }
+}
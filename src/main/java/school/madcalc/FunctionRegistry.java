@@ -0,0 +1,242 @@
+package school.madcalc;
+
+import java.util.Objects;
+
+/**
+ * The functions an expression may call, such as {@code sqrt(16)} or
+ * {@code 2*cube(3)+1}.
+ *
+ * <p>Every registry starts with the built-in functions {@code sqrt},
+ * {@code pow2} and {@code cube}; more functions with any number of
+ * arguments can be added with {@link #register}. Names are case-insensitive.
+ * The {@link Parser} resolves each name to its {@link Definition} once, while
+ * reading, and keeps the definition in the tree, so evaluation never looks
+ * at a name again. The built-in functions become dedicated tree nodes that
+ * allocate nothing and are compiled to bytecode like the operators.</p>
+ *
+ * <p>A registry can be shared between threads. Registering publishes a new
+ * lookup table, so parsers that are already running keep seeing the old
+ * one.</p>
+ *
+ * <pre>{@code
+ * FunctionRegistry functions = new FunctionRegistry()
+ *         .register("hypot", 2, args -> Math.hypot(args[0], args[1]));
+ * CompiledExpression length = MadCalc.compile("hypot(x, y) * 2", functions, "x", "y");
+ * }</pre>
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+public final class FunctionRegistry {
+
+    /**
+     * A function of a fixed number of arguments.
+     */
+    @FunctionalInterface
+    public interface Function {
+        /**
+         * Computes the function.
+         *
+         * @param arguments the argument values, exactly as many as the arity;
+         *        the array must not be kept after returning
+         * @return the value
+         */
+        double apply(double[] arguments);
+    }
+
+    /** The built-in functions only, used for input lines. It is never changed. */
+    static final FunctionRegistry BUILT_INS = new FunctionRegistry(true);
+
+    /** Whether {@link #register} is refused. */
+    private final boolean fixed;
+
+    /** Open-addressing table of the definitions by case-insensitive name hash; its length is a power of two. */
+    private volatile Definition[] table = new Definition[8];
+    private int size;
+
+    /**
+     * Creates a registry with the built-in functions.
+     */
+    public FunctionRegistry() {
+        this(false);
+    }
+
+    private FunctionRegistry(boolean fixed) {
+        add(new Definition("sqrt", 1, args -> Node.SquareRoot.sqrt(args[0])) {
+            @Override
+            Node node(Node[] arguments) {
+                return new Node.SquareRoot(arguments[0]);
+            }
+        });
+        add(new Definition("pow2", 1, args -> args[0] * args[0]) {
+            @Override
+            Node node(Node[] arguments) {
+                return new Node.Square(arguments[0]);
+            }
+        });
+        add(new Definition("cube", 1, args -> args[0] * args[0] * args[0]) {
+            @Override
+            Node node(Node[] arguments) {
+                return new Node.Cube(arguments[0]);
+            }
+        });
+        this.fixed = fixed;
+    }
+
+    /**
+     * Adds a function.
+     *
+     * @param name the name, a letter followed by letters, digits or underscores
+     * @param arity the number of arguments, at least one
+     * @param function the implementation; it should depend on its arguments only
+     * @return this registry
+     * @throws IllegalArgumentException if the name is invalid or already registered, or the arity is below one
+     * @throws UnsupportedOperationException if this is the registry of the built-in functions
+     */
+    public synchronized FunctionRegistry register(String name, int arity, Function function) {
+        Objects.requireNonNull(function, "function");
+        if (fixed) {
+            throw new UnsupportedOperationException("The built-in functions cannot be changed");
+        }
+        if (!MadCalc.isVariableName(name)) {
+            throw new IllegalArgumentException("Invalid function name: " + name);
+        }
+        if (arity < 1) {
+            throw new IllegalArgumentException("A function needs at least one argument: " + name);
+        }
+        if (lookup(name) != null) {
+            throw new IllegalArgumentException("Function already registered: " + name);
+        }
+        add(new Definition(lowerCase(name), arity, function));
+        return this;
+    }
+
+    /**
+     * Tells whether a name refers to a function.
+     *
+     * @param name the name, in any case
+     * @return true if a function of that name is registered
+     */
+    public boolean contains(String name) {
+        return lookup(name) != null;
+    }
+
+    /**
+     * Finds the function of a name without allocating.
+     *
+     * @param name the name, in any case
+     * @return the definition, or null if there is none
+     */
+    Definition lookup(CharSequence name) {
+        Definition[] t = table;
+        int mask = t.length - 1;
+        for (int i = hash(name) & mask; t[i] != null; i = (i + 1) & mask) {
+            if (t[i].matches(name)) {
+                return t[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Publishes a table with one more definition, growing it to stay at most half full.
+     *
+     * @param definition the new definition
+     */
+    private void add(Definition definition) {
+        Definition[] old = table;
+        int length = old.length;
+        while (2 * (size + 1) > length) {
+            length *= 2;
+        }
+        Definition[] t = new Definition[length];
+        for (Definition d : old) {
+            if (d != null) insert(t, d);
+        }
+        insert(t, definition);
+        size++;
+        table = t;
+    }
+
+    private static void insert(Definition[] t, Definition definition) {
+        int mask = t.length - 1;
+        int i = hash(definition.name) & mask;
+        while (t[i] != null) {
+            i = (i + 1) & mask;
+        }
+        t[i] = definition;
+    }
+
+    /**
+     * Lower-cases a name one character at a time, exactly as {@link #hash} and
+     * {@link Definition#matches} compare it.
+     *
+     * @param name the name
+     * @return the name in lower case
+     */
+    private static String lowerCase(String name) {
+        char[] chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Hashes a name the same way in any letter case.
+     *
+     * @param name the name
+     * @return the hash
+     */
+    private static int hash(CharSequence name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            h = 31 * h + Character.toLowerCase(name.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A registered function, as resolved by the parser.
+     */
+    static class Definition {
+        /** The name in lower case. */
+        final String name;
+        final int arity;
+        final Function function;
+
+        Definition(String name, int arity, Function function) {
+            this.name = name;
+            this.arity = arity;
+            this.function = function;
+        }
+
+        /**
+         * Builds the tree node that calls this function.
+         *
+         * @param arguments the argument nodes, exactly {@link #arity} of them
+         * @return the node
+         */
+        Node node(Node[] arguments) {
+            return new Node.Call(this, arguments);
+        }
+
+        /**
+         * Checks whether a name refers to this function.
+         *
+         * @param candidate the name, in any case
+         * @return true if the names are equal ignoring case
+         */
+        boolean matches(CharSequence candidate) {
+            if (candidate.length() != name.length()) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (Character.toLowerCase(candidate.charAt(i)) != name.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package school.madcalc;
+
+/**
+ * A closed range of numbers {@code [lower, upper]}, used to bound the value
+ * of a formula over whole ranges of its variables at once.
+ *
+ * <p>{@link CompiledExpression#bound(Interval...)} walks the tree once,
+ * with an interval instead of a number for every variable, and applies
+ * interval arithmetic at every node: {@code [a, b] + [c, d]} is
+ * {@code [a + c, b + d]}, a product takes the smallest and largest of the
+ * four corner products, and so on. The bounds are computed with the same
+ * floating-point operations as {@link CompiledExpression#eval}, all of
+ * which are monotone, so every value {@code eval} can return for variable
+ * values inside the ranges lies inside the result, rounding included.</p>
+ *
+ * <p>The bounds hold but need not be tight: every occurrence of a variable
+ * is bounded on its own, so {@code x - x} over {@code [0, 1]} gives
+ * {@code [-1, 1]}. A division by a range that contains zero, a result that
+ * may be NaN and a call of a registered function with a range argument
+ * give the whole number line.</p>
+ *
+ * <pre>{@code
+ * CompiledExpression f = MadCalc.compile("(x + 1) * x / 2", "x");
+ * Interval range = f.bound(new Interval(0, 1e7)); // [0.0, 5.0000005E13]
+ * }</pre>
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+public final class Interval {
+    /** The whole number line, the bound of anything. */
+    static final Interval ENTIRE = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+
+    private final double lower;
+    private final double upper;
+
+    /**
+     * Creates an interval.
+     *
+     * @param lower the smallest number in the interval
+     * @param upper the largest number in the interval
+     * @throws IllegalArgumentException if a bound is NaN or lower is above upper
+     */
+    public Interval(double lower, double upper) {
+        if (!(lower <= upper)) {
+            throw new IllegalArgumentException("Invalid interval: [" + lower + ", " + upper + "]");
+        }
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * Returns the smallest number in the interval.
+     *
+     * @return the lower bound
+     */
+    public double getLower() {
+        return lower;
+    }
+
+    /**
+     * Returns the largest number in the interval.
+     *
+     * @return the upper bound
+     */
+    public double getUpper() {
+        return upper;
+    }
+
+    /**
+     * Tells whether a number lies in the interval.
+     *
+     * @param value the number
+     * @return true if lower &le; value &le; upper
+     */
+    public boolean contains(double value) {
+        return lower <= value && value <= upper;
+    }
+
+    /**
+     * Returns the smallest interval that contains this one and another.
+     *
+     * @param other the other interval
+     * @return the hull of both intervals
+     */
+    public Interval hull(Interval other) {
+        return new Interval(Math.min(lower, other.lower), Math.max(upper, other.upper));
+    }
+
+    /**
+     * Tells whether the interval holds a single number.
+     *
+     * @return true if lower equals upper
+     */
+    boolean isPoint() {
+        return lower == upper;
+    }
+
+    /**
+     * Returns the interval spanned by four corner values, or the whole number
+     * line if one of them is NaN.
+     */
+    private static Interval span(double a, double b, double c, double d) {
+        if (Double.isNaN(a) || Double.isNaN(b) || Double.isNaN(c) || Double.isNaN(d)) {
+            return ENTIRE;
+        }
+        return new Interval(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+    }
+
+    /**
+     * Returns the interval between two values, or the whole number line if
+     * one of them is NaN.
+     */
+    private static Interval span(double lower, double upper) {
+        return Double.isNaN(lower) || Double.isNaN(upper) ? ENTIRE : new Interval(lower, upper);
+    }
+
+    /**
+     * Applies a binary operator to two intervals, as {@link Node#apply} does to two numbers.
+     *
+     * @param op the operator, one of {@code + - * /}
+     * @param a the left operand
+     * @param b the right operand
+     * @return an interval containing {@code x op y} for every x in a and y in b
+     */
+    static Interval apply(char op, Interval a, Interval b) {
+        switch (op) {
+            case '+':
+                return span(a.lower + b.lower, a.upper + b.upper);
+            case '-':
+                return span(a.lower - b.upper, a.upper - b.lower);
+            case '*':
+                return span(a.lower * b.lower, a.lower * b.upper, a.upper * b.lower, a.upper * b.upper);
+            default:
+                if (b.contains(0)) {
+                    return ENTIRE;
+                }
+                return span(a.lower / b.lower, a.lower / b.upper, a.upper / b.lower, a.upper / b.upper);
+        }
+    }
+
+    /**
+     * Negates an interval, which is exact.
+     *
+     * @return an interval containing -x for every x in this one
+     */
+    Interval negate() {
+        return new Interval(-upper, -lower);
+    }
+
+    /**
+     * Squares an interval as {@code x * x}.
+     *
+     * @return an interval containing x * x for every x in this one
+     */
+    Interval square() {
+        if (lower >= 0) {
+            return span(lower * lower, upper * upper);
+        }
+        if (upper <= 0) {
+            return span(upper * upper, lower * lower);
+        }
+        return span(0, Math.max(lower * lower, upper * upper));
+    }
+
+    /**
+     * Cubes an interval as {@code x * x * x}, which is increasing.
+     *
+     * @return an interval containing x * x * x for every x in this one
+     */
+    Interval cube() {
+        return span(lower * lower * lower, upper * upper * upper);
+    }
+
+    /**
+     * Takes the square root of an interval. Negative numbers, for which the
+     * square root cannot be calculated, are left out.
+     *
+     * @return an interval containing the square root of every non-negative x in this one
+     * @throws IllegalArgumentException if the interval holds only negative numbers
+     */
+    Interval sqrt() {
+        return new Interval(Node.SquareRoot.sqrt(Math.max(lower, 0)), Node.SquareRoot.sqrt(upper));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Interval)) {
+            return false;
+        }
+        Interval other = (Interval) o;
+        return Double.compare(lower, other.lower) == 0 && Double.compare(upper, other.upper) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Double.hashCode(lower) * 31 + Double.hashCode(upper);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + lower + ", " + upper + "]";
+    }
+}
@@ -0,0 +1,55 @@
+package school.madcalc;
+
+/**
+ * Management interface of one Mad Calc latency histogram, registered as
+ * {@code school.madcalc:type=Latency,name=<operation>} when Mad Calc runs
+ * with {@code --stats}. All times are in nanoseconds and are accurate to
+ * about 12.5%.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+public interface LatencyMXBean {
+
+    /**
+     * Returns the number of timed calculations.
+     *
+     * @return the number of samples
+     */
+    long getCount();
+
+    /**
+     * Returns the mean calculation time.
+     *
+     * @return the mean in nanoseconds, or 0 without samples
+     */
+    double getMeanNanos();
+
+    /**
+     * Returns the median calculation time.
+     *
+     * @return the 50th percentile in nanoseconds
+     */
+    long getP50Nanos();
+
+    /**
+     * Returns the 90th percentile of the calculation time.
+     *
+     * @return the 90th percentile in nanoseconds
+     */
+    long getP90Nanos();
+
+    /**
+     * Returns the 99th percentile of the calculation time.
+     *
+     * @return the 99th percentile in nanoseconds
+     */
+    long getP99Nanos();
+
+    /**
+     * Returns the longest calculation time.
+     *
+     * @return the maximum in nanoseconds
+     */
+    long getMaxNanos();
+}
@@ -1,261 +1,464 @@
-
 package school.madcalc;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
+import java.util.function.Supplier;
 
 /**
  * MadCalc - A command-line calculator supporting basic arithmetic operations,
  * parentheses, and special functions (square root, power of two, and cube).
  * 
  * <p>This calculator accepts mathematical expressions and evaluates them using
- * recursive descent parsing with proper operator precedence.</p>
+ * an iterative operator-precedence parser that needs no recursion.</p>
  * 
  * @author Mad Calc Team
  * @version 1.0
  */
 public class MadCalc {
+    /** Evaluator of input lines, reusing one parser per thread. */
+    private static final Evaluator EVALUATOR = new Evaluator();
+
+    /** Cache of answers shared by all modes, or null when caching is off. */
+    private static volatile ResultCache resultCache;
+
+    /** Calculator for exact answers, or null when answers are doubles. */
+    private static volatile PreciseCalculator preciseCalculator;
+
+    /** Counters and latencies of the answers, or null unless started with {@code --stats}. */
+    private static volatile Metrics metrics;
+
     /**
      * Main entry point for the Mad Calc application.
-     * Provides an interactive command-line interface for evaluating mathematical expressions.
+     * Provides an interactive command-line interface for evaluating mathematical expressions,
+     * evaluates a whole file of expressions when started with {@code --batch},
+     * answers HTTP requests when started with {@code --serve}, or answers
+     * connections on a Unix domain socket when started with {@code --daemon}.
+     * With {@code --client} it forwards standard input to such a daemon.
      * 
      * <p>Supported operations:</p>
      * <ul>
      *   <li>Basic arithmetic: +, -, *, /</li>
      *   <li>Parentheses for grouping</li>
-     *   <li>sqrt &lt;number&gt; - Square root function</li>
-     *   <li>pow2 &lt;number&gt; - Power of two function</li>
-     *   <li>cube &lt;number&gt; - Cube function</li>
+     *   <li>sqrt(x) - Square root function</li>
+     *   <li>pow2(x) - Power of two function</li>
+     *   <li>cube(x) - Cube function</li>
      * </ul>
+     *
+     * <p>A line that starts with a function name and no parenthesis, such as
+     * {@code sqrt 16}, applies the function to the rest of the line.</p>
      * 
-     * @param args command-line arguments (not used)
+     * @param args command-line arguments, see {@link Options}
      */
     public static void main(String[] args) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.clientSocket != null) {
+            try {
+                Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+                EvalDaemon.forward(options.clientSocket, new InputStreamReader(System.in, StandardCharsets.UTF_8), out);
+            } catch (IOException e) {
+                System.err.println("Oops! I could not reach the daemon: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        configure(options);
+        Metrics stats = metrics;
+        if (stats != null) {
+            stats.register();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(stats.summary())));
+        }
+        if (options.servePort >= 0) {
+            try {
+                HttpServer server = EvalServer.start(options.servePort);
+                System.out.println("Mad Calc is serving on port " + server.getAddress().getPort());
+            } catch (IOException e) {
+                System.err.println("Oops! I could not start the server: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        if (options.daemonSocket != null) {
+            try {
+                EvalDaemon daemon = EvalDaemon.start(options.daemonSocket);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        daemon.close();
+                    } catch (IOException e) {
+                        // the process is ending anyway
+                    }
+                }));
+                System.out.println("Mad Calc is listening on " + options.daemonSocket);
+            } catch (IOException e) {
+                System.err.println("Oops! I could not start the daemon: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        if (options.batchInput != null) {
+            try {
+                BatchRunner.run(options.batchInput, options.batchOutput, options.threads);
+            } catch (IOException e) {
+                System.err.println("Oops! I could not process the batch: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
         Scanner scanner = new Scanner(System.in);
         System.out.println("Welcome to Mad Calc!");
-        System.out.println("Enter a mathematical expression (with parentheses), 'sqrt <number>', 'pow2 <number>', 'cube <number>', or type 'exit' to quit:");
+        System.out.println("Enter a mathematical expression (with parentheses), 'sqrt <number>', 'pow2 <number>', 'cube <number>', functions such as '2*sqrt(16)+cube(3)', 'name = expression', or type 'exit' to quit:");
+        Workbook workbook = new Workbook(preciseCalculator);
         while (true) {
             System.out.print("> ");
             String input = scanner.nextLine();
-            if (input.trim().equalsIgnoreCase("exit")) {
+            if (isExit(input)) {
                 System.out.println("Goodbye!");
                 break;
-                        } else if (input.trim().toLowerCase().startsWith("sqrt ")) {
-                            try {
-                                double result = calculateSquareRoot(input.trim().substring(5));
-                                System.out.println("🎉 The answer is: " + result);
-                            } catch (NumberFormatException e) {
-                                System.out.println("Oops! 'sqrt' needs a number. Please try again with 'sqrt <number>'.");
-                            } catch (IllegalArgumentException e) {
-                                System.out.println("I can only calculate the square root of positive numbers!");
-                            }
-                        } else if (input.trim().toLowerCase().startsWith("pow2 ")) {
-                            try {
-                                double result = calculatePowerOfTwo(input.trim().substring(5));
-                                System.out.println("🎉 The answer is: " + result);
-                            } catch (NumberFormatException e) {
-                                System.out.println("Oops! 'pow2' needs a number. Please try again with 'pow2 <number>'.");
-                            }
-                        } else if (input.trim().toLowerCase().startsWith("cube ")) {
-                            try {
-                                double result = calculateCube(input.trim().substring(5));
-                                System.out.println("🎉 The answer is: " + result);
-                            } catch (NumberFormatException e) {
-                                System.out.println("Oops! 'cube' needs a number. Please try again with 'cube <number>'.");
-                            }
-                        }
-                        else {
-                            try {
-                                double result = evaluate(input);
-                                System.out.println("🎉 The answer is: " + result);
-                            } catch (RuntimeException e) {
-                                String msg = e.getMessage();
-                                if (msg != null && msg.contains("Mismatched parentheses")) {
-                                    System.out.println("Oops! Your parentheses don't match. Please check and try again.");
-                                } else if (msg != null && msg.contains("Unexpected")) {
-                                    System.out.println("Hmm, I see something I don't understand. Please use only numbers, +, -, *, /, parentheses, square root (sqrt), power of two (pow2), and cube (cube) operations.");
-                                } else {
-                                    System.out.println("Oops! That doesn't look like a valid expression. Please try again.");
-                                }
-                            } catch (Exception e) {
-                                System.out.println("Oops! That doesn't look like a valid expression. Please try again.");
-                            }
-                        }
-                    }
+            }
+            System.out.println(respond(workbook, input));
+        }
         scanner.close();
     }
 
     /**
-     * Evaluates a mathematical expression supporting +, -, *, /, and parentheses.
-     * Uses recursive descent parsing to handle operator precedence correctly.
-     * 
-     * @param expr the mathematical expression to evaluate
-     * @return the result of the evaluation
-     * @throws RuntimeException if the expression is invalid or contains mismatched parentheses
+     * Sets up how every mode calculates answers: the result cache, the
+     * number representation and the metrics. Options that are not given
+     * turn the feature off.
+     *
+     * @param options the parsed command-line options
      */
-    private static double evaluate(String expr) {
-        return new Parser(expr).parse();
+    static void configure(Options options) {
+        resultCache = options.cacheSize > 0 ? new ResultCache(options.cacheSize, options.cachePolicy) : null;
+        preciseCalculator = options.precision != null ? new PreciseCalculator(options.precision, options.decimalContext) : null;
+        metrics = options.stats ? new Metrics() : null;
     }
 
     /**
-     * Inner parser class that implements recursive descent parsing
-     * for mathematical expressions.
-     * 
-     * <p>This parser handles operator precedence and parentheses
-     * using the following grammar:</p>
-     * <ul>
-     *   <li>expression = term | expression `+` term | expression `-` term</li>
-     *   <li>term = factor | term `*` factor | term `/` factor</li>
-     *   <li>factor = `+` factor | `-` factor | number | `(` expression `)`</li>
-     * </ul>
+     * Returns the cache of answers, for reporting its hit rate.
+     *
+     * @return the cache, or null when caching is off
      */
-    private static class Parser {
-        private final String input;
-        private int pos = -1, ch;
+    static ResultCache resultCache() {
+        return resultCache;
+    }
 
-        /**
-         * Constructs a new Parser for the given input expression.
-         * Removes all whitespace from the input during initialization.
-         * 
-         * @param input the mathematical expression to parse
-         */
-        Parser(String input) {
-            this.input = input.replaceAll("\\s+", "");
-            nextChar();
-        }
+    /**
+     * Returns the calculator for exact answers, for the workbook of a session.
+     *
+     * @return the calculator, or null when answers are doubles
+     */
+    static PreciseCalculator preciseCalculator() {
+        return preciseCalculator;
+    }
 
-        /**
-         * Advances to the next character in the input string.
-         * Sets ch to -1 when the end of input is reached.
-         */
-        void nextChar() {
-            ch = (++pos < input.length()) ? input.charAt(pos) : -1;
-        }
+    /**
+     * Returns the counters and latencies of the answers.
+     *
+     * @return the metrics, or null unless started with {@code --stats}
+     */
+    static Metrics metrics() {
+        return metrics;
+    }
 
-        /**
-         * Attempts to consume a specific character from the input.
-         * Skips any leading spaces before checking.
-         * 
-         * @param charToEat the character to consume
-         * @return true if the character was consumed, false otherwise
-         */
-        boolean eat(int charToEat) {
-            while (ch == ' ') nextChar();
-            if (ch == charToEat) {
-                nextChar();
-                return true;
+    /**
+     * Answers one line of the interactive session. An assignment such as
+     * {@code a = 3 + (9+1)} stores a formula in the session's workbook and
+     * updates the formulas that depend on it; a line that uses assigned
+     * names is calculated with their current values; any other line is
+     * answered as usual. Answers from the workbook are counted with
+     * {@code --stats} like any other answer, and the line is parsed once.
+     *
+     * @param workbook the named formulas of the session
+     * @param input the input line
+     * @return the text to show to the user
+     */
+    static String respond(Workbook workbook, String input) {
+        String[] assignment = Workbook.splitAssignment(input);
+        try {
+            if (assignment != null) {
+                return count(assignment[1], () -> {
+                    int updated = workbook.assign(assignment[0], assignment[1]);
+                    String answer = "🎉 " + assignment[0] + " = " + workbook.answer(assignment[0]);
+                    if (updated > 0) {
+                        answer += " (" + updated + (updated == 1 ? " dependent formula" : " dependent formulas") + " updated)";
+                    }
+                    return answer;
+                });
             }
-            return false;
+            if (!workbook.isEmpty() && Workbook.mentionsNames(input)) {
+                return "🎉 The answer is: " + count(input, () -> workbook.calculate(input));
+            }
+            return "🎉 The answer is: " + answer(input);
+        } catch (RuntimeException e) {
+            return errorMessage(assignment != null ? assignment[1] : input, e);
         }
+    }
 
-        /**
-         * Parses and evaluates the entire expression.
-         * 
-         * @return the result of the expression
-         * @throws RuntimeException if there are unexpected characters after parsing
-         */
-        double parse() {
-            double x = parseExpression();
-            if (pos < input.length()) throw new RuntimeException("Unexpected: " + (char)ch);
-            return x;
+    /**
+     * Checks whether an input line asks to end the session.
+     *
+     * @param input the input line
+     * @return true if the line is the exit command
+     */
+    static boolean isExit(String input) {
+        return input.trim().equalsIgnoreCase("exit");
+    }
+
+    /**
+     * Calculates the answer for one input line as text. With
+     * {@code --precision} the answer is computed exactly by the
+     * {@link PreciseCalculator} and bypasses the result cache, which only
+     * holds doubles; otherwise it is {@link #calculate(String)} formatted
+     * with {@link Double#toString(double)}. With {@code --stats} the answer
+     * is counted and its latency sampled.
+     *
+     * @param input the input line
+     * @return the answer text
+     * @throws RuntimeException for the same reasons as {@link #calculate(String)},
+     *         or an {@link ArithmeticException} if there is no exact answer
+     */
+    static String answer(String input) {
+        return count(input, () -> answerUncounted(input));
+    }
+
+    /**
+     * Calculates an answer, counting it with {@code --stats}.
+     *
+     * @param input the input line, which tells the kind of operation
+     * @param calculation the calculation of the answer
+     * @return the answer text
+     */
+    private static String count(String input, Supplier<String> calculation) {
+        Metrics.Recorder recorder = recorder();
+        if (recorder == null) {
+            return calculation.get();
+        }
+        try {
+            return count(input, recorder, calculation);
+        } finally {
+            recorder.flush();
         }
+    }
 
-        /**
-         * Parses an expression (addition and subtraction operations).
-         * Handles left-to-right evaluation of terms connected by + or - operators.
-         * 
-         * @return the result of the expression
-         */
-        double parseExpression() {
-            double x = parseTerm();
-            while (true) {
-                if (eat('+')) x += parseTerm();
-                else if (eat('-')) x -= parseTerm();
-                else return x;
-            }
+    /**
+     * Creates a recorder for counting answers on the calling thread.
+     *
+     * @return a new recorder, or null unless started with {@code --stats}
+     */
+    static Metrics.Recorder recorder() {
+        Metrics stats = metrics;
+        return stats == null ? null : stats.recorder();
+    }
+
+    /**
+     * Calculates the answer text for one input line, counting it in a
+     * recorder that the caller flushes.
+     *
+     * @param input the input line
+     * @param recorder the recorder of the calling thread, or null to not count
+     * @return the answer text
+     * @throws RuntimeException for the same reasons as {@link #answer(String)}
+     */
+    static String answer(String input, Metrics.Recorder recorder) {
+        if (recorder == null) {
+            return answerUncounted(input);
         }
+        return count(input, recorder, () -> answerUncounted(input));
+    }
 
-        /**
-         * Parses a term (multiplication and division operations).
-         * Handles left-to-right evaluation of factors connected by * or / operators.
-         * 
-         * @return the result of the term
-         */
-        double parseTerm() {
-            double x = parseFactor();
-            while (true) {
-                if (eat('*')) x *= parseFactor();
-                else if (eat('/')) x /= parseFactor();
-                else return x;
-            }
+    /**
+     * Calculates an answer, counting it in a recorder that the caller flushes.
+     *
+     * @param input the input line, which tells the kind of operation
+     * @param recorder the recorder of the calling thread
+     * @param calculation the calculation of the answer
+     * @return the answer text
+     */
+    private static String count(String input, Metrics.Recorder recorder, Supplier<String> calculation) {
+        long start = recorder.sample() ? System.nanoTime() : -1;
+        String answer;
+        try {
+            answer = calculation.get();
+        } catch (RuntimeException e) {
+            recorder.failure(e);
+            throw e;
         }
+        recorder.success(input, start < 0 ? -1 : System.nanoTime() - start);
+        return answer;
+    }
 
-        /**
-         * Parses a factor (numbers, parenthesized expressions, and unary operators).
-         * Handles:
-         * <ul>
-         *   <li>Unary plus and minus</li>
-         *   <li>Parenthesized expressions</li>
-         *   <li>Numeric literals (including decimals)</li>
-         * </ul>
-         * 
-         * @return the result of the factor
-         * @throws RuntimeException if parentheses are mismatched or unexpected characters are found
-         */
-        double parseFactor() {
-            if (eat('+')) return parseFactor(); // unary plus
-            if (eat('-')) return -parseFactor(); // unary minus
+    /**
+     * Calculates the answer text without updating the metrics.
+     *
+     * @param input the input line
+     * @return the answer text
+     * @throws RuntimeException for the same reasons as {@link #answer(String)}
+     */
+    private static String answerUncounted(String input) {
+        PreciseCalculator precise = preciseCalculator;
+        if (precise != null) {
+            return precise.calculate(input);
+        }
+        return Double.toString(calculate(input));
+    }
 
-            double x;
-            int startPos = this.pos;
-            if (eat('(')) { // parentheses
-                x = parseExpression();
-                if (!eat(')')) throw new RuntimeException("Mismatched parentheses");
-            } else if ((ch >= '0' && ch <= '9') || ch == '.') { // numbers
-                while ((ch >= '0' && ch <= '9') || ch == '.') nextChar();
-                x = Double.parseDouble(input.substring(startPos, this.pos));
-            } else {
-                throw new RuntimeException("Unexpected: " + (char)ch);
-            }
-            return x;
+    /**
+     * Calculates the answer for one input line: an arithmetic expression,
+     * which may call the special functions, or a special function command
+     * ({@code sqrt}, {@code pow2} or {@code cube} followed by an expression).
+     * When the result cache is enabled, answers for inputs seen before are
+     * taken from the cache.
+     *
+     * @param input the input line
+     * @return the answer
+     * @throws IllegalArgumentException if the square root of a negative number is requested
+     * @throws RuntimeException if the expression is invalid or contains mismatched parentheses
+     */
+    static double calculate(String input) {
+        ResultCache cache = resultCache;
+        if (cache != null) {
+            return cache.get(ResultCache.normalize(input), () -> evaluate(input));
         }
+        return evaluate(input);
     }
 
     /**
-     * Calculates the square root of a number.
-     * 
-     * @param numberStr the string representation of the number
-     * @return the square root of the number
-     * @throws NumberFormatException if the string cannot be parsed as a number
-     * @throws IllegalArgumentException if the number is negative
+     * Turns a failure of {@link #calculate(String)} or {@link #answer(String)} into a friendly message.
+     *
+     * @param input the input line that failed
+     * @param e the exception thrown while calculating
+     * @return the message to show to the user
      */
-    private static double calculateSquareRoot(String numberStr) {
-        double num = Double.parseDouble(numberStr.trim());
-        if (num < 0) {
-            throw new IllegalArgumentException("Cannot calculate square root of a negative number");
+    static String errorMessage(String input, RuntimeException e) {
+        if (e instanceof ArithmeticException) {
+            return "Oops! I can't calculate that exactly: " + e.getMessage();
+        }
+        String msg = e.getMessage();
+        if (msg != null && msg.startsWith("Undefined variable: ")) {
+            String name = msg.substring("Undefined variable: ".length());
+            return "Oops! " + name + " has no value yet. Assign one first, for example '" + name + " = 1'.";
+        } else if (msg != null && msg.startsWith("Circular reference")) {
+            return "Oops! That formula would depend on itself. Please try again.";
+        } else if (msg != null && msg.startsWith("Reserved name")) {
+            return "Oops! That name is reserved. Please choose another name.";
+        }
+        if (e instanceof NegativeSquareRootException) {
+            return "I can only calculate the square root of positive numbers!";
         }
-        return Math.sqrt(num);
+        String lower = input.trim().toLowerCase();
+        if (lower.startsWith("sqrt ")) {
+            return "Oops! 'sqrt' needs a number. Please try again with 'sqrt <number>'.";
+        } else if (lower.startsWith("pow2 ")) {
+            return "Oops! 'pow2' needs a number. Please try again with 'pow2 <number>'.";
+        } else if (lower.startsWith("cube ")) {
+            return "Oops! 'cube' needs a number. Please try again with 'cube <number>'.";
+        }
+        if (e instanceof ExpressionException) {
+            switch (((ExpressionException) e).getCode()) {
+                case MISMATCHED_PARENTHESES:
+                    return "Oops! Your parentheses don't match. Please check and try again.";
+                case UNEXPECTED:
+                    return "Hmm, I see something I don't understand. Please use only numbers, +, -, *, /, parentheses, square root (sqrt), power of two (pow2), and cube (cube) operations.";
+                default:
+                    break;
+            }
+        }
+        return "Oops! That doesn't look like a valid expression. Please try again.";
     }
 
     /**
-     * Calculates the square (power of two) of a number.
+     * Evaluates a mathematical expression supporting +, -, *, /, parentheses
+     * and the special functions.
+     * The value is computed while parsing, with no tree and no recursion,
+     * so arbitrarily deep nesting does not overflow the stack.
      * 
-     * @param numberStr the string representation of the number
-     * @return the square of the number (number²)
-     * @throws NumberFormatException if the string cannot be parsed as a number
+     * @param expr the mathematical expression to evaluate
+     * @return the result of the evaluation
+     * @throws RuntimeException if the expression is invalid or contains mismatched parentheses
      */
-    private static double calculatePowerOfTwo(String numberStr) {
-        double num = Double.parseDouble(numberStr.trim());
-        return num * num;
+    private static double evaluate(String expr) {
+        return EVALUATOR.evaluate(expr);
     }
 
     /**
-     * Calculates the cube (power of three) of a number.
-     * 
-     * @param numberStr the string representation of the number
-     * @return the cube of the number (number³)
-     * @throws NumberFormatException if the string cannot be parsed as a number
+     * Parses an expression once so that it can be evaluated many times.
+     *
+     * <p>The expression may use +, -, *, /, parentheses, the special
+     * functions and the given variable names. The parsed tree is simplified
+     * once by the {@link Optimizer}, which never changes a result. The
+     * returned {@link CompiledExpression} is immutable and safe to share
+     * between threads.</p>
+     *
+     * @param expr the mathematical expression to compile
+     * @param variables the names of the variables the expression may refer to
+     * @return the compiled expression
+     * @throws IllegalArgumentException if a variable name is not a valid name, is a function name or is declared twice
+     * @throws RuntimeException if the expression is invalid or contains mismatched parentheses
+     */
+    public static CompiledExpression compile(String expr, String... variables) {
+        return compile(expr, FunctionRegistry.BUILT_INS, variables);
+    }
+
+    /**
+     * Parses an expression that may call the functions of a registry once,
+     * so that it can be evaluated many times. The function names are
+     * resolved now; functions registered later are not seen.
+     *
+     * @param expr the mathematical expression to compile
+     * @param functions the functions the expression may call
+     * @param variables the names of the variables the expression may refer to
+     * @return the compiled expression
+     * @throws IllegalArgumentException if a variable name is not a valid name, is a function name or is declared twice
+     * @throws RuntimeException if the expression is invalid, contains mismatched parentheses
+     *         or calls a function with the wrong number of arguments
      */
-    private static double calculateCube(String numberStr) {
-        double num = Double.parseDouble(numberStr.trim());
-        return num * num * num;
+    public static CompiledExpression compile(String expr, FunctionRegistry functions, String... variables) {
+        String[] names = variables.clone();
+        for (int i = 0; i < names.length; i++) {
+            if (!isVariableName(names[i])) {
+                throw new IllegalArgumentException("Invalid variable name: " + names[i]);
+            }
+            if (functions.contains(names[i])) {
+                throw new IllegalArgumentException("Reserved name: " + names[i]);
+            }
+            for (int j = 0; j < i; j++) {
+                if (names[j].equals(names[i])) {
+                    throw new IllegalArgumentException("Duplicate variable name: " + names[i]);
+                }
+            }
+        }
+        return new CompiledExpression(expr, names, Optimizer.optimize(new Parser(expr, names).usingFunctions(functions).parse()));
+    }
+
+    /**
+     * Checks whether a string is a valid variable name: a letter followed by
+     * letters, digits or underscores.
+     *
+     * @param name the candidate name
+     * @return true if the name can be used as a variable
+     */
+    static boolean isVariableName(String name) {
+        if (name == null || name.isEmpty() || !Character.isLetter(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_') {
+                return false;
+            }
+        }
+        return true;
     }
-}
\ No newline at end of file
+}
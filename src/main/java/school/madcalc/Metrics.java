@@ -0,0 +1,430 @@
+package school.madcalc;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the answers Mad Calc calculates,
+ * switched on with {@code --stats}.
+ *
+ * <p>Every answer and every failure is counted, failures by the same
+ * categories the friendly error messages use. Answers and failures are
+ * counted in a {@link Recorder} owned by one thread, with plain fields, and
+ * added to the shared {@link LongAdder}s in one step per batch chunk, so the
+ * hot path has no atomic instruction at all, even when most lines fail.</p>
+ *
+ * <p>Latencies go to one {@link Histogram} per operation: arithmetic
+ * expressions, which are parsed and evaluated in a single pass, and each
+ * special function. Reading the clock twice costs a sizeable fraction of
+ * answering a short expression, so only one answer in {@value #SAMPLE_RATE},
+ * picked at random, is timed; the counters are always exact. This keeps
+ * the overhead below one percent.</p>
+ *
+ * <p>The counters and histograms are published as MXBeans in the platform
+ * MBean server and summarized by {@link #summary()}.</p>
+ */
+final class Metrics implements MetricsMXBean {
+
+    /** One in this many answers is timed. */
+    static final int SAMPLE_RATE = 64;
+
+    /**
+     * What an answer calculated.
+     */
+    enum Operation {
+        EXPRESSION, SQRT, POW2, CUBE;
+
+        /**
+         * Finds the operation of an input line without allocating. The line
+         * is scanned for names with the rules of the {@link Parser}, so a
+         * special function counts whether it is a command such as
+         * {@code sqrt 16}, a call such as {@code 2*cube(3)}, or followed by any
+         * whitespace.
+         *
+         * @param input the input line
+         * @return the first special function the line calls, or {@link #EXPRESSION} if it calls none
+         */
+        static Operation of(String input) {
+            int length = input.length();
+            for (int i = 0; i < length; i++) {
+                if (!Character.isLetter(input.charAt(i))) {
+                    continue;
+                }
+                int end = i + 1;
+                while (end < length && (Character.isLetterOrDigit(input.charAt(end)) || input.charAt(end) == '_')) {
+                    end++;
+                }
+                if (end - i == 4) {
+                    if (input.regionMatches(true, i, "sqrt", 0, 4)) return SQRT;
+                    if (input.regionMatches(true, i, "pow2", 0, 4)) return POW2;
+                    if (input.regionMatches(true, i, "cube", 0, 4)) return CUBE;
+                }
+                i = end - 1;
+            }
+            return EXPRESSION;
+        }
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Why an answer failed, matching the branches of {@link MadCalc#errorMessage}.
+     */
+    enum Failure {
+        MISMATCHED_PARENTHESES, UNEXPECTED, NUMBER_FORMAT, NEGATIVE_SQUARE_ROOT, NO_EXACT_ANSWER, OTHER;
+
+        /**
+         * Classifies the exception of a failed answer.
+         *
+         * @param e the exception
+         * @return the failure category
+         */
+        static Failure of(RuntimeException e) {
+            if (e instanceof NumberFormatException) return NUMBER_FORMAT;
+            if (e instanceof ArithmeticException) return NO_EXACT_ANSWER;
+            if (e instanceof NegativeSquareRootException) return NEGATIVE_SQUARE_ROOT;
+            if (e instanceof ExpressionException) {
+                switch (((ExpressionException) e).getCode()) {
+                    case MISMATCHED_PARENTHESES: return MISMATCHED_PARENTHESES;
+                    case UNEXPECTED: return UNEXPECTED;
+                    case MALFORMED_NUMBER: return NUMBER_FORMAT;
+                    default: return OTHER;
+                }
+            }
+            // anything else, such as a registered function refusing its arguments
+            return OTHER;
+        }
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT).replace('_', ' ');
+        }
+    }
+
+    private final LongAdder answers = new LongAdder();
+    private final LongAdder[] failures = new LongAdder[Failure.values().length];
+    private final Histogram[] latencies = new Histogram[Operation.values().length];
+
+    /**
+     * Creates empty metrics that are not yet published.
+     */
+    Metrics() {
+        for (int i = 0; i < failures.length; i++) {
+            failures[i] = new LongAdder();
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Creates a recorder for counting answers on the calling thread.
+     *
+     * @return a new recorder
+     */
+    Recorder recorder() {
+        return new Recorder(this);
+    }
+
+    /**
+     * Returns the latency histogram of an operation.
+     *
+     * @param operation the operation
+     * @return its histogram
+     */
+    Histogram latency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    @Override
+    public long getAnswers() {
+        return answers.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        long sum = 0;
+        for (LongAdder failure : failures) {
+            sum += failure.sum();
+        }
+        return sum;
+    }
+
+    @Override
+    public Map<String, Long> getFailuresByCategory() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Failure failure : Failure.values()) {
+            counts.put(failure.label(), failures[failure.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    /**
+     * Registers the counters and every histogram in the platform MBean server.
+     *
+     * @throws IllegalStateException if the beans cannot be registered, for example because they already are
+     */
+    void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName("school.madcalc:type=Metrics"));
+            for (Operation operation : Operation.values()) {
+                server.registerMBean(latency(operation), new ObjectName("school.madcalc:type=Latency,name=" + operation.label()));
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the metrics MBeans", e);
+        }
+    }
+
+    /**
+     * Describes the counters and latencies in a few lines of text.
+     *
+     * @return the summary
+     */
+    String summary() {
+        StringBuilder sb = new StringBuilder("Mad Calc statistics\n");
+        sb.append("  answers: ").append(getAnswers()).append(", failures: ").append(getFailures());
+        String separator = " (";
+        for (Failure failure : Failure.values()) {
+            long count = failures[failure.ordinal()].sum();
+            if (count > 0) {
+                sb.append(separator).append(failure.label()).append(' ').append(count);
+                separator = ", ";
+            }
+        }
+        sb.append(separator.equals(", ") ? ")\n" : "\n");
+        for (Operation operation : Operation.values()) {
+            Histogram h = latency(operation);
+            if (h.getCount() > 0) {
+                sb.append(String.format(Locale.ROOT, "  %-10s timed %d, mean %s, p50 %s, p90 %s, p99 %s, max %s%n",
+                        operation.label(), h.getCount(), micros(h.getMeanNanos()), micros(h.getP50Nanos()),
+                        micros(h.getP90Nanos()), micros(h.getP99Nanos()), micros(h.getMaxNanos())));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String micros(double nanos) {
+        return String.format(Locale.ROOT, "%.1f us", nanos / 1000);
+    }
+
+    /**
+     * Counts answers on one thread and adds them to the shared counters when
+     * flushed. A recorder must not be used by several threads at once.
+     */
+    static final class Recorder {
+        private final Metrics metrics;
+        private long answers;
+        private final long[] failures = new long[Failure.values().length];
+        private boolean failed;
+        private long seed;
+
+        private Recorder(Metrics metrics) {
+            this.metrics = metrics;
+            this.seed = ThreadLocalRandom.current().nextLong() | 1;
+        }
+
+        /**
+         * Tells whether the next answer should be timed, using a xorshift
+         * generator so that periodic input cannot line up with the samples.
+         *
+         * @return true for about one call in {@value #SAMPLE_RATE}
+         */
+        boolean sample() {
+            long x = seed;
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+            seed = x;
+            return (x & (SAMPLE_RATE - 1)) == 0;
+        }
+
+        /**
+         * Counts a successful answer.
+         *
+         * @param input the input line
+         * @param nanos the time it took, or a negative value if it was not timed
+         */
+        void success(String input, long nanos) {
+            answers++;
+            if (nanos >= 0) {
+                metrics.latency(Operation.of(input)).record(nanos);
+            }
+        }
+
+        /**
+         * Counts a failed answer.
+         *
+         * @param e the exception the calculation threw
+         */
+        void failure(RuntimeException e) {
+            answers++;
+            failures[Failure.of(e).ordinal()]++;
+            failed = true;
+        }
+
+        /**
+         * Adds the answers and failures counted so far to the shared counters.
+         */
+        void flush() {
+            if (answers != 0) {
+                metrics.answers.add(answers);
+                answers = 0;
+            }
+            if (failed) {
+                for (int i = 0; i < failures.length; i++) {
+                    if (failures[i] != 0) {
+                        metrics.failures[i].add(failures[i]);
+                        failures[i] = 0;
+                    }
+                }
+                failed = false;
+            }
+        }
+    }
+
+    /**
+     * A lock-free latency histogram with logarithmic buckets, in the style of
+     * HdrHistogram: values below 16 have a bucket each, and every power of
+     * two above is split into 8 equal buckets, so any recorded value is
+     * known to within 12.5% using fewer than 500 counters.
+     */
+    static final class Histogram implements LatencyMXBean {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        /**
+         * Records one value.
+         *
+         * @param nanos the value, not negative
+         */
+        void record(long nanos) {
+            counts.incrementAndGet(bucket(nanos));
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        /**
+         * Adds all values of another histogram, for example to sum up reporting intervals.
+         *
+         * @param other the histogram to add; it should not change meanwhile
+         */
+        void addAll(Histogram other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long n = other.counts.get(i);
+                if (n != 0) {
+                    counts.addAndGet(i, n);
+                }
+            }
+            count.add(other.count.sum());
+            total.add(other.total.sum());
+            max.accumulate(other.max.get());
+        }
+
+        /**
+         * Returns the bucket of a value.
+         *
+         * @param value the value, not negative
+         * @return the bucket index
+         */
+        static int bucket(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BUCKET_BITS;
+            return shift * SUB_BUCKETS + SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        /**
+         * Returns the smallest value that falls into a bucket.
+         *
+         * @param bucket the bucket index
+         * @return the lower bound of the bucket
+         */
+        static long lowerBound(int bucket) {
+            if (bucket < 2 * SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+            long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+            return (SUB_BUCKETS + sub) << shift;
+        }
+
+        /**
+         * Returns a percentile, reported as the upper bound of the bucket it falls into.
+         *
+         * @param percent the percentile, between 0 and 100
+         * @return the value in nanoseconds, or 0 without samples
+         */
+        long percentile(double percent) {
+            long[] snapshot = new long[BUCKETS];
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                n += snapshot[i];
+            }
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    long upper = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                    return Math.min(upper, getMaxNanos());
+                }
+            }
+            return getMaxNanos();
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public double getMeanNanos() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) total.sum() / n;
+        }
+
+        @Override
+        public long getP50Nanos() {
+            return percentile(50);
+        }
+
+        @Override
+        public long getP90Nanos() {
+            return percentile(90);
+        }
+
+        @Override
+        public long getP99Nanos() {
+            return percentile(99);
+        }
+
+        @Override
+        public long getMaxNanos() {
+            return max.get();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package school.madcalc;
+
+import java.util.Map;
+
+/**
+ * Management interface of the Mad Calc answer counters, registered as
+ * {@code school.madcalc:type=Metrics} when Mad Calc runs with {@code --stats}.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+public interface MetricsMXBean {
+
+    /**
+     * Returns the number of input lines answered, including failed ones.
+     *
+     * @return the number of answers
+     */
+    long getAnswers();
+
+    /**
+     * Returns the number of input lines that could not be calculated.
+     *
+     * @return the number of failures
+     */
+    long getFailures();
+
+    /**
+     * Returns the number of failures per category, such as
+     * {@code mismatched parentheses} or {@code unexpected}.
+     *
+     * @return the failure counts by category name
+     */
+    Map<String, Long> getFailuresByCategory();
+}
@@ -0,0 +1,19 @@
+package school.madcalc;
+
+/**
+ * Signals that the square root of a negative number was requested.
+ *
+ * <p>It is an {@link IllegalArgumentException}, as this failure always
+ * was, and has its own type so that it can be told apart from other
+ * invalid arguments, such as those of a registered function.</p>
+ */
+final class NegativeSquareRootException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates the exception.
+     */
+    NegativeSquareRootException() {
+        super("Cannot calculate square root of a negative number");
+    }
+}
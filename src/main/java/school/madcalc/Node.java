@@ -0,0 +1,587 @@
+package school.madcalc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A node of the immutable expression tree produced by the {@link Parser}.
+ *
+ * <p>Nodes hold no mutable state, so a tree can be shared freely between
+ * threads and evaluated any number of times. Evaluation walks the tree and
+ * reads variable values from the array handed in by the caller, so it
+ * allocates nothing, except for the argument array of a user-registered
+ * {@link Call}.</p>
+ *
+ * <p>Left-associative runs of the same precedence level (for example
+ * {@code 1+2-3+4}) are kept as a single {@link Chain} instead of a deep
+ * binary tree, so very long flat expressions do not turn into very deep
+ * recursion.</p>
+ *
+ * <p>Besides evaluating one row of variable values at a time, a tree can
+ * evaluate a whole block of rows at once with {@link #evalBlock}. Each node
+ * then runs one tight primitive loop over the block, which the JIT compiler
+ * can unroll and vectorize, instead of walking the tree once per row.</p>
+ *
+ * <p>{@link #bound} walks the tree once with an {@link Interval} per
+ * variable and returns an interval that contains every value the tree can
+ * take for variable values inside them.</p>
+ */
+abstract class Node {
+
+    /**
+     * Evaluates this node.
+     *
+     * @param vars the variable values, indexed by variable position
+     * @return the value of this node
+     */
+    abstract double eval(double[] vars);
+
+    /**
+     * Evaluates this node for a block of rows of columnar variable values.
+     *
+     * <p>Intermediate results of child nodes go to the scratch buffers
+     * starting at {@code depth}; this node's own result goes to
+     * {@code dst}.</p>
+     *
+     * @param columns the variable values, one column per variable position
+     * @param row the first row of the block
+     * @param length the number of rows in the block, at most the scratch buffer length
+     * @param dst the array receiving the results
+     * @param offset the position in {@code dst} of the result for the first row
+     * @param scratch scratch buffers, at least {@link #scratchDepth()} of them
+     * @param depth the first scratch buffer this node may use
+     */
+    abstract void evalBlock(double[][] columns, int row, int length, double[] dst, int offset, double[][] scratch, int depth);
+
+    /**
+     * Returns how many scratch buffers {@link #evalBlock} needs for this subtree.
+     *
+     * @return the number of scratch buffers
+     */
+    abstract int scratchDepth();
+
+    /**
+     * Bounds this node over ranges of variable values.
+     *
+     * @param vars the range of each variable, indexed by variable position
+     * @return an interval containing every value of this node for variable values in the ranges
+     * @throws IllegalArgumentException if a square root is only ever taken of negative numbers
+     */
+    abstract Interval bound(Interval[] vars);
+
+    /**
+     * Applies a binary operator to two operands.
+     *
+     * @param op the operator, one of {@code + - * /}
+     * @param a the left operand
+     * @param b the right operand
+     * @return the result of {@code a op b}
+     */
+    static double apply(char op, double a, double b) {
+        switch (op) {
+            case '+': return a + b;
+            case '-': return a - b;
+            case '*': return a * b;
+            default: return a / b;
+        }
+    }
+
+    /**
+     * Lists the nodes of a tree in postfix order: the operands of every node,
+     * left to right, come before the node itself. The tree is walked with an
+     * explicit stack, so callers that evaluate the list with a stack of values
+     * handle trees of any depth.
+     *
+     * @param root the root of the tree
+     * @return the nodes of the tree, ending with the root
+     */
+    static Node[] postfix(Node root) {
+        List<Node> order = new ArrayList<>();
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            order.add(node);
+            Node[] operands = node instanceof Chain ? ((Chain) node).operands
+                    : node instanceof Call ? ((Call) node).arguments
+                    : null;
+            if (operands != null) {
+                for (Node operand : operands) {
+                    pending.push(operand);
+                }
+            } else if (node instanceof Negate) {
+                pending.push(((Negate) node).operand);
+            } else if (node instanceof Square) {
+                pending.push(((Square) node).operand);
+            } else if (node instanceof Cube) {
+                pending.push(((Cube) node).operand);
+            } else if (node instanceof SquareRoot) {
+                pending.push(((SquareRoot) node).operand);
+            }
+        }
+        Collections.reverse(order);
+        return order.toArray(new Node[0]);
+    }
+
+    /**
+     * Evaluates a tree from its {@link #postfix} order with a stack of
+     * values instead of recursion. The result is the same as that of
+     * {@link #eval} on the root, so trees of any depth can be evaluated.
+     *
+     * @param order the nodes of the tree in postfix order
+     * @param vars the variable values, indexed by variable position
+     * @return the value of the tree
+     */
+    static double evalPostfix(Node[] order, double[] vars) {
+        double[] stack = new double[order.length];
+        int depth = 0;
+        for (Node node : order) {
+            if (node instanceof Constant) {
+                stack[depth++] = ((Constant) node).value;
+            } else if (node instanceof Variable) {
+                stack[depth++] = vars[((Variable) node).index];
+            } else if (node instanceof Negate) {
+                stack[depth - 1] = -stack[depth - 1];
+            } else if (node instanceof Square) {
+                double x = stack[depth - 1];
+                stack[depth - 1] = x * x;
+            } else if (node instanceof Cube) {
+                double x = stack[depth - 1];
+                stack[depth - 1] = x * x * x;
+            } else if (node instanceof SquareRoot) {
+                stack[depth - 1] = SquareRoot.sqrt(stack[depth - 1]);
+            } else if (node instanceof Call) {
+                Call call = (Call) node;
+                depth -= call.arguments.length;
+                stack[depth] = call.function.function.apply(Arrays.copyOfRange(stack, depth, depth + call.arguments.length));
+                depth++;
+            } else {
+                Chain chain = (Chain) node;
+                depth -= chain.operands.length;
+                double x = stack[depth];
+                for (int i = 0; i < chain.operators.length; i++) {
+                    x = apply(chain.operators[i], x, stack[depth + i + 1]);
+                }
+                stack[depth++] = x;
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * A numeric literal.
+     */
+    static final class Constant extends Node {
+        final double value;
+
+        /** The literal as written, without whitespace, or null if it was not kept. */
+        final String literal;
+
+        Constant(double value) {
+            this(value, null);
+        }
+
+        Constant(double value, String literal) {
+            this.value = value;
+            this.literal = literal;
+        }
+
+        @Override
+        double eval(double[] vars) {
+            return value;
+        }
+
+        @Override
+        void evalBlock(double[][] columns, int row, int length, double[] dst, int offset, double[][] scratch, int depth) {
+            Arrays.fill(dst, offset, offset + length, value);
+        }
+
+        @Override
+        int scratchDepth() {
+            return 0;
+        }
+
+        @Override
+        Interval bound(Interval[] vars) {
+            return Double.isNaN(value) ? Interval.ENTIRE : new Interval(value, value);
+        }
+    }
+
+    /**
+     * A reference to a named variable, resolved to its position at parse time.
+     */
+    static final class Variable extends Node {
+        final int index;
+
+        Variable(int index) {
+            this.index = index;
+        }
+
+        @Override
+        double eval(double[] vars) {
+            return vars[index];
+        }
+
+        @Override
+        void evalBlock(double[][] columns, int row, int length, double[] dst, int offset, double[][] scratch, int depth) {
+            System.arraycopy(columns[index], row, dst, offset, length);
+        }
+
+        @Override
+        int scratchDepth() {
+            return 0;
+        }
+
+        @Override
+        Interval bound(Interval[] vars) {
+            return vars[index];
+        }
+    }
+
+    /**
+     * Unary minus.
+     */
+    static final class Negate extends Node {
+        final Node operand;
+
+        Negate(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        double eval(double[] vars) {
+            return -operand.eval(vars);
+        }
+
+        @Override
+        void evalBlock(double[][] columns, int row, int length, double[] dst, int offset, double[][] scratch, int depth) {
+            operand.evalBlock(columns, row, length, dst, offset, scratch, depth);
+            for (int i = offset, end = offset + length; i < end; i++) {
+                dst[i] = -dst[i];
+            }
+        }
+
+        @Override
+        int scratchDepth() {
+            return operand.scratchDepth();
+        }
+
+        @Override
+        Interval bound(Interval[] vars) {
+            return operand.bound(vars).negate();
+        }
+    }
+
+    /**
+     * The square of an operand, computed as {@code x * x}.
+     */
+    static final class Square extends Node {
+        final Node operand;
+
+        Square(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        double eval(double[] vars) {
+            double x = operand.eval(vars);
+            return x * x;
+        }
+
+        @Override
+        void evalBlock(double[][] columns, int row, int length, double[] dst, int offset, double[][] scratch, int depth) {
+            operand.evalBlock(columns, row, length, dst, offset, scratch, depth);
+            for (int i = offset, end = offset + length; i < end; i++) {
+                dst[i] *= dst[i];
+            }
+        }
+
+        @Override
+        int scratchDepth() {
+            return operand.scratchDepth();
+        }
+
+        @Override
+        Interval bound(Interval[] vars) {
+            return operand.bound(vars).square();
+        }
+    }
+
+    /**
+     * The cube of an operand, computed as {@code x * x * x}.
+     */
+    static final class Cube extends Node {
+        final Node operand;
+
+        Cube(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        double eval(double[] vars) {
+            double x = operand.eval(vars);
+            return x * x * x;
+        }
+
+        @Override
+        void evalBlock(double[][] columns, int row, int length, double[] dst, int offset, double[][] scratch, int depth) {
+            operand.evalBlock(columns, row, length, dst, offset, scratch, depth);
+            for (int i = offset, end = offset + length; i < end; i++) {
+                double x = dst[i];
+                dst[i] = x * x * x;
+            }
+        }
+
+        @Override
+        int scratchDepth() {
+            return operand.scratchDepth();
+        }
+
+        @Override
+        Interval bound(Interval[] vars) {
+            return operand.bound(vars).cube();
+        }
+    }
+
+    /**
+     * The square root of an operand, which must not be negative.
+     */
+    static final class SquareRoot extends Node {
+        final Node operand;
+
+        SquareRoot(Node operand) {
+            this.operand = operand;
+        }
+
+        /**
+         * Calculates a square root, refusing negative numbers.
+         * The compiled bytecode calls this method too.
+         *
+         * @param x the number
+         * @return the square root
+         * @throws IllegalArgumentException if the number is negative
+         */
+        static double sqrt(double x) {
+            if (x < 0) {
+                throw new NegativeSquareRootException();
+            }
+            return Math.sqrt(x);
+        }
+
+        @Override
+        double eval(double[] vars) {
+            return sqrt(operand.eval(vars));
+        }
+
+        @Override
+        void evalBlock(double[][] columns, int row, int length, double[] dst, int offset, double[][] scratch, int depth) {
+            operand.evalBlock(columns, row, length, dst, offset, scratch, depth);
+            for (int i = offset, end = offset + length; i < end; i++) {
+                dst[i] = sqrt(dst[i]);
+            }
+        }
+
+        @Override
+        int scratchDepth() {
+            return operand.scratchDepth();
+        }
+
+        @Override
+        Interval bound(Interval[] vars) {
+            return operand.bound(vars).sqrt();
+        }
+    }
+
+    /**
+     * A call of a user-registered function, resolved to its definition at parse time.
+     */
+    static final class Call extends Node {
+        final FunctionRegistry.Definition function;
+        final Node[] arguments;
+
+        /**
+         * Creates a call.
+         *
+         * @param function the function
+         * @param arguments the argument nodes, exactly as many as the arity of the function
+         */
+        Call(FunctionRegistry.Definition function, Node[] arguments) {
+            this.function = function;
+            this.arguments = arguments;
+        }
+
+        @Override
+        double eval(double[] vars) {
+            double[] values = new double[arguments.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = arguments[i].eval(vars);
+            }
+            return function.function.apply(values);
+        }
+
+        /**
+         * Evaluates every argument into its own scratch buffer, starting at
+         * {@code depth}, then calls the function once per row with one
+         * reused argument array.
+         */
+        @Override
+        void evalBlock(double[][] columns, int row, int length, double[] dst, int offset, double[][] scratch, int depth) {
+            for (int a = 0; a < arguments.length; a++) {
+                arguments[a].evalBlock(columns, row, length, scratch[depth + a], 0, scratch, depth + a + 1);
+            }
+            double[] values = new double[arguments.length];
+            for (int i = 0; i < length; i++) {
+                for (int a = 0; a < values.length; a++) {
+                    values[a] = scratch[depth + a][i];
+                }
+                dst[offset + i] = function.function.apply(values);
+            }
+        }
+
+        @Override
+        int scratchDepth() {
+            int depth = 0;
+            for (int a = 0; a < arguments.length; a++) {
+                depth = Math.max(depth, a + 1 + arguments[a].scratchDepth());
+            }
+            return depth;
+        }
+
+        /**
+         * Calls the function if every argument is a single number. Nothing
+         * is known about the shape of a registered function, so any wider
+         * argument gives the whole number line.
+         */
+        @Override
+        Interval bound(Interval[] vars) {
+            double[] values = new double[arguments.length];
+            for (int i = 0; i < values.length; i++) {
+                Interval argument = arguments[i].bound(vars);
+                if (!argument.isPoint()) {
+                    return Interval.ENTIRE;
+                }
+                values[i] = argument.getLower();
+            }
+            double value = function.function.apply(values);
+            return Double.isNaN(value) ? Interval.ENTIRE : new Interval(value, value);
+        }
+    }
+
+    /**
+     * A left-to-right run of operators of the same precedence level:
+     * {@code operands[0] operators[0] operands[1] operators[1] operands[2] ...}.
+     */
+    static final class Chain extends Node {
+        final Node[] operands;
+        final char[] operators;
+
+        /**
+         * Creates a chain.
+         *
+         * @param operands the operands, at least two
+         * @param operators the operators between them, one fewer than the operands
+         */
+        Chain(Node[] operands, char[] operators) {
+            this.operands = operands;
+            this.operators = operators;
+        }
+
+        @Override
+        double eval(double[] vars) {
+            double x = operands[0].eval(vars);
+            for (int i = 0; i < operators.length; i++) {
+                x = apply(operators[i], x, operands[i + 1].eval(vars));
+            }
+            return x;
+        }
+
+        /**
+         * Evaluates the first operand into {@code dst}, then folds in each
+         * further operand. Variables and constants are read straight from
+         * their column or value; any other operand is first evaluated into
+         * the scratch buffer at {@code depth}.
+         */
+        @Override
+        void evalBlock(double[][] columns, int row, int length, double[] dst, int offset, double[][] scratch, int depth) {
+            operands[0].evalBlock(columns, row, length, dst, offset, scratch, depth);
+            for (int i = 0; i < operators.length; i++) {
+                Node operand = operands[i + 1];
+                if (operand instanceof Constant) {
+                    combine(operators[i], dst, offset, ((Constant) operand).value, length);
+                } else if (operand instanceof Variable) {
+                    combine(operators[i], dst, offset, columns[((Variable) operand).index], row, length);
+                } else {
+                    double[] buffer = scratch[depth];
+                    operand.evalBlock(columns, row, length, buffer, 0, scratch, depth + 1);
+                    combine(operators[i], dst, offset, buffer, 0, length);
+                }
+            }
+        }
+
+        @Override
+        int scratchDepth() {
+            int depth = operands[0].scratchDepth();
+            for (int i = 1; i < operands.length; i++) {
+                if (!(operands[i] instanceof Constant) && !(operands[i] instanceof Variable)) {
+                    depth = Math.max(depth, 1 + operands[i].scratchDepth());
+                }
+            }
+            return depth;
+        }
+
+        @Override
+        Interval bound(Interval[] vars) {
+            Interval x = operands[0].bound(vars);
+            for (int i = 0; i < operators.length; i++) {
+                x = Interval.apply(operators[i], x, operands[i + 1].bound(vars));
+            }
+            return x;
+        }
+
+        /**
+         * Combines a block of results with a block of operand values in place.
+         * There is one loop per operator so that each loop body is a single
+         * arithmetic instruction.
+         */
+        private static void combine(char op, double[] dst, int offset, double[] src, int from, int length) {
+            switch (op) {
+                case '+':
+                    for (int i = 0; i < length; i++) dst[offset + i] += src[from + i];
+                    break;
+                case '-':
+                    for (int i = 0; i < length; i++) dst[offset + i] -= src[from + i];
+                    break;
+                case '*':
+                    for (int i = 0; i < length; i++) dst[offset + i] *= src[from + i];
+                    break;
+                default:
+                    for (int i = 0; i < length; i++) dst[offset + i] /= src[from + i];
+                    break;
+            }
+        }
+
+        /**
+         * Combines a block of results with a constant in place.
+         */
+        private static void combine(char op, double[] dst, int offset, double value, int length) {
+            switch (op) {
+                case '+':
+                    for (int i = offset, end = offset + length; i < end; i++) dst[i] += value;
+                    break;
+                case '-':
+                    for (int i = offset, end = offset + length; i < end; i++) dst[i] -= value;
+                    break;
+                case '*':
+                    for (int i = offset, end = offset + length; i < end; i++) dst[i] *= value;
+                    break;
+                default:
+                    for (int i = offset, end = offset + length; i < end; i++) dst[i] /= value;
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package school.madcalc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Simplifies an expression tree before it is evaluated many times.
+ *
+ * <p>Every rewrite keeps the result of every evaluation bit-for-bit
+ * identical, including for negative zero, infinities and NaN. The pass
+ * works bottom-up and applies:</p>
+ * <ul>
+ *   <li>constant folding: {@code -c}, the built-in functions of a
+ *       constant, such as {@code pow2(3)}, and leading runs of constants in
+ *       a chain, such as {@code 2*3*x}, become one constant; the square root
+ *       of a negative constant is kept so that it still fails when
+ *       evaluated</li>
+ *   <li>identity removal: {@code x*1}, {@code 1*x}, {@code x/1},
+ *       {@code x-0} and {@code --x} become {@code x}</li>
+ *   <li>chain flattening: a parenthesized chain at the start of a chain of the
+ *       same precedence, as in {@code (a+b)+c}, is merged into it</li>
+ *   <li>power detection: {@code x*x} becomes a square and {@code x*x*x} a
+ *       cube, so {@code x} is computed once</li>
+ * </ul>
+ *
+ * <p>Rewrites that are only true in exact arithmetic are deliberately left
+ * out. {@code x+0} is kept because it turns {@code -0.0} into {@code 0.0};
+ * {@code x*0} is kept because of infinities and NaN; and constants after the
+ * start of a chain are not combined, because {@code (x+1)+2} and
+ * {@code x+3} can round differently.</p>
+ */
+final class Optimizer {
+
+    private Optimizer() {
+    }
+
+    /**
+     * Returns a simplified tree that evaluates to exactly the same results.
+     * The nodes are rebuilt in {@link Node#postfix} order with a stack of
+     * simplified operands, so trees of any depth can be simplified. A
+     * simplified chain stays an open {@link Run} on the stack until it is
+     * used, so that flattening it into the chain around it appends to it
+     * instead of copying it, and deep runs of {@code (a+b)+c} take linear time.
+     *
+     * @param root the root of the tree
+     * @return the root of the simplified tree
+     */
+    static Node optimize(Node root) {
+        Node[] order = Node.postfix(root);
+        Node[] stack = new Node[order.length];
+        Run[] runs = new Run[order.length];
+        int depth = 0;
+        for (Node node : order) {
+            if (!(node instanceof Node.Chain)) {
+                int operands = node instanceof Node.Call ? ((Node.Call) node).arguments.length
+                        : node instanceof Node.Constant || node instanceof Node.Variable ? 0 : 1;
+                for (int k = depth - operands; k < depth; k++) {
+                    close(stack, runs, k);
+                }
+            }
+            if (node instanceof Node.Negate) {
+                Node operand = stack[depth - 1];
+                if (operand instanceof Node.Constant) {
+                    stack[depth - 1] = new Node.Constant(-((Node.Constant) operand).value);
+                } else if (operand instanceof Node.Negate) {
+                    stack[depth - 1] = ((Node.Negate) operand).operand;
+                } else {
+                    stack[depth - 1] = new Node.Negate(operand);
+                }
+            } else if (node instanceof Node.Square) {
+                Node operand = stack[depth - 1];
+                stack[depth - 1] = operand instanceof Node.Constant ? fold(new Node.Square(operand)) : new Node.Square(operand);
+            } else if (node instanceof Node.Cube) {
+                Node operand = stack[depth - 1];
+                stack[depth - 1] = operand instanceof Node.Constant ? fold(new Node.Cube(operand)) : new Node.Cube(operand);
+            } else if (node instanceof Node.SquareRoot) {
+                Node operand = stack[depth - 1];
+                if (operand instanceof Node.Constant && !(((Node.Constant) operand).value < 0)) {
+                    stack[depth - 1] = fold(new Node.SquareRoot(operand));
+                } else {
+                    stack[depth - 1] = new Node.SquareRoot(operand);
+                }
+            } else if (node instanceof Node.Call) {
+                Node.Call call = (Node.Call) node;
+                depth -= call.arguments.length;
+                Node[] arguments = Arrays.copyOfRange(stack, depth, depth + call.arguments.length);
+                stack[depth++] = new Node.Call(call.function, arguments);
+            } else if (node instanceof Node.Chain) {
+                Node.Chain chain = (Node.Chain) node;
+                depth -= chain.operands.length;
+                for (int k = depth + 1; k < depth + chain.operands.length; k++) {
+                    close(stack, runs, k);
+                }
+                Run run = optimizeChain(chain, runs[depth], Arrays.copyOfRange(stack, depth, depth + chain.operands.length));
+                runs[depth] = null;
+                if (run.operands.size() == 1) {
+                    stack[depth] = run.operands.get(0);
+                } else {
+                    stack[depth] = null;
+                    runs[depth] = run;
+                }
+                depth++;
+            } else {
+                stack[depth++] = node;
+            }
+        }
+        close(stack, runs, 0);
+        return stack[0];
+    }
+
+    /**
+     * Turns an open run on the stack of {@link #optimize} into its chain.
+     *
+     * @param stack the simplified nodes
+     * @param runs the open runs, by stack position
+     * @param k the stack position
+     */
+    private static void close(Node[] stack, Run[] runs, int k) {
+        if (runs[k] != null) {
+            stack[k] = runs[k].toChain();
+            runs[k] = null;
+        }
+    }
+
+    /**
+     * Replaces a node whose operands are all constants with its value.
+     *
+     * @param node the node, which must not fail when evaluated
+     * @return the constant
+     */
+    private static Node fold(Node node) {
+        return new Node.Constant(node.eval(new double[0]));
+    }
+
+    /**
+     * Simplifies a chain whose operands are already simplified.
+     *
+     * @param chain the chain
+     * @param firstRun the first operand if it is an open run, which is then extended; or null
+     * @param simplified the simplified operands of the chain; the first one is null if it is an open run
+     * @return the run of the simplified chain, or a run of one operand if the chain reduced to it
+     */
+    private static Run optimizeChain(Node.Chain chain, Run firstRun, Node[] simplified) {
+        boolean multiplicative = isMultiplicative(chain.operators[0]);
+        Run run;
+        Node first = firstRun != null ? null : simplified[0];
+        if (firstRun != null && firstRun.multiplicative == multiplicative) {
+            run = firstRun;
+        } else if (first instanceof Node.Chain && isMultiplicative(((Node.Chain) first).operators[0]) == multiplicative) {
+            Node.Chain inner = (Node.Chain) first;
+            run = new Run(multiplicative);
+            run.operands.add(inner.operands[0]);
+            for (int i = 0; i < inner.operators.length; i++) {
+                run.operators.append(inner.operators[i]);
+                run.operands.add(inner.operands[i + 1]);
+            }
+        } else {
+            run = new Run(multiplicative);
+            run.operands.add(firstRun != null ? firstRun.toChain() : first);
+        }
+        List<Node> operands = run.operands;
+        StringBuilder operators = run.operators;
+        for (int i = 0; i < chain.operators.length; i++) {
+            Node operand = simplified[i + 1];
+            char op = chain.operators[i];
+            if (isIdentity(op, operand)) {
+                continue;
+            }
+            if (operands.size() == 1 && operands.get(0) instanceof Node.Constant && operand instanceof Node.Constant) {
+                double folded = Node.apply(op, ((Node.Constant) operands.get(0)).value, ((Node.Constant) operand).value);
+                operands.set(0, new Node.Constant(folded));
+                continue;
+            }
+            if (operands.size() == 1 && op == '*' && isConstant(operands.get(0), 1.0)) {
+                operands.set(0, operand);
+                continue;
+            }
+            operators.append(op);
+            operands.add(operand);
+        }
+
+        if (multiplicative) {
+            detectPowers(operands, operators);
+        }
+        return run;
+    }
+
+    /**
+     * Replaces a leading {@code x*x*x} or {@code x*x} of a product chain with a cube or square;
+     * a leading {@code (x*x)*x}, where the parenthesized part is already a square, also becomes a cube.
+     * Only the start of the chain qualifies, because {@code a*x*x} means {@code (a*x)*x}.
+     *
+     * @param operands the operands of the chain, updated in place
+     * @param operators the operators of the chain, updated in place
+     */
+    private static void detectPowers(List<Node> operands, StringBuilder operators) {
+        if (operands.size() >= 2 && operators.charAt(0) == '*' && operands.get(0) instanceof Node.Square
+                && same(((Node.Square) operands.get(0)).operand, operands.get(1))) {
+            Node x = operands.get(1);
+            operands.subList(0, 2).clear();
+            operators.delete(0, 1);
+            operands.add(0, new Node.Cube(x));
+            return;
+        }
+        if (operands.size() < 2 || operators.charAt(0) != '*' || !same(operands.get(0), operands.get(1))) {
+            return;
+        }
+        Node x = operands.get(0);
+        if (operands.size() >= 3 && operators.charAt(1) == '*' && same(x, operands.get(2))) {
+            operands.subList(0, 3).clear();
+            operators.delete(0, 2);
+            operands.add(0, new Node.Cube(x));
+        } else {
+            operands.subList(0, 2).clear();
+            operators.delete(0, 1);
+            operands.add(0, new Node.Square(x));
+        }
+    }
+
+    /**
+     * Checks whether applying an operator with an operand leaves any value unchanged.
+     *
+     * @param op the operator
+     * @param operand the right-hand operand
+     * @return true for {@code *1}, {@code /1}, {@code -0} and {@code +(-0)}
+     */
+    private static boolean isIdentity(char op, Node operand) {
+        if (!(operand instanceof Node.Constant)) {
+            return false;
+        }
+        long bits = Double.doubleToRawLongBits(((Node.Constant) operand).value);
+        switch (op) {
+            case '*':
+            case '/':
+                return bits == Double.doubleToRawLongBits(1.0);
+            case '-':
+                return bits == Double.doubleToRawLongBits(0.0);
+            default:
+                return bits == Double.doubleToRawLongBits(-0.0);
+        }
+    }
+
+    private static boolean isMultiplicative(char op) {
+        return op == '*' || op == '/';
+    }
+
+    private static boolean isConstant(Node node, double value) {
+        return node instanceof Node.Constant
+                && Double.doubleToRawLongBits(((Node.Constant) node).value) == Double.doubleToRawLongBits(value);
+    }
+
+    /**
+     * Checks whether two subtrees compute the same formula. Evaluation has no
+     * side effects, so structurally equal trees always have equal values.
+     * Pairs of nodes still to compare are kept on a stack, so any depth works.
+     * Calls of user-registered functions are never considered the same,
+     * because nothing guarantees that those functions have no side effects.
+     *
+     * @param a the first tree
+     * @param b the second tree
+     * @return true if the trees are structurally equal
+     */
+    static boolean same(Node a, Node b) {
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(a);
+        pending.push(b);
+        while (!pending.isEmpty()) {
+            Node y = pending.pop(), x = pending.pop();
+            if (x == y) {
+                continue;
+            }
+            if (x.getClass() != y.getClass()) {
+                return false;
+            }
+            if (x instanceof Node.Constant) {
+                if (Double.doubleToRawLongBits(((Node.Constant) x).value) != Double.doubleToRawLongBits(((Node.Constant) y).value)) {
+                    return false;
+                }
+            } else if (x instanceof Node.Variable) {
+                if (((Node.Variable) x).index != ((Node.Variable) y).index) {
+                    return false;
+                }
+            } else if (x instanceof Node.Negate) {
+                pending.push(((Node.Negate) x).operand);
+                pending.push(((Node.Negate) y).operand);
+            } else if (x instanceof Node.Square) {
+                pending.push(((Node.Square) x).operand);
+                pending.push(((Node.Square) y).operand);
+            } else if (x instanceof Node.Cube) {
+                pending.push(((Node.Cube) x).operand);
+                pending.push(((Node.Cube) y).operand);
+            } else if (x instanceof Node.SquareRoot) {
+                pending.push(((Node.SquareRoot) x).operand);
+                pending.push(((Node.SquareRoot) y).operand);
+            } else if (x instanceof Node.Chain) {
+                Node.Chain p = (Node.Chain) x, q = (Node.Chain) y;
+                if (p.operands.length != q.operands.length || !Arrays.equals(p.operators, q.operators)) {
+                    return false;
+                }
+                for (int i = 0; i < p.operands.length; i++) {
+                    pending.push(p.operands[i]);
+                    pending.push(q.operands[i]);
+                }
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The operands and operators of a simplified chain that may still be
+     * extended by the chain around it.
+     */
+    private static final class Run {
+        final List<Node> operands = new ArrayList<>();
+        final StringBuilder operators = new StringBuilder();
+        final boolean multiplicative;
+
+        Run(boolean multiplicative) {
+            this.multiplicative = multiplicative;
+        }
+
+        /**
+         * Builds the chain, or returns the only operand.
+         *
+         * @return the node
+         */
+        Node toChain() {
+            if (operands.size() == 1) {
+                return operands.get(0);
+            }
+            return new Node.Chain(operands.toArray(new Node[0]), operators.toString().toCharArray());
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package school.madcalc;
+
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.file.Path;
+
+/**
+ * Command-line options of the Mad Calc application.
+ *
+ * <p>Without any options Mad Calc runs the interactive session. The
+ * following options are recognized:</p>
+ * <ul>
+ *   <li>{@code --batch <file>} - evaluate every line of a file without prompts</li>
+ *   <li>{@code --out <file>} - write batch results to a file instead of standard output</li>
+ *   <li>{@code --threads <n>} - evaluate a batch on n worker threads</li>
+ *   <li>{@code --serve <port>} - answer HTTP requests instead of reading standard input</li>
+ *   <li>{@code --daemon <socket>} - stay running and answer connections on a Unix domain socket</li>
+ *   <li>{@code --client <socket>} - send standard input to a running daemon and print its answers</li>
+ *   <li>{@code --cache <n>} - remember up to n answers for repeated inputs</li>
+ *   <li>{@code --cache-policy <lru|tinylfu>} - how the cache chooses what to forget</li>
+ *   <li>{@code --precision <double|long|decimal[:digits]|rational>} - how numbers are represented</li>
+ *   <li>{@code --stats} - count answers and time them, published over JMX and summarized on exit</li>
+ * </ul>
+ */
+final class Options {
+    /** The usage text printed when the options cannot be understood. */
+    static final String USAGE = "Usage: madcalc [--batch <input file> [--out <output file>] [--threads <n>] | --serve <port> | --daemon <socket> | --client <socket>] [--cache <n> [--cache-policy lru|tinylfu]] [--precision double|long|decimal[:<digits>]|rational] [--stats]";
+
+    /** The file to evaluate in batch mode, or null for the interactive session. */
+    Path batchInput;
+
+    /** The file batch results are written to, or null for standard output. */
+    Path batchOutput;
+
+    /** The number of worker threads used in batch mode. */
+    int threads = 1;
+
+    /** The HTTP port to serve on, or -1 when not serving. */
+    int servePort = -1;
+
+    /** The Unix domain socket to listen on as a daemon, or null when not a daemon. */
+    Path daemonSocket;
+
+    /** The Unix domain socket of the daemon to forward standard input to, or null when not a client. */
+    Path clientSocket;
+
+    /** The maximum number of cached answers, or 0 when caching is off. */
+    int cacheSize;
+
+    /** The eviction policy of the answer cache. */
+    ResultCache.Policy cachePolicy = ResultCache.Policy.LRU;
+
+    /** The exact number representation, or null for binary floating point. */
+    PreciseCalculator.Backend precision;
+
+    /** The rounding of the decimal representation; 34 digits, half-even by default. */
+    MathContext decimalContext = MathContext.DECIMAL128;
+
+    /** Whether answers are counted and timed. */
+    boolean stats;
+
+    /**
+     * Parses command-line arguments.
+     *
+     * @param args the command-line arguments
+     * @return the parsed options
+     * @throws IllegalArgumentException if an option is unknown, is missing its value, or is used without the option it belongs to
+     */
+    static Options parse(String[] args) {
+        Options options = new Options();
+        boolean policyGiven = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--batch":
+                    options.batchInput = Path.of(value(args, ++i, "--batch"));
+                    break;
+                case "--out":
+                    options.batchOutput = Path.of(value(args, ++i, "--out"));
+                    break;
+                case "--threads":
+                    options.threads = positive(value(args, ++i, "--threads"), "--threads");
+                    break;
+                case "--serve":
+                    options.servePort = port(value(args, ++i, "--serve"));
+                    break;
+                case "--daemon":
+                    options.daemonSocket = Path.of(value(args, ++i, "--daemon"));
+                    break;
+                case "--client":
+                    options.clientSocket = Path.of(value(args, ++i, "--client"));
+                    break;
+                case "--cache":
+                    options.cacheSize = positive(value(args, ++i, "--cache"), "--cache");
+                    break;
+                case "--cache-policy":
+                    options.cachePolicy = policy(value(args, ++i, "--cache-policy"));
+                    policyGiven = true;
+                    break;
+                case "--precision":
+                    options.precision(value(args, ++i, "--precision"));
+                    break;
+                case "--stats":
+                    options.stats = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        int modes = (options.batchInput != null ? 1 : 0) + (options.servePort >= 0 ? 1 : 0)
+                + (options.daemonSocket != null ? 1 : 0) + (options.clientSocket != null ? 1 : 0);
+        if (modes > 1) {
+            throw new IllegalArgumentException("Only one of --batch, --serve, --daemon and --client can be used");
+        }
+        if (options.batchOutput != null && options.batchInput == null) {
+            throw new IllegalArgumentException("--out can only be used together with --batch");
+        }
+        if (options.threads != 1 && options.batchInput == null) {
+            throw new IllegalArgumentException("--threads can only be used together with --batch");
+        }
+        if (policyGiven && options.cacheSize == 0) {
+            throw new IllegalArgumentException("--cache-policy can only be used together with --cache");
+        }
+        return options;
+    }
+
+    /**
+     * Parses a cache policy name.
+     *
+     * @param value the option value
+     * @return the cache policy
+     * @throws IllegalArgumentException if the policy name is unknown
+     */
+    private static ResultCache.Policy policy(String value) {
+        switch (value.toLowerCase()) {
+            case "lru":
+                return ResultCache.Policy.LRU;
+            case "tinylfu":
+                return ResultCache.Policy.TINY_LFU;
+            default:
+                throw new IllegalArgumentException("--cache-policy must be lru or tinylfu, got: " + value);
+        }
+    }
+
+    /**
+     * Parses a number representation: {@code double}, {@code long},
+     * {@code rational}, or {@code decimal} with an optional number of
+     * significant digits, where {@code decimal:0} means unlimited.
+     *
+     * @param value the option value
+     * @throws IllegalArgumentException if the representation is unknown or the digits are not a whole number
+     */
+    private void precision(String value) {
+        String lower = value.toLowerCase();
+        String digits = null;
+        int colon = lower.indexOf(':');
+        if (colon >= 0) {
+            digits = lower.substring(colon + 1);
+            lower = lower.substring(0, colon);
+        }
+        switch (lower) {
+            case "double":
+                precision = null;
+                break;
+            case "long":
+                precision = PreciseCalculator.Backend.LONG;
+                break;
+            case "rational":
+                precision = PreciseCalculator.Backend.RATIONAL;
+                break;
+            case "decimal":
+                precision = PreciseCalculator.Backend.DECIMAL;
+                if (digits != null) {
+                    try {
+                        decimalContext = new MathContext(Integer.parseInt(digits), RoundingMode.HALF_EVEN);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("--precision decimal needs a whole number of digits, got: " + digits);
+                    }
+                    return;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("--precision must be double, long, decimal or rational, got: " + value);
+        }
+        if (digits != null) {
+            throw new IllegalArgumentException("Only --precision decimal takes a number of digits, got: " + value);
+        }
+    }
+
+    /**
+     * Returns the value that follows an option.
+     *
+     * @param args the command-line arguments
+     * @param i the position of the value
+     * @param option the option the value belongs to
+     * @return the option value
+     * @throws IllegalArgumentException if the value is missing
+     */
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    /**
+     * Parses a positive whole number option value.
+     *
+     * @param value the option value
+     * @param option the option the value belongs to
+     * @return the parsed number
+     * @throws IllegalArgumentException if the value is not a positive whole number
+     */
+    private static int positive(String value, String option) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(option + " needs a positive whole number, got: " + value);
+    }
+
+    /**
+     * Parses a TCP port number.
+     *
+     * @param value the option value
+     * @return the port, between 0 and 65535
+     * @throws IllegalArgumentException if the value is not a valid port
+     */
+    private static int port(String value) {
+        try {
+            int port = Integer.parseInt(value);
+            if (port >= 0 && port <= 65535) {
+                return port;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("--serve needs a port number between 0 and 65535, got: " + value);
+    }
+}
@@ -0,0 +1,597 @@
+package school.madcalc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parser that turns a mathematical expression into an immutable
+ * {@link Node} tree, or evaluates it directly without building one.
+ *
+ * <p>This parser handles operator precedence and parentheses
+ * using the following grammar:</p>
+ * <ul>
+ *   <li>expression = term | expression `+` term | expression `-` term</li>
+ *   <li>term = factor | term `*` factor | term `/` factor</li>
+ *   <li>factor = `+` factor | `-` factor | number | variable | `(` expression `)`
+ *       | function `(` expression { `,` expression } `)`</li>
+ * </ul>
+ *
+ * <p>Function names come from a {@link FunctionRegistry} and are resolved
+ * to their definitions while reading, so neither the tree nor evaluation
+ * ever compares names. A one-argument function may also start the input
+ * without parentheses, as in {@code sqrt 9+7}; it then applies to the rest
+ * of the input, like the {@code sqrt <number>} command always did.</p>
+ *
+ * <p>The grammar is not parsed by recursion. A single loop alternates
+ * between reading an operand and reading an operator, and keeps one
+ * {@link Frame} per open parenthesis, so the Java call stack stays flat for
+ * any nesting depth and memory grows only with the number of open
+ * parentheses or function call. Runs of unary signs such as {@code ----5}
+ * are reduced to their parity while reading, so they cost neither frames
+ * nor nodes.</p>
+ *
+ * <p>A variable is a name made of letters, digits and underscores that starts
+ * with a letter. Unlike a number, a name ends at the first whitespace, so
+ * that {@code sqrt 16} is a function followed by its argument. Only function names and the names passed to the constructor
+ * are accepted; any other name is reported as an unexpected character,
+ * exactly like before variables existed.</p>
+ */
+class Parser {
+    /** Largest mantissa that can take one more digit and still be exactly representable as a double. */
+    private static final long FAST_PATH_MANTISSA_LIMIT = 900_719_925_474_099L;
+
+    /** Exactly representable powers of ten used by the fast number path. */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private CharSequence input;
+    private String[] variables;
+    private FunctionRegistry functions = FunctionRegistry.BUILT_INS;
+    /** The position of the first character that is not whitespace. */
+    private int start;
+    private final StringBuilder token = new StringBuilder();
+    private int pos = -1, ch;
+
+    /** Whether {@link #run} builds a tree for {@link #parse} or computes values for {@link #evaluate}. */
+    private boolean buildTree;
+    /** Whether constants keep the text of their literal, see {@link #keepingLiterals()}. */
+    private boolean keepLiterals;
+    /** Whether unknown names become new variables, see {@link #declaringVariables()}. */
+    private boolean declareVariables;
+    private double[] values;
+    /** The outermost frame of {@link #evaluate}, kept with its nested frames for the next input. */
+    private Frame evaluationFrame;
+    /** Whether an {@link Evaluator} is using this parser, so that a function calling it back gets another one. */
+    boolean busy;
+
+    /** The operand read last: a value when evaluating, a node when building a tree. */
+    private double value;
+    private Node node;
+
+    /**
+     * Constructs a new Parser for the given input expression.
+     * Whitespace is skipped while reading, so the input is never copied.
+     *
+     * @param input the mathematical expression to parse
+     * @param variables the variable names the expression may refer to
+     */
+    Parser(CharSequence input, String... variables) {
+        this.variables = variables;
+        reset(input);
+    }
+
+    /**
+     * Starts over with another input. The buffers and nesting frames of
+     * earlier evaluations are kept, so evaluating many inputs with one
+     * parser allocates nothing once the deepest nesting has been seen.
+     * The variables and options stay as they are.
+     *
+     * @param input the mathematical expression to parse next
+     * @return this parser
+     */
+    Parser reset(CharSequence input) {
+        this.input = input;
+        pos = -1;
+        nextChar();
+        start = pos;
+        return this;
+    }
+
+    /**
+     * Advances to the next non-whitespace character in the input.
+     * Sets ch to -1 when the end of input is reached.
+     */
+    void nextChar() {
+        do {
+            ch = (++pos < input.length()) ? input.charAt(pos) : -1;
+        } while (isWhitespace(ch));
+    }
+
+    /**
+     * Checks for the whitespace characters ignored between and inside tokens:
+     * space, tab, line feed, vertical tab, form feed and carriage return.
+     *
+     * @param c the character to check
+     * @return true if the character is ignored
+     */
+    static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Attempts to consume a specific character from the input.
+     *
+     * @param charToEat the character to consume
+     * @return true if the character was consumed, false otherwise
+     */
+    boolean eat(int charToEat) {
+        if (ch == charToEat) {
+            nextChar();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Makes {@link #parse} store the text of every numeric literal in its
+     * constant node, for evaluators that must not see the rounded double.
+     *
+     * @return this parser
+     */
+    Parser keepingLiterals() {
+        keepLiterals = true;
+        return this;
+    }
+
+    /**
+     * Makes {@link #parse} accept any name, declaring each unknown one as the
+     * next variable. The names are available from {@link #variables()}
+     * after parsing.
+     *
+     * @return this parser
+     */
+    Parser declaringVariables() {
+        declareVariables = true;
+        return this;
+    }
+
+    /**
+     * Makes the parser resolve function names in a registry instead of
+     * accepting only the built-in functions.
+     *
+     * @param functions the functions the expression may call
+     * @return this parser
+     */
+    Parser usingFunctions(FunctionRegistry functions) {
+        this.functions = functions;
+        return this;
+    }
+
+    /**
+     * Returns the variable names, including those declared while parsing.
+     *
+     * @return the variable names, in the order of their positions
+     */
+    String[] variables() {
+        return variables.clone();
+    }
+
+    /**
+     * Parses the entire expression.
+     *
+     * @return the root of the expression tree
+     * @throws ExpressionException if parentheses are mismatched or unexpected characters are found
+     */
+    Node parse() {
+        buildTree = true;
+        run();
+        return node;
+    }
+
+    /**
+     * Evaluates the entire expression while reading it, without building a tree.
+     * The result is bit-for-bit the value the parsed tree would evaluate to.
+     *
+     * @param values the variable values, indexed by variable position
+     * @return the value of the expression
+     * @throws ExpressionException if parentheses are mismatched or unexpected characters are found
+     */
+    double evaluate(double[] values) {
+        this.values = values;
+        run();
+        return value;
+    }
+
+    /**
+     * Reads the whole input. Each pass of the outer loop reads one operand,
+     * after any unary signs, or opens a parenthesis or function call; the
+     * inner loop then reads operators, closing finished terms, expressions,
+     * arguments and parentheses, until an operator that needs another
+     * operand is found.
+     *
+     * <p>The errors are the same as those of a recursive descent parser:
+     * a missing operand or an unknown character is unexpected, a nested
+     * expression that is not followed by {@code )} has mismatched
+     * parentheses, and anything left over at the top level, including a
+     * {@code )} without a matching {@code (}, is unexpected. A call with
+     * the wrong number of arguments is reported as such.</p>
+     *
+     * @throws ExpressionException if parentheses are mismatched, unexpected characters are found
+     *         or a function gets the wrong number of arguments
+     */
+    private void run() {
+        Frame frame;
+        if (buildTree) {
+            frame = new Frame(null, true);
+        } else {
+            if (evaluationFrame == null) evaluationFrame = new Frame(null, false);
+            frame = evaluationFrame;
+            frame.addOp = frame.mulOp = 0;
+        }
+        while (true) {
+            boolean negate = false;
+            while (true) {
+                if (eat('-')) negate = !negate;
+                else if (!eat('+')) break;
+            }
+            if (eat('(')) {
+                frame = frame.open(negate, null, false);
+                continue;
+            }
+            int operandStart = pos;
+            FunctionRegistry.Definition function = readOperand(negate);
+            if (function != null) {
+                if (eat('(')) {
+                    frame = frame.open(negate, function, false);
+                } else if (operandStart == start && function.arity == 1) {
+                    frame = frame.open(false, function, true);
+                } else {
+                    throw unexpected();
+                }
+                continue;
+            }
+            while (true) {
+                addFactor(frame);
+                if (ch == '*' || ch == '/') {
+                    frame.mulOp = (char) ch;
+                    nextChar();
+                    break;
+                }
+                addTerm(frame);
+                if (ch == '+' || ch == '-') {
+                    frame.addOp = (char) ch;
+                    nextChar();
+                    break;
+                }
+                closeExpression(frame);
+                if (frame.function != null && !frame.command && ch == ',') {
+                    if (frame.arguments == frame.function.arity - 1) throw wrongNumberOfArguments(frame, position());
+                    addArgument(frame);
+                    nextChar();
+                    break;
+                }
+                if (frame.parent == null) {
+                    if (ch != -1) throw unexpected();
+                    return;
+                }
+                int close = position();
+                if (frame.command) {
+                    if (ch != -1) throw unexpected();
+                } else if (!eat(')')) {
+                    throw error(ExpressionException.ErrorCode.MISMATCHED_PARENTHESES, position(), "Mismatched parentheses");
+                }
+                if (frame.function != null) callFunction(frame, close);
+                if (frame.negate) negateOperand();
+                frame = frame.parent;
+            }
+        }
+    }
+
+    /**
+     * Reads a number or a declared variable into the current operand, or
+     * the name of a function.
+     *
+     * @param negate whether an odd number of unary minus signs preceded the operand
+     * @return the function if a function name was read, which leaves the
+     *         operand and the sign to the caller, otherwise null
+     * @throws ExpressionException if no operand starts at the current character
+     */
+    private FunctionRegistry.Definition readOperand(boolean negate) {
+        if ((ch >= '0' && ch <= '9') || ch == '.') { // numbers
+            int start = pos;
+            double number = parseNumber();
+            if (buildTree) node = new Node.Constant(number, keepLiterals ? literal(start) : null);
+            else value = number;
+        } else if (Character.isLetter(ch)) { // variables and functions
+            int first = ch, firstPos = pos;
+            token.setLength(0);
+            int end = pos;
+            char c;
+            while (end < input.length() && (Character.isLetterOrDigit(c = input.charAt(end)) || c == '_')) {
+                token.append(c);
+                end++;
+            }
+            pos = end - 1;
+            nextChar();
+            FunctionRegistry.Definition function = functions.lookup(token);
+            if (function != null) return function;
+            int index = indexOf(token);
+            if (index < 0 && declareVariables) {
+                index = variables.length;
+                variables = Arrays.copyOf(variables, index + 1);
+                variables[index] = token.toString();
+            }
+            if (index < 0) throw error(ExpressionException.ErrorCode.UNEXPECTED, firstPos, "Unexpected: " + (char)first);
+            if (buildTree) node = new Node.Variable(index);
+            else value = values[index];
+        } else {
+            throw unexpected();
+        }
+        if (negate) negateOperand();
+        return null;
+    }
+
+    /**
+     * Stores the current operand as the next argument of a function call.
+     *
+     * @param frame the frame of the call, which has room for one more argument
+     */
+    private void addArgument(Frame frame) {
+        if (buildTree) frame.argumentNodes[frame.arguments++] = node;
+        else frame.argumentValues[frame.arguments++] = value;
+    }
+
+    /**
+     * Takes the current operand as the last argument of a function call and
+     * replaces it with the call.
+     *
+     * @param frame the frame of the call
+     * @param end the position of the {@code )} that closes the call, or the input length for a command
+     * @throws ExpressionException if the call has fewer arguments than the function takes
+     */
+    private void callFunction(Frame frame, int end) {
+        addArgument(frame);
+        if (frame.arguments != frame.function.arity) {
+            throw wrongNumberOfArguments(frame, end);
+        }
+        if (buildTree) node = frame.function.node(frame.argumentNodes);
+        else value = frame.function.function.apply(frame.argumentValues);
+    }
+
+    /**
+     * Returns the position of the current character, or the input length at its end.
+     *
+     * @return the zero-based position
+     */
+    private int position() {
+        return Math.min(pos, input.length());
+    }
+
+    /**
+     * Creates the error for a character that cannot come next.
+     *
+     * @return the error, for the caller to throw
+     */
+    private ExpressionException unexpected() {
+        return error(ExpressionException.ErrorCode.UNEXPECTED, position(), "Unexpected: " + (char)ch);
+    }
+
+    /**
+     * Creates the error for a call whose argument count does not match its function.
+     *
+     * @param frame the frame of the call
+     * @param position the position of the {@code ,} or {@code )} that revealed it
+     * @return the error, for the caller to throw
+     */
+    private static ExpressionException wrongNumberOfArguments(Frame frame, int position) {
+        return error(ExpressionException.ErrorCode.WRONG_NUMBER_OF_ARGUMENTS, position,
+                "Wrong number of arguments for " + frame.function.name + ": expected " + frame.function.arity);
+    }
+
+    private static ExpressionException error(ExpressionException.ErrorCode code, int position, String message) {
+        return new ExpressionException(code, position, message);
+    }
+
+    /**
+     * Negates the current operand. Negating a negation removes it instead,
+     * which gives the same value because negation only flips the sign bit.
+     */
+    private void negateOperand() {
+        if (!buildTree) value = -value;
+        else if (node instanceof Node.Negate) node = ((Node.Negate) node).operand;
+        else node = new Node.Negate(node);
+    }
+
+    /**
+     * Applies the pending multiplicative operator of a frame to the current operand.
+     *
+     * @param frame the current nesting level
+     */
+    private void addFactor(Frame frame) {
+        if (buildTree) frame.factors.add(frame.mulOp, node);
+        else frame.product = frame.mulOp == 0 ? value : Node.apply(frame.mulOp, frame.product, value);
+    }
+
+    /**
+     * Ends the current term of a frame and applies the pending additive operator to it.
+     *
+     * @param frame the current nesting level
+     */
+    private void addTerm(Frame frame) {
+        if (buildTree) frame.terms.add(frame.addOp, frame.factors.build());
+        else frame.sum = frame.addOp == 0 ? frame.product : Node.apply(frame.addOp, frame.sum, frame.product);
+        frame.mulOp = 0;
+    }
+
+    /**
+     * Ends the expression of a frame and makes its result the current operand.
+     *
+     * @param frame the current nesting level
+     */
+    private void closeExpression(Frame frame) {
+        if (buildTree) node = frame.terms.build();
+        else value = frame.sum;
+        frame.addOp = 0;
+    }
+
+    /**
+     * Reads a numeric literal directly from the input characters.
+     *
+     * <p>Plain decimal literals whose digits fit in 53 bits and that have at
+     * most 22 fractional digits are converted exactly by a single division of
+     * two exactly representable doubles, which gives the same correctly
+     * rounded result as {@link Double#parseDouble(String)}. Other valid
+     * literals fall back to {@code Double.parseDouble}, so values stay
+     * identical. Malformed literals such as {@code 1.2.3} or a lone point
+     * are reported without ever being converted.</p>
+     *
+     * @return the value of the literal
+     * @throws ExpressionException if the literal is malformed, at the offset of its first character
+     */
+    private double parseNumber() {
+        long mantissa = 0;
+        int scale = 0;
+        boolean digits = false, point = false, exact = true, malformed = false;
+        int startPos = pos;
+        while ((ch >= '0' && ch <= '9') || ch == '.') {
+            if (ch == '.') {
+                if (point) malformed = true;
+                point = true;
+            } else {
+                digits = true;
+                if (mantissa < FAST_PATH_MANTISSA_LIMIT) {
+                    mantissa = mantissa * 10 + (ch - '0');
+                    if (point) scale++;
+                } else {
+                    exact = false;
+                }
+            }
+            nextChar();
+        }
+        if (malformed || !digits) {
+            throw error(ExpressionException.ErrorCode.MALFORMED_NUMBER, startPos, "Malformed number: " + literal(startPos));
+        }
+        if (exact && scale < POWERS_OF_TEN.length) {
+            return scale == 0 ? (double) mantissa : mantissa / POWERS_OF_TEN[scale];
+        }
+        return Double.parseDouble(literal(startPos));
+    }
+
+    /**
+     * Returns the literal that was just read, without the whitespace inside it.
+     *
+     * @param start the position of the first character of the literal
+     * @return the literal text
+     */
+    private String literal(int start) {
+        token.setLength(0);
+        for (int i = start; i < pos && i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (!isWhitespace(c)) token.append(c);
+        }
+        return token.toString();
+    }
+
+    /**
+     * Looks up the position of a declared variable.
+     *
+     * @param name the variable name
+     * @return the position of the variable, or -1 if it was not declared
+     */
+    private int indexOf(CharSequence name) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].contentEquals(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * The state of one nesting level: the expression and the term being
+     * accumulated, the operators waiting for their right-hand operand and,
+     * inside a function call, the arguments read so far. A closed frame is
+     * kept and reused for the next parenthesis at the same depth.
+     */
+    private static final class Frame {
+        final Frame parent;
+        Frame child;
+        /** Whether the value of this level is negated when it becomes an operand of the parent. */
+        boolean negate;
+        /** The function this level is the argument list of, or null for a plain parenthesis. */
+        FunctionRegistry.Definition function;
+        /** Whether the function was written without parentheses and takes the rest of the input. */
+        boolean command;
+        /** The arguments read so far; the values are reused between calls, the nodes end up in the tree. */
+        int arguments;
+        double[] argumentValues;
+        Node[] argumentNodes;
+        /** The operators waiting for an operand, or 0 before the first term or factor. */
+        char addOp, mulOp;
+        /** The running values when evaluating. */
+        double sum, product;
+        /** The collected operands when building a tree, otherwise null. */
+        final ChainBuilder terms, factors;
+
+        Frame(Frame parent, boolean buildTree) {
+            this.parent = parent;
+            this.terms = buildTree ? new ChainBuilder() : null;
+            this.factors = buildTree ? new ChainBuilder() : null;
+        }
+
+        /**
+         * Returns the frame for a parenthesis or function call opened at this level.
+         *
+         * @param negate whether the parenthesized value is negated
+         * @param function the function called, or null for a plain parenthesis
+         * @param command whether the function takes the rest of the input instead of a parenthesis
+         * @return the nested frame
+         */
+        Frame open(boolean negate, FunctionRegistry.Definition function, boolean command) {
+            if (child == null) child = new Frame(this, terms != null);
+            child.negate = negate;
+            child.function = function;
+            child.command = command;
+            child.arguments = 0;
+            child.addOp = child.mulOp = 0;
+            if (function != null) {
+                if (terms != null) child.argumentNodes = new Node[function.arity];
+                else if (child.argumentValues == null || child.argumentValues.length != function.arity) child.argumentValues = new double[function.arity];
+            }
+            return child;
+        }
+    }
+
+    /**
+     * Collects the operands and operators of one chain and can be reused after building it.
+     */
+    private static final class ChainBuilder {
+        private final List<Node> operands = new ArrayList<>();
+        private final StringBuilder operators = new StringBuilder();
+
+        /**
+         * Appends an operand.
+         *
+         * @param op the operator before the operand, or 0 for the first operand
+         * @param operand the operand
+         */
+        void add(char op, Node operand) {
+            if (op != 0) operators.append(op);
+            operands.add(operand);
+        }
+
+        /**
+         * Builds the single operand or a chain of all operands, and clears the builder.
+         *
+         * @return the node
+         */
+        Node build() {
+            Node x = operands.size() == 1 ? operands.get(0)
+                    : new Node.Chain(operands.toArray(new Node[0]), operators.toString().toCharArray());
+            operands.clear();
+            operators.setLength(0);
+            return x;
+        }
+    }
+}
@@ -0,0 +1,541 @@
+package school.madcalc;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * Calculates answers exactly instead of in binary floating point, so that
+ * {@code 0.1+0.2} is {@code 0.3} and large whole numbers do not lose digits.
+ *
+ * <p>Three backends can be chosen with {@code --precision}:</p>
+ * <ul>
+ *   <li>{@link Backend#LONG} - whole numbers in 64 bits; an overflow or a
+ *       fractional value is reported as an error instead of rounded</li>
+ *   <li>{@link Backend#DECIMAL} - decimal numbers rounded to a
+ *       {@link MathContext}, or exact with an unlimited context</li>
+ *   <li>{@link Backend#RATIONAL} - exact fractions such as {@code 1/3}</li>
+ * </ul>
+ *
+ * <p>Every backend first evaluates the expression on a fast path that holds
+ * each value as a {@code long} with a decimal scale, using overflow-checked
+ * arithmetic. Most everyday inputs, whole amounts or amounts with a few
+ * decimals, finish there without allocating a single big number. Only when
+ * the fast path detects an overflow, a division that does not come out
+ * even, or a result the decimal context would have to round, is the
+ * expression evaluated again with {@link BigDecimal} or with big-integer
+ * fractions. Both paths give the same value, so the retry is invisible.</p>
+ *
+ * <p>Instances are immutable and can be shared between threads.</p>
+ */
+final class PreciseCalculator {
+
+    /**
+     * The number representation used for answers.
+     */
+    enum Backend {
+        /** Exact 64-bit whole numbers. */
+        LONG,
+        /** Decimal numbers with the precision of a {@link MathContext}. */
+        DECIMAL,
+        /** Exact fractions of arbitrarily large whole numbers. */
+        RATIONAL
+    }
+
+    /** The powers of ten that fit in a long, used to align decimal scales. */
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /** The largest whole number whose square fits in a long. */
+    private static final long MAX_LONG_ROOT = 3_037_000_499L;
+
+    private static final Promote OVERFLOW = new Promote("Integer overflow");
+    private static final Promote NOT_AN_INTEGER = new Promote("Not an integer");
+    private static final Promote DIVISION_BY_ZERO = new Promote("Division by zero");
+
+    private static final String[] NO_VARIABLES = {};
+
+    private final Backend backend;
+    private final MathContext context;
+
+    /** Magnitude at which a fast-path result would need rounding, or 0 if none would. */
+    private final long roundingLimit;
+
+    /**
+     * Creates a calculator.
+     *
+     * @param backend the number representation
+     * @param context the rounding of the decimal backend; ignored by the others
+     */
+    PreciseCalculator(Backend backend, MathContext context) {
+        this.backend = backend;
+        this.context = context;
+        int digits = context.getPrecision();
+        this.roundingLimit = backend == Backend.DECIMAL && digits > 0 && digits < POWERS_OF_TEN.length
+                ? POWERS_OF_TEN[digits] : 0;
+    }
+
+    /**
+     * Calculates the answer for one input line: an arithmetic expression,
+     * which may call the special functions, or a special function command.
+     * Square roots are exact in the long and rational backends, which
+     * report roots that are not whole or rational numbers as errors, and
+     * rounded to the context in the decimal backend.
+     *
+     * @param input the input line
+     * @return the exact answer, as a whole number, a plain decimal or a fraction
+     * @throws IllegalArgumentException if the square root of a negative number is requested
+     * @throws ArithmeticException if the answer cannot be represented by the backend
+     * @throws RuntimeException if the expression is invalid or contains mismatched parentheses
+     */
+    String calculate(String input) {
+        return evaluate(new Parser(input).keepingLiterals().parse(), NO_VARIABLES);
+    }
+
+    /**
+     * Evaluates a tree whose constants kept their literals, trying the fast path first.
+     * The value of each variable is an earlier answer of this calculator, so
+     * it is exact in the backend: the named formulas of a {@link Workbook}
+     * keep their exact answers this way.
+     *
+     * @param root the root of the tree
+     * @param variables the answers of this calculator that the variables stand for, by variable position
+     * @return the formatted answer
+     * @throws IllegalArgumentException if the square root of a negative number is requested
+     * @throws ArithmeticException if the answer cannot be represented by the backend
+     */
+    String evaluate(Node root, String[] variables) {
+        FastPath fast = new FastPath();
+        try {
+            long unscaled = fast.eval(root, variables);
+            switch (backend) {
+                case LONG:
+                    return Long.toString(unscaled);
+                case DECIMAL:
+                    return format(BigDecimal.valueOf(unscaled, fast.scale));
+                default:
+                    return Fraction.of(BigInteger.valueOf(unscaled), BigInteger.TEN.pow(fast.scale)).toString();
+            }
+        } catch (Promote e) {
+            if (backend == Backend.LONG) {
+                throw new ArithmeticException(e.getMessage());
+            }
+        } catch (ArithmeticException e) { // from the Math.*Exact methods
+            if (backend == Backend.LONG) {
+                throw new ArithmeticException(OVERFLOW.getMessage());
+            }
+        }
+        return backend == Backend.DECIMAL ? format(decimal(root, variables)) : rational(root, variables).toString();
+    }
+
+    /**
+     * Evaluates a tree with {@link BigDecimal}, rounding every literal and every operation to the context.
+     * The nodes are taken in postfix order with a stack of values, so any depth works.
+     *
+     * @param root the root of the tree
+     * @param variables the answers the variables stand for
+     * @return the value
+     */
+    private BigDecimal decimal(Node root, String[] variables) {
+        Node[] order = Node.postfix(root);
+        BigDecimal[] stack = new BigDecimal[order.length];
+        int depth = 0;
+        for (Node node : order) {
+            if (node instanceof Node.Constant) {
+                stack[depth++] = new BigDecimal(literal(node), context);
+            } else if (node instanceof Node.Variable) {
+                stack[depth++] = new BigDecimal(variables[((Node.Variable) node).index], context);
+            } else if (node instanceof Node.Negate) {
+                stack[depth - 1] = stack[depth - 1].negate();
+            } else if (node instanceof Node.Square) {
+                BigDecimal x = stack[depth - 1];
+                stack[depth - 1] = x.multiply(x, context);
+            } else if (node instanceof Node.Cube) {
+                BigDecimal x = stack[depth - 1];
+                stack[depth - 1] = x.multiply(x, context).multiply(x, context);
+            } else if (node instanceof Node.SquareRoot) {
+                BigDecimal x = stack[depth - 1];
+                checkSquareRoot(x.signum());
+                stack[depth - 1] = x.sqrt(context);
+            } else {
+                Node.Chain chain = chain(node);
+                depth -= chain.operands.length;
+                BigDecimal x = stack[depth];
+                for (int i = 0; i < chain.operators.length; i++) {
+                    BigDecimal y = stack[depth + i + 1];
+                    switch (chain.operators[i]) {
+                        case '+': x = x.add(y, context); break;
+                        case '-': x = x.subtract(y, context); break;
+                        case '*': x = x.multiply(y, context); break;
+                        default: x = x.divide(y, context); break;
+                    }
+                }
+                stack[depth++] = x;
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Evaluates a tree with exact fractions, in postfix order like {@link #decimal}.
+     *
+     * @param root the root of the tree
+     * @param variables the answers the variables stand for
+     * @return the value
+     */
+    private Fraction rational(Node root, String[] variables) {
+        Node[] order = Node.postfix(root);
+        Fraction[] stack = new Fraction[order.length];
+        int depth = 0;
+        for (Node node : order) {
+            if (node instanceof Node.Constant) {
+                stack[depth++] = Fraction.of(new BigDecimal(literal(node)));
+            } else if (node instanceof Node.Variable) {
+                stack[depth++] = Fraction.parse(variables[((Node.Variable) node).index]);
+            } else if (node instanceof Node.Negate) {
+                stack[depth - 1] = stack[depth - 1].negate();
+            } else if (node instanceof Node.Square) {
+                Fraction x = stack[depth - 1];
+                stack[depth - 1] = x.apply('*', x);
+            } else if (node instanceof Node.Cube) {
+                Fraction x = stack[depth - 1];
+                stack[depth - 1] = x.apply('*', x).apply('*', x);
+            } else if (node instanceof Node.SquareRoot) {
+                Fraction x = stack[depth - 1];
+                checkSquareRoot(x.numerator.signum());
+                BigInteger num = x.numerator.sqrt(), den = x.denominator.sqrt();
+                if (!num.multiply(num).equals(x.numerator) || !den.multiply(den).equals(x.denominator)) {
+                    throw new ArithmeticException("Not a rational number");
+                }
+                stack[depth - 1] = Fraction.of(num, den);
+            } else {
+                Node.Chain chain = chain(node);
+                depth -= chain.operands.length;
+                Fraction x = stack[depth];
+                for (int i = 0; i < chain.operators.length; i++) {
+                    x = x.apply(chain.operators[i], stack[depth + i + 1]);
+                }
+                stack[depth++] = x;
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Refuses the square root of a negative number.
+     *
+     * @param signum the sign of the number
+     * @throws IllegalArgumentException if the number is negative
+     */
+    private static void checkSquareRoot(int signum) {
+        if (signum < 0) {
+            throw new NegativeSquareRootException();
+        }
+    }
+
+    /**
+     * Formats a decimal answer without an exponent or trailing zeros.
+     *
+     * @param x the answer
+     * @return the plain text
+     */
+    private static String format(BigDecimal x) {
+        return x.stripTrailingZeros().toPlainString();
+    }
+
+    private static String literal(Node node) {
+        String literal = ((Node.Constant) node).literal;
+        if (literal == null) {
+            throw new IllegalArgumentException("Constant without its literal");
+        }
+        return literal;
+    }
+
+    private static Node.Chain chain(Node node) {
+        if (!(node instanceof Node.Chain)) {
+            throw new IllegalArgumentException("Unsupported node: " + node.getClass().getSimpleName());
+        }
+        return (Node.Chain) node;
+    }
+
+    /**
+     * Evaluates a tree with every value held as {@code unscaled / 10^scale}
+     * in a {@code long}. One instance is used per evaluation.
+     */
+    private final class FastPath {
+        /** The scale of the value returned by the last call to {@link #eval}. */
+        int scale;
+
+        /**
+         * Evaluates a tree in postfix order, with a stack of unscaled values
+         * and a parallel stack of their scales.
+         *
+         * @param root the root of the tree
+         * @param variables the answers the variables stand for
+         * @return the unscaled value; its scale is left in {@link #scale}
+         * @throws Promote if the value cannot be computed exactly on the fast path
+         * @throws ArithmeticException if a value overflows a long
+         */
+        long eval(Node root, String[] variables) {
+            Node[] order = Node.postfix(root);
+            long[] values = new long[order.length];
+            int[] scales = new int[order.length];
+            int depth = 0;
+            for (Node node : order) {
+                if (node instanceof Node.Constant || node instanceof Node.Variable) {
+                    values[depth] = node instanceof Node.Constant ? parse(literal(node)) : answer(variables[((Node.Variable) node).index]);
+                    scales[depth++] = scale;
+                    continue;
+                }
+                long x = values[depth - 1];
+                int xs = scales[depth - 1];
+                if (node instanceof Node.Negate) {
+                    values[depth - 1] = Math.negateExact(x);
+                    continue;
+                } else if (node instanceof Node.Square) {
+                    x = multiply(x, xs, x, xs);
+                } else if (node instanceof Node.Cube) {
+                    long square = multiply(x, xs, x, xs);
+                    x = multiply(square, scale, x, xs);
+                } else if (node instanceof Node.SquareRoot) {
+                    scale = xs;
+                    x = squareRoot(x);
+                } else {
+                    Node.Chain chain = chain(node);
+                    depth -= chain.operands.length;
+                    x = values[depth];
+                    xs = scales[depth];
+                    for (int i = 0; i < chain.operators.length; i++) {
+                        long y = values[depth + i + 1];
+                        int ys = scales[depth + i + 1];
+                        switch (chain.operators[i]) {
+                            case '+':
+                            case '-': {
+                                int s = Math.max(xs, ys);
+                                long a = Math.multiplyExact(x, POWERS_OF_TEN[s - xs]);
+                                long b = Math.multiplyExact(y, POWERS_OF_TEN[s - ys]);
+                                x = chain.operators[i] == '+' ? Math.addExact(a, b) : Math.subtractExact(a, b);
+                                xs = s;
+                                break;
+                            }
+                            case '*':
+                                x = multiply(x, xs, y, ys);
+                                xs = scale;
+                                break;
+                            default:
+                                if (y == 0) throw DIVISION_BY_ZERO;
+                                if (x % y != 0) throw NOT_AN_INTEGER;
+                                if (x == Long.MIN_VALUE && y == -1) throw OVERFLOW;
+                                x /= y;
+                                xs -= ys;
+                                if (xs < 0) {
+                                    x = Math.multiplyExact(x, POWERS_OF_TEN[-xs]);
+                                    xs = 0;
+                                }
+                                break;
+                        }
+                        checkLimit(x);
+                    }
+                    scale = xs;
+                    depth++;
+                }
+                values[depth - 1] = x;
+                scales[depth - 1] = scale;
+            }
+            scale = scales[0];
+            return values[0];
+        }
+
+        /**
+         * Multiplies two values.
+         *
+         * @return the unscaled product; its scale is left in {@link #scale}
+         */
+        private long multiply(long x, int xs, long y, int ys) {
+            x = Math.multiplyExact(x, y);
+            xs += ys;
+            while (xs >= POWERS_OF_TEN.length && x % 10 == 0) {
+                x /= 10;
+                xs--;
+            }
+            if (xs >= POWERS_OF_TEN.length) throw NOT_AN_INTEGER;
+            checkLimit(x);
+            scale = xs;
+            return x;
+        }
+
+        /**
+         * Takes the square root of a value, when it is exact.
+         *
+         * @param x the unscaled value, at the current {@link #scale}
+         * @return the unscaled root; its scale is left in {@link #scale}
+         * @throws Promote if the root is not exact at half the scale
+         */
+        private long squareRoot(long x) {
+            checkSquareRoot(Long.signum(x));
+            if (scale % 2 != 0) throw NOT_AN_INTEGER;
+            checkLimit(x);
+            long root = (long) Math.sqrt((double) x);
+            while (root * root > x) root--;
+            while (root < MAX_LONG_ROOT && (root + 1) * (root + 1) <= x) root++;
+            if (root * root != x) throw NOT_AN_INTEGER;
+            scale /= 2;
+            return root;
+        }
+
+        /**
+         * Promotes a value that has more digits than the decimal context
+         * keeps, so that the fallback rounds it the way it rounds everything else.
+         *
+         * @param x the unscaled value
+         * @throws Promote if the value would need rounding
+         */
+        private void checkLimit(long x) {
+            if (roundingLimit != 0 && (x >= roundingLimit || x <= -roundingLimit)) throw NOT_AN_INTEGER;
+        }
+
+        /**
+         * Reads an earlier answer: a literal, possibly negative. A fraction
+         * of the rational backend is left to the slow path.
+         *
+         * @param text the answer
+         * @return the unscaled value; its scale is left in {@link #scale}
+         */
+        private long answer(String text) {
+            if (text.indexOf('/') >= 0) throw NOT_AN_INTEGER;
+            return text.charAt(0) == '-' ? Math.negateExact(parse(text.substring(1))) : parse(text);
+        }
+
+        /**
+         * Reads a literal made of digits and at most one decimal point.
+         *
+         * @param text the literal
+         * @return the unscaled value, without trailing fractional zeros; its scale is left in {@link #scale}
+         */
+        private long parse(String text) {
+            long x = 0;
+            int s = 0;
+            boolean point = false;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '.') {
+                    point = true;
+                } else {
+                    x = Math.addExact(Math.multiplyExact(x, 10), c - '0');
+                    if (point) s++;
+                }
+            }
+            while (s > 0 && x % 10 == 0) {
+                x /= 10;
+                s--;
+            }
+            if (s >= POWERS_OF_TEN.length || (s > 0 && backend == Backend.LONG)) throw NOT_AN_INTEGER;
+            checkLimit(x);
+            scale = s;
+            return x;
+        }
+    }
+
+    /**
+     * Signals that the fast path cannot compute a value exactly. It is
+     * control flow only, so shared instances without a stack trace are used.
+     */
+    private static final class Promote extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Promote(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * An exact fraction in lowest terms with a positive denominator.
+     */
+    private static final class Fraction {
+        final BigInteger numerator, denominator;
+
+        private Fraction(BigInteger numerator, BigInteger denominator) {
+            this.numerator = numerator;
+            this.denominator = denominator;
+        }
+
+        /**
+         * Creates a fraction in lowest terms.
+         *
+         * @param numerator the numerator
+         * @param denominator the denominator
+         * @return the fraction
+         * @throws ArithmeticException if the denominator is zero
+         */
+        static Fraction of(BigInteger numerator, BigInteger denominator) {
+            if (denominator.signum() == 0) {
+                throw new ArithmeticException(DIVISION_BY_ZERO.getMessage());
+            }
+            if (denominator.signum() < 0) {
+                numerator = numerator.negate();
+                denominator = denominator.negate();
+            }
+            BigInteger gcd = numerator.gcd(denominator);
+            if (!gcd.equals(BigInteger.ONE)) {
+                numerator = numerator.divide(gcd);
+                denominator = denominator.divide(gcd);
+            }
+            return new Fraction(numerator, denominator);
+        }
+
+        static Fraction of(BigDecimal x) {
+            return x.scale() <= 0 ? new Fraction(x.toBigIntegerExact(), BigInteger.ONE)
+                    : of(x.unscaledValue(), BigInteger.TEN.pow(x.scale()));
+        }
+
+        /**
+         * Reads a fraction as written by {@link #toString}, or a plain decimal.
+         *
+         * @param text the text
+         * @return the fraction
+         */
+        static Fraction parse(String text) {
+            int slash = text.indexOf('/');
+            if (slash < 0) {
+                return of(new BigDecimal(text));
+            }
+            return of(new BigInteger(text.substring(0, slash)), new BigInteger(text.substring(slash + 1)));
+        }
+
+        Fraction negate() {
+            return new Fraction(numerator.negate(), denominator);
+        }
+
+        /**
+         * Applies a binary operator.
+         *
+         * @param op the operator, one of {@code + - * /}
+         * @param y the right operand
+         * @return the result of {@code this op y}
+         * @throws ArithmeticException on division by zero
+         */
+        Fraction apply(char op, Fraction y) {
+            switch (op) {
+                case '+':
+                    return of(numerator.multiply(y.denominator).add(y.numerator.multiply(denominator)), denominator.multiply(y.denominator));
+                case '-':
+                    return of(numerator.multiply(y.denominator).subtract(y.numerator.multiply(denominator)), denominator.multiply(y.denominator));
+                case '*':
+                    return of(numerator.multiply(y.numerator), denominator.multiply(y.denominator));
+                default:
+                    return of(numerator.multiply(y.denominator), denominator.multiply(y.numerator));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return denominator.equals(BigInteger.ONE) ? numerator.toString() : numerator + "/" + denominator;
+        }
+    }
+}
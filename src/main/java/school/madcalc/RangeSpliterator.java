@@ -0,0 +1,131 @@
+package school.madcalc;
+
+import java.util.Spliterator;
+import java.util.function.DoubleConsumer;
+
+/**
+ * The source of {@link CompiledExpression#evalRange}: the results of a
+ * one-variable tree for {@code x = start + i * step}, for a range of
+ * indexes {@code i}.
+ *
+ * <p>Results are computed lazily, one block at a time, with
+ * {@link Node#evalBlock}, so each block costs one tight loop per node and
+ * a stream that is cut short computes at most one block too many. The
+ * value of {@code x} is computed from its index rather than by adding
+ * {@code step} again and again, so it does not drift and a split half
+ * starts exactly where the other one ends. Splitting halves the indexes
+ * not yet computed; the first half is handed out, keeping the encounter
+ * order, and ranges of less than two blocks are not split.</p>
+ */
+final class RangeSpliterator implements Spliterator.OfDouble {
+    private final Node root;
+    private final int scratchDepth;
+    private final double start;
+    private final double step;
+
+    /** The index of the first result not yet computed. */
+    private long index;
+    /** The index after the last result. */
+    private final long end;
+
+    /** The current block of results, allocated with the first block. */
+    private double[] results;
+    /** The position in {@link #results} of the next result to hand out. */
+    private int next;
+    /** The number of results in {@link #results}. */
+    private int computed;
+    private double[][] column;
+    private double[][] scratch;
+
+    /**
+     * Creates a spliterator over a range of indexes.
+     *
+     * @param root the tree, which uses a single variable
+     * @param scratchDepth the number of scratch buffers the tree needs
+     * @param start the value of x at index 0
+     * @param step the difference between the values of x at two neighboring indexes
+     * @param from the first index
+     * @param to the index after the last one
+     */
+    RangeSpliterator(Node root, int scratchDepth, double start, double step, long from, long to) {
+        this.root = root;
+        this.scratchDepth = scratchDepth;
+        this.start = start;
+        this.step = step;
+        this.index = from;
+        this.end = to;
+    }
+
+    /**
+     * Computes the next block of results.
+     */
+    private void computeBlock() {
+        if (results == null) {
+            int size = (int) Math.min(CompiledExpression.BLOCK_ROWS, end - index);
+            results = new double[size];
+            column = new double[1][size];
+            scratch = new double[scratchDepth][size];
+        }
+        int length = (int) Math.min(results.length, end - index);
+        double[] x = column[0];
+        for (int i = 0; i < length; i++) {
+            x[i] = start + (index + i) * step;
+        }
+        root.evalBlock(column, 0, length, results, 0, scratch, 0);
+        index += length;
+        next = 0;
+        computed = length;
+    }
+
+    @Override
+    public boolean tryAdvance(DoubleConsumer action) {
+        if (next == computed) {
+            if (index == end) {
+                return false;
+            }
+            computeBlock();
+        }
+        action.accept(results[next++]);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(DoubleConsumer action) {
+        while (true) {
+            while (next < computed) {
+                action.accept(results[next++]);
+            }
+            if (index == end) {
+                return;
+            }
+            computeBlock();
+        }
+    }
+
+    /**
+     * Hands out the first half of the indexes not yet computed. A
+     * spliterator with results of a block still to hand out does not split,
+     * because those results come first.
+     */
+    @Override
+    public Spliterator.OfDouble trySplit() {
+        long remaining = end - index;
+        if (next < computed || remaining < 2L * CompiledExpression.BLOCK_ROWS) {
+            return null;
+        }
+        long middle = index + remaining / 2;
+        RangeSpliterator prefix = new RangeSpliterator(root, scratchDepth, start, step, index, middle);
+        index = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return end - index + computed - next;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+    }
+}
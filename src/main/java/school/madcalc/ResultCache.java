@@ -0,0 +1,281 @@
+package school.madcalc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A size-bounded, thread-safe cache of calculated answers.
+ *
+ * <p>The cache is split into independently locked segments chosen by the
+ * key's hash, so threads working on different keys rarely wait for each
+ * other. Each segment keeps its entries in least-recently-used order. Two
+ * eviction policies are available:</p>
+ * <ul>
+ *   <li>{@link Policy#LRU} - a new entry always replaces the least recently used one</li>
+ *   <li>{@link Policy#TINY_LFU} - a new entry only replaces the least recently used one
+ *       if it has been requested more often recently, as estimated by a small
+ *       count-min sketch whose counters are halved periodically so old
+ *       popularity fades away; this keeps one-off inputs from flushing
+ *       the popular entries out of the cache</li>
+ * </ul>
+ *
+ * <p>Failed calculations are never cached: the exception reaches the caller
+ * and the next request calculates again.</p>
+ */
+final class ResultCache {
+    /** Number of independently locked segments. */
+    private static final int SEGMENTS = 16;
+
+    /**
+     * The eviction policy of a cache.
+     */
+    enum Policy {
+        /** Least recently used. */
+        LRU,
+        /** Least recently used, with frequency-based admission. */
+        TINY_LFU
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maximumSize the maximum number of cached answers
+     * @param policy the eviction policy
+     * @throws IllegalArgumentException if the maximum size is not positive
+     */
+    ResultCache(int maximumSize, Policy policy) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maximumSize);
+        }
+        for (int i = 0; i < SEGMENTS; i++) {
+            int capacity = maximumSize / SEGMENTS + (i < maximumSize % SEGMENTS ? 1 : 0);
+            segments[i] = new Segment(capacity, policy == Policy.TINY_LFU);
+        }
+    }
+
+    /**
+     * Returns the cached answer for a key, calculating and caching it on a miss.
+     *
+     * @param key the normalized input, see {@link #normalize(String)}
+     * @param calculation calculates the answer on a miss
+     * @return the answer
+     * @throws RuntimeException whatever the calculation throws; nothing is cached then
+     */
+    double get(String key, DoubleSupplier calculation) {
+        Segment segment = segments[spread(key.hashCode()) & (SEGMENTS - 1)];
+        Double cached = segment.get(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        double value = calculation.getAsDouble();
+        if (segment.put(key, value)) {
+            evictions.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the number of requests answered from the cache.
+     *
+     * @return the hit count
+     */
+    long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of requests that had to be calculated.
+     *
+     * @return the miss count
+     */
+    long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of entries removed to make room for new ones.
+     *
+     * @return the eviction count
+     */
+    long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the number of cached answers.
+     *
+     * @return the current size
+     */
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        long h = hits(), m = misses();
+        double rate = h + m == 0 ? 0 : 100.0 * h / (h + m);
+        return String.format("cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries",
+                h, m, rate, evictions(), size());
+    }
+
+    /**
+     * Normalizes an input line so that inputs with the same answer share one
+     * cache entry. Only whitespace the parser ignores is dropped: whitespace
+     * ends a name, so a run of it between two name characters becomes one
+     * space, which keeps {@code s qrt(16)} apart from {@code sqrt(16)} and
+     * the command {@code sqrt\t16} apart from the unknown name
+     * {@code sqrt16}. Names are lower-cased, as function names are looked
+     * up in any case.
+     *
+     * @param input the input line
+     * @return the cache key
+     */
+    static String normalize(String input) {
+        StringBuilder sb = new StringBuilder(input.length());
+        boolean name = false, space = false;
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (Parser.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            boolean nameChar = Character.isLetterOrDigit(c) || c == '_';
+            if (space && name && nameChar) sb.append(' ');
+            name = (name && !space && nameChar) || Character.isLetter(c);
+            space = false;
+            sb.append(name ? Character.toLowerCase(c) : c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Spreads the hash bits so that the low bits used for segment selection
+     * depend on the whole hash.
+     *
+     * @param h the hash code
+     * @return the spread hash
+     */
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * One locked part of the cache: an access-ordered map plus, for TinyLFU,
+     * a frequency sketch of the keys requested from this segment.
+     */
+    private static final class Segment {
+        private final int capacity;
+        private final LinkedHashMap<String, Double> entries;
+        private final FrequencySketch sketch;
+
+        Segment(int capacity, boolean admission) {
+            this.capacity = capacity;
+            this.entries = new LinkedHashMap<>(Math.max(16, capacity * 2), 0.75f, true);
+            this.sketch = admission ? new FrequencySketch(capacity) : null;
+        }
+
+        synchronized Double get(String key) {
+            if (sketch != null) sketch.increment(key);
+            return entries.get(key);
+        }
+
+        /**
+         * Stores an answer, evicting the least recently used entry if the segment is full.
+         *
+         * @return true if an entry was evicted
+         */
+        synchronized boolean put(String key, double value) {
+            if (entries.containsKey(key) || entries.size() < capacity) {
+                entries.put(key, value);
+                return false;
+            }
+            if (capacity == 0) {
+                return false;
+            }
+            Iterator<Map.Entry<String, Double>> eldest = entries.entrySet().iterator();
+            String victim = eldest.next().getKey();
+            if (sketch != null && sketch.frequency(key) <= sketch.frequency(victim)) {
+                return false;
+            }
+            eldest.remove();
+            entries.put(key, value);
+            return true;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    /**
+     * A count-min sketch with four rows of saturating counters. Once the
+     * number of recorded requests reaches ten times the segment capacity,
+     * every counter is halved, so the estimates follow recent popularity.
+     */
+    private static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final int[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity * 2 - 1) << 1);
+            this.counters = new int[ROWS * width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * Math.max(16, capacity);
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int row = 0; row < ROWS; row++) {
+                int i = index(hash, row);
+                if (counters[i] < MAX_COUNT) {
+                    counters[i]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int min = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                min = Math.min(min, counters[index(hash, row)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[row];
+            h ^= h >>> 15;
+            return row * (mask + 1) + (h & mask);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package school.madcalc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Named formulas of an interactive session that stay up to date, like the
+ * cells of a spreadsheet.
+ *
+ * <p>An assignment such as {@code a = 3 + (9+1)} or {@code b = sqrt a}
+ * defines a cell. A formula may refer to any other cell, also one that is
+ * only defined later; until then it has no value. The cells and the names
+ * they refer to form a dependency graph. When a cell is assigned, only the
+ * cells downstream of it are recalculated, each exactly once and after
+ * everything it depends on, and a cell whose value did not change does not
+ * make its own dependents recalculate. An assignment that would make a
+ * cell depend on itself is rejected and changes nothing.</p>
+ *
+ * <p>Each formula is parsed and simplified once, when it is assigned, so
+ * recalculating a cell only evaluates its tree. Special functions can be
+ * called anywhere, as in {@code 2*sqrt(a)}; one that starts the formula
+ * without parentheses applies to the rest of it, so {@code sqrt a + 1} is
+ * the square root of {@code a + 1}.</p>
+ *
+ * <p>With a {@link PreciseCalculator} every cell holds the exact answer of
+ * that calculator instead of a double, and formulas are calculated from the
+ * exact answers of the cells they name.</p>
+ *
+ * <p>A workbook is not thread-safe; it belongs to one session.</p>
+ */
+final class Workbook {
+
+    private final Map<String, Cell> cells = new HashMap<>();
+
+    /** Calculator for exact answers, or null when answers are doubles. */
+    private final PreciseCalculator precise;
+
+    /** Marks cells found by the current graph traversal, so that no set has to be allocated. */
+    private int epoch;
+
+    /**
+     * Creates a workbook whose answers are doubles.
+     */
+    Workbook() {
+        this(null);
+    }
+
+    /**
+     * Creates a workbook.
+     *
+     * @param precise the calculator for exact answers, or null for doubles
+     */
+    Workbook(PreciseCalculator precise) {
+        this.precise = precise;
+    }
+
+    /**
+     * Splits an assignment line into its name and formula.
+     *
+     * @param line the input line
+     * @return the name and the formula, or null if the line is not an assignment
+     */
+    static String[] splitAssignment(String line) {
+        int eq = line.indexOf('=');
+        if (eq < 0) {
+            return null;
+        }
+        String name = line.substring(0, eq).trim();
+        if (!MadCalc.isVariableName(name)) {
+            return null;
+        }
+        return new String[] {name, line.substring(eq + 1)};
+    }
+
+    /**
+     * Tells whether the workbook has no cells.
+     *
+     * @return true if nothing was assigned yet
+     */
+    boolean isEmpty() {
+        return cells.isEmpty();
+    }
+
+    /**
+     * Defines or redefines a cell and recalculates the cells that depend on it.
+     *
+     * @param name the cell name
+     * @param text the formula
+     * @return the number of other cells that were recalculated
+     * @throws IllegalArgumentException if the name is reserved or the formula would refer to itself
+     * @throws RuntimeException if the formula is invalid; the workbook is then unchanged
+     */
+    int assign(String name, String text) {
+        if (FunctionRegistry.BUILT_INS.contains(name) || name.equalsIgnoreCase("exit")) {
+            throw new IllegalArgumentException("Reserved name: " + name);
+        }
+        Formula formula = Formula.parse(text, precise != null);
+        Cell cell = cells.get(name);
+        epoch++;
+        if (cell != null) {
+            markDownstream(cell);
+        }
+        for (String variable : formula.variables) {
+            Cell dependency = cells.get(variable);
+            if (variable.equals(name) || (dependency != null && dependency.mark == epoch)) {
+                throw new IllegalArgumentException("Circular reference: " + name + " would depend on itself");
+            }
+        }
+        if (cell == null) {
+            cell = new Cell(name);
+            cells.put(name, cell);
+        }
+        for (Cell old : cell.dependencies) {
+            old.dependents.remove(cell);
+            if (old.formula == null && old.dependents.isEmpty()) {
+                cells.remove(old.name);
+            }
+        }
+        Cell[] dependencies = new Cell[formula.variables.length];
+        for (int i = 0; i < dependencies.length; i++) {
+            dependencies[i] = cells.computeIfAbsent(formula.variables[i], Cell::new);
+            dependencies[i].dependents.add(cell);
+        }
+        cell.formula = formula;
+        cell.dependencies = dependencies;
+        return recalculate(cell);
+    }
+
+    /**
+     * Returns the answer of a cell.
+     *
+     * @param name the cell name
+     * @return the value as text: an exact answer, or a double as {@link Double#toString(double)} writes it
+     * @throws RuntimeException the error of the cell, if it has no value
+     */
+    String answer(String name) {
+        return answer(cell(name));
+    }
+
+    /**
+     * Calculates a formula using the current values of the cells, without storing it.
+     *
+     * @param text the formula
+     * @return the answer, as {@link #answer(String)} gives it
+     * @throws RuntimeException if the formula is invalid, refers to a cell without a value, or cannot be calculated
+     */
+    String calculate(String text) {
+        Formula formula = Formula.parse(text, precise != null);
+        Cell[] inputs = new Cell[formula.variables.length];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = cell(formula.variables[i]);
+        }
+        if (precise != null) {
+            return precise.evaluate(formula.root, exactValues(inputs));
+        }
+        return Double.toString(formula.eval(values(inputs)));
+    }
+
+    /**
+     * Tells whether a line mentions a name other than a function, and so
+     * needs the cells to be answered. The line is only scanned for names,
+     * with the rules of the {@link Parser}, not parsed.
+     *
+     * @param text the line
+     * @return true if the line uses a name
+     */
+    static boolean mentionsNames(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.isLetter(text.charAt(i))) {
+                int start = i;
+                while (i + 1 < text.length() && (Character.isLetterOrDigit(text.charAt(i + 1)) || text.charAt(i + 1) == '_')) {
+                    i++;
+                }
+                if (FunctionRegistry.BUILT_INS.lookup(text.subSequence(start, i + 1)) == null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds a cell that has a value.
+     *
+     * @param name the cell name
+     * @return the cell
+     * @throws RuntimeException if the cell is not defined or has an error
+     */
+    private Cell cell(String name) {
+        Cell cell = cells.get(name);
+        if (cell == null || cell.formula == null) {
+            throw undefined(name);
+        }
+        if (cell.error != null) {
+            throw cell.error;
+        }
+        return cell;
+    }
+
+    private String answer(Cell cell) {
+        return precise != null ? cell.exact : Double.toString(cell.value);
+    }
+
+    private static double[] values(Cell[] cells) {
+        double[] values = new double[cells.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = cells[i].value;
+        }
+        return values;
+    }
+
+    private static String[] exactValues(Cell[] cells) {
+        String[] values = new String[cells.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = cells[i].exact;
+        }
+        return values;
+    }
+
+    /**
+     * Marks a cell and everything downstream of it with the current epoch.
+     *
+     * @param start the cell
+     * @return the marked cells
+     */
+    private List<Cell> markDownstream(Cell start) {
+        List<Cell> marked = new ArrayList<>();
+        ArrayDeque<Cell> stack = new ArrayDeque<>();
+        start.mark = epoch;
+        marked.add(start);
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            for (Cell dependent : stack.pop().dependents) {
+                if (dependent.mark != epoch) {
+                    dependent.mark = epoch;
+                    marked.add(dependent);
+                    stack.push(dependent);
+                }
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Recalculates a changed cell and then, in topological order, every
+     * cell downstream of it with an input whose value changed.
+     *
+     * @param start the changed cell
+     * @return the number of other cells recalculated
+     */
+    private int recalculate(Cell start) {
+        epoch++;
+        for (Cell cell : markDownstream(start)) {
+            int pending = 0;
+            for (Cell dependency : cell.dependencies) {
+                if (dependency.mark == epoch) {
+                    pending++;
+                }
+            }
+            cell.pending = pending;
+            cell.changed = false;
+        }
+        ArrayDeque<Cell> ready = new ArrayDeque<>();
+        ready.add(start);
+        int recalculated = 0;
+        while (!ready.isEmpty()) {
+            Cell cell = ready.poll();
+            if (cell == start) {
+                compute(cell);
+                cell.changed = true;
+            } else if (inputsChanged(cell)) {
+                cell.changed = compute(cell);
+                recalculated++;
+            }
+            for (Cell dependent : cell.dependents) {
+                if (--dependent.pending == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        return recalculated;
+    }
+
+    /**
+     * Tells whether any input of a cell changed in the current recalculation.
+     *
+     * @param cell the cell
+     * @return true if the cell must be recalculated
+     */
+    private boolean inputsChanged(Cell cell) {
+        for (Cell dependency : cell.dependencies) {
+            if (dependency.mark == epoch && dependency.changed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Calculates the value of a cell from the values of its dependencies.
+     *
+     * @param cell the cell
+     * @return true if its value or error changed
+     */
+    private boolean compute(Cell cell) {
+        double oldValue = cell.value;
+        String oldExact = cell.exact;
+        RuntimeException oldError = cell.error;
+        cell.error = null;
+        for (int i = 0; i < cell.dependencies.length && cell.error == null; i++) {
+            Cell dependency = cell.dependencies[i];
+            cell.error = dependency.formula == null ? undefined(dependency.name) : dependency.error;
+        }
+        if (cell.error == null) {
+            try {
+                if (precise != null) {
+                    cell.exact = precise.evaluate(cell.formula.root, exactValues(cell.dependencies));
+                } else {
+                    cell.value = cell.formula.eval(values(cell.dependencies));
+                }
+            } catch (RuntimeException e) {
+                cell.error = e;
+            }
+        }
+        if (cell.error != null) {
+            cell.value = Double.NaN;
+            cell.exact = null;
+            return oldError == null || !oldError.getMessage().equals(cell.error.getMessage());
+        }
+        return oldError != null || Double.doubleToRawLongBits(oldValue) != Double.doubleToRawLongBits(cell.value)
+                || (cell.exact != null && !cell.exact.equals(oldExact));
+    }
+
+    private static RuntimeException undefined(String name) {
+        return new IllegalStateException("Undefined variable: " + name);
+    }
+
+    /**
+     * A named cell. A cell without a formula stands for a name that is
+     * referred to but not defined yet.
+     */
+    private static final class Cell {
+        final String name;
+        Formula formula;
+        Cell[] dependencies = new Cell[0];
+        final Set<Cell> dependents = new HashSet<>();
+        double value = Double.NaN;
+        /** The exact answer, in a workbook with a {@link PreciseCalculator}. */
+        String exact;
+        RuntimeException error;
+
+        /** Traversal bookkeeping, see {@link Workbook#epoch}. */
+        int mark;
+        int pending;
+        boolean changed;
+
+        Cell(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * A parsed formula: an expression over named variables.
+     */
+    private static final class Formula {
+        final Node root;
+        /** The tree in postfix order, see {@link Node#postfix}; null for exact answers. */
+        final Node[] order;
+        final String[] variables;
+
+        private Formula(Node root, Node[] order, String[] variables) {
+            this.root = root;
+            this.order = order;
+            this.variables = variables;
+        }
+
+        /**
+         * Parses a formula, declaring every name it uses as a variable. A
+         * formula for doubles is simplified; one for exact answers keeps its
+         * literals for the {@link PreciseCalculator} instead.
+         *
+         * @param text the formula
+         * @param exact whether the formula is calculated exactly
+         * @return the parsed formula
+         * @throws RuntimeException if the formula is invalid
+         */
+        static Formula parse(String text, boolean exact) {
+            Parser parser = new Parser(text).declaringVariables();
+            if (exact) {
+                return new Formula(parser.keepingLiterals().parse(), null, parser.variables());
+            }
+            Node root = Optimizer.optimize(parser.parse());
+            return new Formula(root, Node.postfix(root), parser.variables());
+        }
+
+        /**
+         * Evaluates the formula without recursion, so a formula nested to any depth works.
+         *
+         * @param values the values of the variables
+         * @return the value
+         * @throws IllegalArgumentException if the square root of a negative number is requested
+         */
+        double eval(double[] values) {
+            return Node.evalPostfix(order, values);
+        }
+    }
+}
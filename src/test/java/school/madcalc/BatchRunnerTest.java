@@ -0,0 +1,85 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for the non-interactive batch mode.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class BatchRunnerTest {
+
+    /**
+     * Tests that every input line produces exactly one output line.
+     * Verifies plain results without prompt or banner, and friendly messages for errors.
+     */
+    @Test
+    void testOneResultPerLine() throws Exception {
+        StringWriter out = new StringWriter();
+        long lines = BatchRunner.run(new StringReader("3 + (9 + 1)\nsqrt 16\n(2+3\npow2 x\n"), out);
+        assertEquals(4, lines);
+        assertEquals("13.0\n4.0\nOops! Your parentheses don't match. Please check and try again.\n"
+                + "Oops! 'pow2' needs a number. Please try again with 'pow2 <number>'.\n", out.toString());
+    }
+
+    /**
+     * Tests that an exit line ends the batch.
+     * Verifies that lines after exit are not evaluated.
+     */
+    @Test
+    void testExitStopsBatch() throws Exception {
+        StringWriter out = new StringWriter();
+        assertEquals(1, BatchRunner.run(new StringReader("1+1\nexit\n2+2\n"), out));
+        assertEquals("2.0\n", out.toString());
+    }
+
+    /**
+     * Tests batch mode from an input file to an output file.
+     * Verifies that the output file contains one result per input line.
+     */
+    @Test
+    void testFileToFile(@TempDir Path dir) throws Exception {
+        Path in = dir.resolve("in.txt");
+        Path out = dir.resolve("out.txt");
+        Files.write(in, List.of("2*(3+4)", "cube 3"), StandardCharsets.UTF_8);
+        assertEquals(2, BatchRunner.run(in, out, 1));
+        assertEquals(List.of("14.0", "27.0"), Files.readAllLines(out, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tests the parallel pipeline on an input spanning many chunks.
+     * Verifies that results come back in input order and match the sequential run.
+     */
+    @Test
+    void testParallelKeepsInputOrder() throws Exception {
+        StringBuilder in = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            in.append(i % 7 == 0 ? "(" + i + "+1" : i + " * 2 - (" + i + " / 4)").append('\n');
+        }
+        StringWriter sequential = new StringWriter();
+        StringWriter parallel = new StringWriter();
+        assertEquals(20_000, BatchRunner.run(new StringReader(in.toString()), sequential));
+        assertEquals(20_000, BatchRunner.run(new StringReader(in.toString()), parallel, 4));
+        assertEquals(sequential.toString(), parallel.toString());
+    }
+
+    /**
+     * Tests an exit line inside a parallel batch.
+     * Verifies that only the lines before exit are written.
+     */
+    @Test
+    void testParallelExitStopsBatch() throws Exception {
+        StringWriter out = new StringWriter();
+        assertEquals(2, BatchRunner.run(new StringReader("1+1\n2+2\nexit\n3+3\n"), out, 3));
+        assertEquals("2.0\n4.0\n", out.toString());
+    }
+}
@@ -0,0 +1,92 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for compiling expression trees to bytecode.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class BytecodeCompilerTest {
+
+    /**
+     * Tests that compiled bytecode gives the same bits as the tree interpreter.
+     * Verifies many formulas over random inputs, including zero, infinities and NaN.
+     */
+    @Test
+    void testCompiledMatchesInterpreter() {
+        String[] formulas = {
+            "3 + (9 + 1)", "x", "-x", "--x", "0", "1", "0.1 + 0.2", "x / 0", "-0 * x",
+            "x*y - y/x + 7.25*(x - -y)", "((x + 1) * (y - 2)) / ((x - 3) * (y + 4))",
+            "x - y - 1 - 2 - 3 * x * y / 5 / 7", "-(-(-(x))) * +y",
+            "sqrt(x*x + y*y)", "pow2(x) - cube(y) + 2*sqrt(pow2(y))"
+        };
+        double[] special = {0.0, -0.0, 1.0, -1.5, Double.MAX_VALUE, Double.MIN_VALUE,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN};
+        Random random = new Random(11);
+        for (String formula : formulas) {
+            Node tree = MadCalc.compile(formula, "x", "y").root();
+            BytecodeCompiler.Program program = BytecodeCompiler.compile(tree);
+            assertNotNull(program, formula);
+            for (int i = 0; i < 200; i++) {
+                double[] vars = i < special.length * special.length
+                        ? new double[] {special[i % special.length], special[i / special.length % special.length]}
+                        : new double[] {random.nextGaussian() * 1e3, random.nextGaussian() * 1e-3};
+                assertEquals(Double.doubleToLongBits(tree.eval(vars)), Double.doubleToLongBits(program.eval(vars)), formula);
+            }
+        }
+    }
+
+    /**
+     * Tests a formula with many variables and distinct constants.
+     * Verifies the wide variable index and constant pool encodings.
+     */
+    @Test
+    void testManyVariablesAndConstants() {
+        String[] names = new String[300];
+        double[] values = new double[300];
+        StringBuilder formula = new StringBuilder("0");
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "v" + i;
+            values[i] = i * 0.5;
+            formula.append(" + v").append(i).append(" * ").append(i + 0.25);
+        }
+        Node tree = MadCalc.compile(formula.toString(), names).root();
+        assertEquals(tree.eval(values), BytecodeCompiler.compile(tree).eval(values), 0.0);
+    }
+
+    /**
+     * Tests the tiered evaluation of a compiled expression.
+     * Verifies that the expression switches to bytecode after enough calls and keeps its results.
+     */
+    @Test
+    void testTierUp() {
+        CompiledExpression expr = MadCalc.compile("(x + 1) * x / 2", "x");
+        assertFalse(expr.isJitCompiled());
+        double[] vars = new double[1];
+        for (int i = 0; i < 5000; i++) {
+            vars[0] = i;
+            assertEquals((i + 1.0) * i / 2, expr.eval(vars), 0.0);
+        }
+        assertTrue(expr.isJitCompiled());
+    }
+
+    /**
+     * Tests a formula too large for one method.
+     * Verifies that it is reported as not compilable instead of failing.
+     */
+    @Test
+    void testTooLargeStaysInterpreted() {
+        StringBuilder formula = new StringBuilder("x");
+        for (int i = 0; i < 20_000; i++) {
+            formula.append("+x");
+        }
+        assertEquals(null, BytecodeCompiler.compile(MadCalc.compile(formula.toString(), "x").root()));
+    }
+}
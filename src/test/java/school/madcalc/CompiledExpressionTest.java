@@ -0,0 +1,162 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link CompiledExpression} and {@link MadCalc#compile(String, String...)}.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class CompiledExpressionTest {
+
+    /**
+     * Tests compiling an expression without variables.
+     * Verifies that it gives the same result as the interactive evaluator.
+     */
+    @Test
+    void testCompileWithoutVariables() {
+        CompiledExpression expr = MadCalc.compile("3 + (9 + 1)");
+        assertEquals(13.0, expr.eval(), 0.0001);
+        assertEquals(MadCalcTest.MadCalcTestHelper.evaluate("2*(3+4)-10/4"), MadCalc.compile("2*(3+4)-10/4").eval(), 0.0);
+    }
+
+    /**
+     * Tests evaluating a compiled expression with variables several times.
+     * Verifies that values are taken from the array in declaration order.
+     */
+    @Test
+    void testCompileWithVariables() {
+        CompiledExpression expr = MadCalc.compile("(x + 1) * y - x / 2", "x", "y");
+        assertArrayEquals(new String[] {"x", "y"}, expr.getVariables());
+        assertEquals(14.0, expr.eval(2, 5), 0.0001);
+        double[] row = new double[2];
+        for (int i = 0; i < 100; i++) {
+            row[0] = i;
+            row[1] = -i;
+            assertEquals((i + 1) * -i - i / 2.0, expr.eval(row), 0.0001);
+        }
+    }
+
+    /**
+     * Tests that left-to-right evaluation order is kept for chained operators.
+     * Verifies 10-4-3=3 and 24/4/3=2.
+     */
+    @Test
+    void testChainedOperatorsAreLeftAssociative() {
+        assertEquals(3.0, MadCalc.compile("10-4-3").eval(), 0.0);
+        assertEquals(2.0, MadCalc.compile("24/4/3").eval(), 0.0);
+        assertEquals(-6.0, MadCalc.compile("-2*3").eval(), 0.0);
+    }
+
+    /**
+     * Tests a very long flat expression.
+     * Verifies that it neither overflows the stack nor loses terms.
+     */
+    @Test
+    void testLongFlatExpression() {
+        StringBuilder sb = new StringBuilder("0");
+        for (int i = 0; i < 100_000; i++) {
+            sb.append("+1");
+        }
+        assertEquals(100_000.0, MadCalc.compile(sb.toString()).eval(), 0.0);
+    }
+
+    /**
+     * Tests the errors reported while compiling.
+     * Verifies that undeclared names are unexpected and bad declarations are rejected.
+     */
+    @Test
+    void testCompileErrors() {
+        Exception ex1 = assertThrows(RuntimeException.class, () -> MadCalc.compile("x + z", "x"));
+        assertTrue(ex1.getMessage().contains("Unexpected: z"));
+        Exception ex2 = assertThrows(RuntimeException.class, () -> MadCalc.compile("(x + 1", "x"));
+        assertTrue(ex2.getMessage().contains("Mismatched parentheses"));
+        assertThrows(IllegalArgumentException.class, () -> MadCalc.compile("x", "x", "x"));
+        assertThrows(IllegalArgumentException.class, () -> MadCalc.compile("1", "2x"));
+        assertThrows(IllegalArgumentException.class, () -> MadCalc.compile("x + y", "x", "y").eval(1));
+    }
+
+    /**
+     * Tests columnar evaluation against row-by-row evaluation.
+     * Verifies identical results for a formula with nesting, negation, constants and variables,
+     * over a row count that is not a multiple of the block size.
+     */
+    @Test
+    void testEvalColumnsMatchesRows() {
+        CompiledExpression expr = MadCalc.compile("-(x + 1) * (y - 2 * x) / 4 - -y + (x * (y + (x - 3)))", "x", "y");
+        int rows = 5000;
+        double[] x = new double[rows];
+        double[] y = new double[rows];
+        java.util.Random random = new java.util.Random(7);
+        for (int i = 0; i < rows; i++) {
+            x[i] = random.nextDouble() * 200 - 100;
+            y[i] = random.nextDouble() * 200 - 100;
+        }
+        double[] out = new double[rows];
+        expr.evalColumns(new double[][] {x, y}, out);
+        for (int i = 0; i < rows; i++) {
+            assertEquals(expr.eval(x[i], y[i]), out[i], 0.0);
+        }
+    }
+
+    /**
+     * Tests columnar evaluation of a row range and of formulas without variables.
+     * Verifies that only the requested rows are written.
+     */
+    @Test
+    void testEvalColumnsRange() {
+        double[] out = new double[10];
+        MadCalc.compile("x * 2", "x").evalColumns(new double[][] {{0, 1, 2, 3, 4, 5, 6, 7, 8, 9}}, out, 3, 6);
+        assertArrayEquals(new double[] {0, 0, 0, 6, 8, 10, 0, 0, 0, 0}, out, 0.0);
+        double[] constant = new double[3];
+        MadCalc.compile("3 + (9 + 1)").evalColumns(new double[0][], constant);
+        assertArrayEquals(new double[] {13, 13, 13}, constant, 0.0);
+        assertThrows(IllegalArgumentException.class, () -> MadCalc.compile("x", "x").evalColumns(new double[][] {{1}}, new double[2]));
+    }
+
+    /**
+     * Tests sweeping a formula over an arithmetic sequence.
+     * Verifies identical results to row-by-row evaluation, sequentially and in parallel.
+     */
+    @Test
+    void testEvalRange() {
+        CompiledExpression expr = MadCalc.compile("(x + 1) * x / 2 - sqrt(x + 1)", "x");
+        int count = 100_003;
+        double[] expected = new double[count];
+        for (int i = 0; i < count; i++) {
+            expected[i] = expr.eval(-0.5 + i * 0.25);
+        }
+        assertArrayEquals(expected, expr.evalRange(-0.5, 0.25, count).toArray(), 0.0);
+        assertArrayEquals(expected, expr.evalRange(-0.5, 0.25, count).parallel().toArray(), 0.0);
+        assertEquals(java.util.Arrays.stream(expected).sum(), expr.evalRange(-0.5, 0.25, count).sum(), 1e-3);
+        java.util.PrimitiveIterator.OfDouble iterator = expr.evalRange(-0.5, 0.25, count).iterator();
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(expected[i], iterator.nextDouble(), 0.0);
+        }
+        assertEquals(0, expr.evalRange(0, 1, 0).count());
+    }
+
+    /**
+     * Tests that a sweep is lazy and splits.
+     * Verifies that a sequence far too long to compute can be cut short, and that it reports its size.
+     */
+    @Test
+    void testEvalRangeIsLazy() {
+        CompiledExpression expr = MadCalc.compile("x * x", "x");
+        assertArrayEquals(new double[] {0, 1, 4, 9}, expr.evalRange(0, 1, Long.MAX_VALUE).limit(4).toArray(), 0.0);
+        assertEquals(100.0, expr.evalRange(0, 1, Long.MAX_VALUE).filter(v -> v >= 100).findFirst().getAsDouble(), 0.0);
+        java.util.Spliterator.OfDouble spliterator = expr.evalRange(0, 1, 10_000).spliterator();
+        java.util.Spliterator.OfDouble prefix = spliterator.trySplit();
+        assertEquals(5000, prefix.getExactSizeIfKnown());
+        assertEquals(5000, spliterator.getExactSizeIfKnown());
+        assertThrows(IllegalArgumentException.class, () -> MadCalc.compile("x * y", "x", "y").evalRange(0, 1, 10));
+        assertThrows(IllegalArgumentException.class, () -> expr.evalRange(0, Double.NaN, 10));
+        assertThrows(IllegalArgumentException.class, () -> expr.evalRange(0, 1, -1));
+        assertThrows(IllegalArgumentException.class, () -> MadCalc.compile("sqrt(x)", "x").evalRange(-1, 1, 10).toArray());
+    }
+}
@@ -0,0 +1,152 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for the evaluation daemon on a Unix domain socket.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class EvalDaemonTest {
+
+    /**
+     * Tests a client sending a whole batch.
+     * Verifies one answer or friendly message per line and that the socket file is removed on close.
+     */
+    @Test
+    void testForward(@TempDir Path dir) throws Exception {
+        Path socket = dir.resolve("madcalc.sock");
+        EvalDaemon daemon = EvalDaemon.start(socket);
+        try {
+            assertEquals("13.0\n4.0\nOops! Your parentheses don't match. Please check and try again.\n",
+                    forward(socket, "3 + (9 + 1)\nsqrt 16\n(2+3\n"));
+            assertEquals("8.0\n", forward(socket, "cube 2\nexit\n1+1\n"));
+        } finally {
+            daemon.close();
+        }
+        assertFalse(Files.exists(socket));
+    }
+
+    /**
+     * Tests a client talking line by line.
+     * Verifies that each answer arrives before the next line is sent and that exit ends the connection.
+     */
+    @Test
+    void testLineByLine(@TempDir Path dir) throws Exception {
+        Path socket = dir.resolve("madcalc.sock");
+        EvalDaemon daemon = EvalDaemon.start(socket);
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            OutputStream out = Channels.newOutputStream(channel);
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            for (int i = 1; i <= 5; i++) {
+                out.write(("pow2 " + i + "\n").getBytes(StandardCharsets.UTF_8));
+                assertEquals(String.valueOf((double) i * i), in.readLine());
+            }
+            out.write("exit\n".getBytes(StandardCharsets.UTF_8));
+            assertNull(in.readLine());
+        } finally {
+            daemon.close();
+        }
+    }
+
+    /**
+     * Tests many clients at once.
+     * Verifies that concurrent connections each get their own answers.
+     */
+    @Test
+    void testConcurrentClients(@TempDir Path dir) throws Exception {
+        Path socket = dir.resolve("madcalc.sock");
+        EvalDaemon daemon = EvalDaemon.start(socket);
+        try {
+            List<CompletableFuture<String>> answers = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                String input = i + " * 2\n";
+                answers.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return forward(socket, input);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+            }
+            for (int i = 0; i < 50; i++) {
+                assertEquals((i * 2.0) + "\n", answers.get(i).get());
+            }
+        } finally {
+            daemon.close();
+        }
+    }
+
+    /**
+     * Tests an existing socket file.
+     * Verifies that a live daemon is not replaced and a leftover file is.
+     */
+    @Test
+    void testSocketFileInUse(@TempDir Path dir) throws Exception {
+        Path socket = dir.resolve("madcalc.sock");
+        EvalDaemon live = EvalDaemon.start(socket);
+        try {
+            assertThrows(IOException.class, () -> EvalDaemon.start(socket));
+            assertEquals("2.0\n", forward(socket, "1+1\n"));
+        } finally {
+            live.close();
+        }
+        Files.createFile(socket);
+        EvalDaemon replacing = EvalDaemon.start(socket);
+        try {
+            assertEquals("2.0\n", forward(socket, "1+1\n"));
+        } finally {
+            replacing.close();
+        }
+        assertThrows(IOException.class, () -> forward(socket, "1+1\n"));
+    }
+
+    /**
+     * Tests the permissions of the socket file.
+     * Verifies that only the owner may use it and that no directory is left behind.
+     */
+    @Test
+    void testSocketPermissions(@TempDir Path dir) throws Exception {
+        Path socket = dir.resolve("madcalc.sock");
+        EvalDaemon daemon = EvalDaemon.start(socket);
+        try {
+            assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(socket));
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(List.of(socket), files.collect(Collectors.toList()));
+            }
+            assertEquals("2.0\n", forward(socket, "1+1\n"));
+        } finally {
+            daemon.close();
+        }
+    }
+
+    private static String forward(Path socket, String input) throws IOException {
+        StringWriter out = new StringWriter();
+        EvalDaemon.forward(socket, new StringReader(input), out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,126 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import com.sun.net.httpserver.HttpServer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for the embedded HTTP evaluation service.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class EvalServerTest {
+    private static HttpServer server;
+    private static HttpClient client;
+
+    /**
+     * Starts the server on a free port.
+     */
+    @BeforeAll
+    static void startServer() throws Exception {
+        server = EvalServer.start(0);
+        client = HttpClient.newHttpClient();
+    }
+
+    /**
+     * Stops the server.
+     */
+    @AfterAll
+    static void stopServer() {
+        server.stop(0);
+    }
+
+    /**
+     * Tests a single evaluation.
+     * Verifies that the answer is returned with status 200.
+     */
+    @Test
+    void testEval() throws Exception {
+        HttpResponse<String> response = post("/eval", "3 + (9 + 1)\n");
+        assertEquals(200, response.statusCode());
+        assertEquals("13.0\n", response.body());
+    }
+
+    /**
+     * Tests a single evaluation of invalid input.
+     * Verifies that the friendly message is returned with status 400 and the error position in the headers.
+     */
+    @Test
+    void testEvalError() throws Exception {
+        HttpResponse<String> response = post("/eval", "(2+3");
+        assertEquals(400, response.statusCode());
+        assertEquals("Oops! Your parentheses don't match. Please check and try again.\n", response.body());
+        assertEquals("MISMATCHED_PARENTHESES", response.headers().firstValue("X-Error-Code").orElse(null));
+        assertEquals("4", response.headers().firstValue("X-Error-Position").orElse(null));
+    }
+
+    /**
+     * Tests a batch evaluation.
+     * Verifies one answer line per input line.
+     */
+    @Test
+    void testBatch() throws Exception {
+        HttpResponse<String> response = post("/eval/batch", "1+1\nsqrt 16\ncube 2\n");
+        assertEquals(200, response.statusCode());
+        assertEquals("2.0\n4.0\n8.0\n", response.body());
+    }
+
+    /**
+     * Tests requests that do not match an endpoint.
+     * Verifies 405 for the wrong method and 404 for an unknown path.
+     */
+    @Test
+    void testWrongMethodAndPath() throws Exception {
+        HttpRequest get = HttpRequest.newBuilder(uri("/eval")).GET().build();
+        assertEquals(405, client.send(get, HttpResponse.BodyHandlers.ofString()).statusCode());
+        assertEquals(404, post("/evaluate", "1").statusCode());
+    }
+
+    /**
+     * Tests many concurrent requests.
+     * Verifies that every client gets its own answer.
+     */
+    @Test
+    void testConcurrentRequests() throws Exception {
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            HttpRequest request = HttpRequest.newBuilder(uri("/eval")).POST(HttpRequest.BodyPublishers.ofString(i + "*2")).build();
+            responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+        }
+        for (int i = 0; i < responses.size(); i++) {
+            assertEquals((i * 2.0) + "\n", responses.get(i).get().body());
+        }
+    }
+
+    /**
+     * Sends a POST request and waits for the response.
+     *
+     * @param path the request path
+     * @param body the request body
+     * @return the response
+     */
+    private static HttpResponse<String> post(String path, String body) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uri(path)).POST(HttpRequest.BodyPublishers.ofString(body)).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Builds the URI of a path on the test server.
+     *
+     * @param path the request path
+     * @return the full URI
+     */
+    private static URI uri(String path) {
+        return URI.create("http://localhost:" + server.getAddress().getPort() + path);
+    }
+}
@@ -0,0 +1,207 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for the thread-safe evaluator of expressions.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class EvaluatorTest {
+    private static final String[] EXPRESSIONS = {
+        "3 + (9 + 1)", "2*sqrt(16)+cube(3)", "sqrt 9+7", "-(-(2 * (3 - 4.5)))", "1 / 0", "pow2 (1 + 2)"
+    };
+
+    /**
+     * Tests single evaluations.
+     * Verifies that answers and errors are the same as those of a new parser for every expression.
+     */
+    @Test
+    void testEvaluate() {
+        Evaluator evaluator = new Evaluator();
+        for (String expression : EXPRESSIONS) {
+            assertEquals(new Parser(expression).evaluate(new double[0]), evaluator.evaluate(expression), 0.0, expression);
+        }
+        assertEquals(ExpressionException.ErrorCode.MISMATCHED_PARENTHESES,
+                assertThrows(ExpressionException.class, () -> evaluator.evaluate("((2 * 3) + 1")).getCode());
+        assertEquals(13.0, evaluator.evaluate(new StringBuilder("3 + (9 + 1)")), 0.0);
+        assertThrows(IllegalArgumentException.class, () -> evaluator.evaluate("sqrt -4"));
+        ExpressionException malformed = assertThrows(ExpressionException.class, () -> evaluator.evaluate("2 * 1.2.3"));
+        assertEquals(ExpressionException.ErrorCode.MALFORMED_NUMBER, malformed.getCode());
+        assertEquals(4, malformed.getPosition());
+        assertEquals(7.0, evaluator.evaluate("(((1 + 2) * 2) + 1)"), 0.0);
+    }
+
+    /**
+     * Tests reuse after errors.
+     * Verifies that an expression that failed half-way leaves nothing behind for the next one.
+     */
+    @Test
+    void testReuseAfterError() {
+        Evaluator evaluator = new Evaluator();
+        assertThrows(ExpressionException.class, () -> evaluator.evaluate("((2 * (3 +"));
+        assertThrows(ExpressionException.class, () -> evaluator.evaluate("(1 - (2 / x"));
+        assertEquals(5.0, evaluator.evaluate("(2 + (3))"), 0.0);
+        assertEquals(-6.0, evaluator.evaluate("((2) * -3)"), 0.0);
+    }
+
+    /**
+     * Tests functions that evaluate expressions themselves.
+     * Verifies that a nested call on the same thread does not disturb the outer one.
+     */
+    @Test
+    void testReentrantFunction() {
+        FunctionRegistry functions = new FunctionRegistry();
+        Evaluator evaluator = new Evaluator(functions);
+        functions.register("inner", 1, args -> evaluator.evaluate("(1 + 1) * " + args[0]));
+        assertEquals(21.0, evaluator.evaluate("1 + (inner(2 + 3) * 2)"), 0.0);
+    }
+
+    /**
+     * Tests allocation.
+     * Verifies that a warmed-up evaluator allocates nothing per expression.
+     */
+    @Test
+    void testNoAllocation() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        Evaluator evaluator = new Evaluator();
+        double sum = 0;
+        for (int i = 0; i < 10_000; i++) {
+            sum += evaluator.evaluate(EXPRESSIONS[i % 4]);
+        }
+        long thread = Thread.currentThread().threadId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100_000; i++) {
+            sum += evaluator.evaluate(EXPRESSIONS[i % 4]);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertTrue(sum > 0);
+        assertTrue(allocated < 100_000, "allocated " + allocated + " bytes for 100000 expressions");
+    }
+
+    /**
+     * Tests many threads sharing one evaluator.
+     * Verifies that every thread gets exactly the single-threaded answers under contention.
+     */
+    @Test
+    void testConcurrentStress() throws Exception {
+        Evaluator evaluator = new Evaluator();
+        Random random = new Random(7);
+        String[] formulas = new String[500];
+        double[] expected = new double[formulas.length];
+        for (int i = 0; i < formulas.length; i++) {
+            formulas[i] = randomFormula(random, 4);
+            expected[i] = new Parser(formulas[i]).evaluate(new double[0]);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(32);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < 64; t++) {
+                int offset = t;
+                results.add(pool.submit(() -> {
+                    int mismatches = 0;
+                    for (int n = 0; n < 20_000; n++) {
+                        int i = (n * 31 + offset) % formulas.length;
+                        if (Double.doubleToLongBits(evaluator.evaluate(formulas[i])) != Double.doubleToLongBits(expected[i])) {
+                            mismatches++;
+                        }
+                    }
+                    return mismatches;
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(0, result.get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests scaling with the number of threads.
+     * Verifies that threads sharing one evaluator do not serialize on each other;
+     * it needs at least two processors.
+     */
+    @Test
+    void testScaling() throws Exception {
+        int cores = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+        assumeTrue(cores >= 2, "needs at least two processors");
+        Evaluator evaluator = new Evaluator();
+        long single = Long.MAX_VALUE, parallel = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            single = Math.min(single, timeThreads(evaluator, 1));
+            parallel = Math.min(parallel, timeThreads(evaluator, cores));
+        }
+        double speedup = cores * (double) single / parallel;
+        assertTrue(speedup > cores * 0.5, "speedup " + speedup + " on " + cores + " threads");
+    }
+
+    /**
+     * Runs the same amount of work on each of several threads.
+     *
+     * @param evaluator the shared evaluator
+     * @param threads the number of threads
+     * @return the elapsed time in nanoseconds
+     */
+    private static long timeThreads(Evaluator evaluator, int threads) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Double>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                tasks.add(() -> {
+                    double sum = 0;
+                    for (int n = 0; n < 200_000; n++) {
+                        sum += evaluator.evaluate(EXPRESSIONS[n % 4]);
+                    }
+                    return sum;
+                });
+            }
+            long start = System.nanoTime();
+            for (Future<Double> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Builds a random formula over small numbers and the built-in functions.
+     *
+     * @param random the random source
+     * @param depth the remaining nesting depth
+     * @return the formula text
+     */
+    private static String randomFormula(Random random, int depth) {
+        if (depth == 0 || random.nextInt(4) == 0) {
+            return random.nextInt(10) + "." + random.nextInt(10);
+        }
+        switch (random.nextInt(6)) {
+            case 0:
+                return "-(" + randomFormula(random, depth - 1) + ")";
+            case 1:
+                return "pow2(" + randomFormula(random, depth - 1) + ")";
+            case 2:
+                return "sqrt(pow2(" + randomFormula(random, depth - 1) + "))";
+            default:
+                char op = "+-*/".charAt(random.nextInt(4));
+                return "(" + randomFormula(random, depth - 1) + " " + op + " " + randomFormula(random, depth - 1) + ")";
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for the memory-mapped store of compiled expressions.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class ExpressionStoreTest {
+
+    private static final String[] FORMULAS = {
+        "3 + (9 + 1)", "w * h / 2", "-x", "x*x*x - 2*y", "sqrt(pow2(x) + pow2(y))",
+        "((x + 1) * (y - 2)) / ((x - 3) * (y + 4))", "0.1 + 0.2 * -0", "cube(x) / 0"
+    };
+
+    /**
+     * Tests saving and loading.
+     * Verifies that a reopened store loads every expression and that the results are bit-for-bit unchanged.
+     */
+    @Test
+    void testRoundTrip(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("formulas.mcx");
+        ExpressionStore store = ExpressionStore.open(file);
+        assertEquals(0, store.size());
+        for (String formula : FORMULAS) {
+            store.compile(formula, "x", "y", "w", "h");
+        }
+        store.save();
+        assertEquals(FORMULAS.length, store.size());
+
+        ExpressionStore reopened = ExpressionStore.open(file);
+        assertFalse(reopened.isStale());
+        assertEquals(FORMULAS.length, reopened.size());
+        Random random = new Random(3);
+        for (String formula : FORMULAS) {
+            assertTrue(reopened.contains(formula, "x", "y", "w", "h"), formula);
+            CompiledExpression loaded = reopened.compile(formula, "x", "y", "w", "h");
+            CompiledExpression fresh = MadCalc.compile(formula, "x", "y", "w", "h");
+            assertEquals(formula, loaded.getSource());
+            for (int i = 0; i < 50; i++) {
+                double[] vars = {random.nextGaussian(), random.nextGaussian(), random.nextInt(5), random.nextInt(5)};
+                assertEquals(Double.doubleToLongBits(fresh.eval(vars)), Double.doubleToLongBits(loaded.eval(vars)), formula);
+            }
+        }
+        assertFalse(reopened.contains("w * h / 2", "w", "h"));
+        reopened.compile("w * h / 2", "w", "h");
+        reopened.save();
+        assertEquals(FORMULAS.length + 1, ExpressionStore.open(file).size());
+    }
+
+    /**
+     * Tests stale files.
+     * Verifies that a file of another version or a damaged file is ignored and rebuilt.
+     */
+    @Test
+    void testStaleFileIsRebuilt(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("formulas.mcx");
+        ExpressionStore store = ExpressionStore.open(file);
+        store.compile("x + 1", "x");
+        store.save();
+
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer.wrap(bytes).putInt(4, ExpressionStore.FORMAT_VERSION + 1);
+        Files.write(file, bytes);
+        ExpressionStore old = ExpressionStore.open(file);
+        assertTrue(old.isStale());
+        assertFalse(old.contains("x + 1", "x"));
+        assertEquals(3.0, old.compile("x + 1", "x").eval(2), 0.0);
+        old.save();
+        assertFalse(ExpressionStore.open(file).isStale());
+        assertTrue(ExpressionStore.open(file).contains("x + 1", "x"));
+
+        byte[] valid = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(valid, valid.length - 3));
+        ExpressionStore truncated = ExpressionStore.open(file);
+        assertEquals(3.0, truncated.compile("x + 1", "x").eval(2), 0.0);
+        assertTrue(truncated.isStale());
+
+        Files.write(file, new byte[] {1, 2, 3});
+        assertTrue(ExpressionStore.open(file).isStale());
+    }
+
+    /**
+     * Tests lookups in damaged records.
+     * Verifies that a record cut inside its key or its program is a miss that makes the file stale.
+     */
+    @Test
+    void testDamagedRecordIsMissed(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("formulas.mcx");
+        ExpressionStore store = ExpressionStore.open(file);
+        store.compile("x * 2 + 1", "x");
+        store.save();
+        byte[] valid = Files.readAllBytes(file);
+        int record = ByteBuffer.wrap(valid).getInt(12 + 8);
+
+        Files.write(file, Arrays.copyOf(valid, record + 8));
+        ExpressionStore cutInKey = ExpressionStore.open(file);
+        assertFalse(cutInKey.isStale());
+        assertFalse(cutInKey.contains("x * 2 + 1", "x"));
+        assertTrue(cutInKey.isStale());
+
+        Files.write(file, Arrays.copyOf(valid, valid.length - 1));
+        ExpressionStore cutInProgram = ExpressionStore.open(file);
+        assertFalse(cutInProgram.contains("x * 2 + 1", "x"));
+        assertTrue(cutInProgram.isStale());
+        assertEquals(5.0, cutInProgram.compile("x * 2 + 1", "x").eval(2), 0.0);
+        cutInProgram.save();
+        assertTrue(ExpressionStore.open(file).contains("x * 2 + 1", "x"));
+    }
+
+    /**
+     * Tests expressions that cannot be stored.
+     * Verifies that calls of user-registered functions are not encoded and that errors are unchanged.
+     */
+    @Test
+    void testUnstorableExpressions(@TempDir Path dir) throws Exception {
+        FunctionRegistry functions = new FunctionRegistry().register("twice", 1, args -> 2 * args[0]);
+        assertNull(ExpressionStore.encode(MadCalc.compile("twice(x)", functions, "x").root()));
+        ExpressionStore store = ExpressionStore.open(dir.resolve("formulas.mcx"));
+        assertThrows(RuntimeException.class, () -> store.compile("(x + 1", "x"));
+        assertThrows(IllegalArgumentException.class, () -> store.compile("x", "x", "x"));
+        assertEquals(0, store.size());
+    }
+}
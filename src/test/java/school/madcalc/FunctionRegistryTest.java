@@ -0,0 +1,76 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for the registry of functions that expressions may call.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class FunctionRegistryTest {
+
+    /**
+     * Tests the lookup of names.
+     * Verifies that the built-in functions are found in any letter case and other names are not.
+     */
+    @Test
+    void testLookup() {
+        FunctionRegistry functions = new FunctionRegistry();
+        assertSame(functions.lookup("sqrt"), functions.lookup(new StringBuilder("SqRt")));
+        assertEquals(1, functions.lookup("pow2").arity);
+        assertTrue(functions.contains("CUBE"));
+        assertFalse(functions.contains("sqr"));
+        assertNull(functions.lookup("sqrt2"));
+        for (int i = 0; i < 100; i++) {
+            functions.register("f" + i, 1 + i % 3, args -> args.length);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1 + i % 3, functions.lookup("F" + i).arity);
+        }
+        assertFalse(FunctionRegistry.BUILT_INS.contains("f1"));
+    }
+
+    /**
+     * Tests user-registered functions.
+     * Verifies calls with several arguments in compiled expressions, row by row and by columns.
+     */
+    @Test
+    void testUserFunctions() {
+        FunctionRegistry functions = new FunctionRegistry()
+                .register("hypot", 2, args -> Math.hypot(args[0], args[1]))
+                .register("clamp", 3, args -> Math.max(args[1], Math.min(args[2], args[0])));
+        CompiledExpression expression = MadCalc.compile("2 * hypot(x, y) + clamp(x - y, 0, 1)", functions, "x", "y");
+        assertEquals(11.0, expression.eval(4, 3), 0.0001);
+        assertEquals(20.0, expression.eval(-6, 8), 0.0001);
+        double[] out = new double[2];
+        expression.evalColumns(new double[][] {{4, -6}, {3, 8}}, out);
+        assertEquals(11.0, out[0], 0.0001);
+        assertEquals(20.0, out[1], 0.0001);
+        assertEquals(5.0, MadCalc.compile("hypot(hypot(3, 0), sqrt(16))", functions).eval(), 0.0001);
+    }
+
+    /**
+     * Tests invalid registrations and calls.
+     * Verifies that bad names, duplicates, missing arguments and the built-in registry are refused.
+     */
+    @Test
+    void testErrors() {
+        FunctionRegistry functions = new FunctionRegistry().register("twice", 1, args -> 2 * args[0]);
+        assertThrows(IllegalArgumentException.class, () -> functions.register("Twice", 1, args -> 0));
+        assertThrows(IllegalArgumentException.class, () -> functions.register("sqrt", 1, args -> 0));
+        assertThrows(IllegalArgumentException.class, () -> functions.register("2x", 1, args -> 0));
+        assertThrows(IllegalArgumentException.class, () -> functions.register("none", 0, args -> 0));
+        assertThrows(UnsupportedOperationException.class, () -> FunctionRegistry.BUILT_INS.register("g", 1, args -> 0));
+        assertThrows(IllegalArgumentException.class, () -> MadCalc.compile("twice", functions, "twice"));
+        assertEquals("Wrong number of arguments for twice: expected 1",
+                assertThrows(RuntimeException.class, () -> MadCalc.compile("twice(1, 2)", functions)).getMessage());
+        assertThrows(RuntimeException.class, () -> MadCalc.compile("twice(1)"));
+    }
+}
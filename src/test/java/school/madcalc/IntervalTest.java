@@ -0,0 +1,121 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link Interval} and {@link CompiledExpression#bound(Interval...)}.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class IntervalTest {
+
+    /**
+     * Tests creating intervals.
+     * Verifies the bounds, containment, the hull and that invalid bounds are refused.
+     */
+    @Test
+    void testInterval() {
+        Interval interval = new Interval(-1, 2);
+        assertEquals(-1, interval.getLower(), 0.0);
+        assertEquals(2, interval.getUpper(), 0.0);
+        assertTrue(interval.contains(0));
+        assertFalse(interval.contains(2.5));
+        assertEquals(new Interval(-1, 5), interval.hull(new Interval(3, 5)));
+        assertEquals("[-1.0, 2.0]", interval.toString());
+        assertThrows(IllegalArgumentException.class, () -> new Interval(2, 1));
+        assertThrows(IllegalArgumentException.class, () -> new Interval(Double.NaN, 1));
+    }
+
+    /**
+     * Tests interval arithmetic.
+     * Verifies each operator and function on ranges with and without zero.
+     */
+    @Test
+    void testArithmetic() {
+        Interval a = new Interval(-2, 3);
+        Interval b = new Interval(4, 5);
+        assertEquals(new Interval(2, 8), Interval.apply('+', a, b));
+        assertEquals(new Interval(-7, -1), Interval.apply('-', a, b));
+        assertEquals(new Interval(-10, 15), Interval.apply('*', a, b));
+        assertEquals(new Interval(-0.5, 0.75), Interval.apply('/', a, b));
+        assertEquals(Interval.ENTIRE, Interval.apply('/', b, a));
+        assertEquals(new Interval(-3, 2), a.negate());
+        assertEquals(new Interval(0, 9), a.square());
+        assertEquals(new Interval(16, 25), b.square());
+        assertEquals(new Interval(4, 9), new Interval(-3, -2).square());
+        assertEquals(new Interval(-8, 27), a.cube());
+        assertEquals(new Interval(0, Math.sqrt(3)), a.sqrt());
+        assertThrows(IllegalArgumentException.class, () -> new Interval(-2, -1).sqrt());
+        assertEquals(Interval.ENTIRE, Interval.apply('*', new Interval(0, 0), new Interval(1, Double.POSITIVE_INFINITY)));
+    }
+
+    /**
+     * Tests bounding compiled expressions.
+     * Verifies exact bounds of monotone formulas and the usual widening when a variable repeats.
+     */
+    @Test
+    void testBound() {
+        assertEquals(new Interval(0, 5.0000005E13), MadCalc.compile("(x + 1) * x / 2", "x").bound(new Interval(0, 1e7)));
+        assertEquals(new Interval(-1, 1), MadCalc.compile("x - x", "x").bound(new Interval(0, 1)));
+        assertEquals(new Interval(1, 20), MadCalc.compile("x * y", "x", "y").bound(new Interval(1, 2), new Interval(1, 10)));
+        assertEquals(new Interval(7, 7), MadCalc.compile("3 + 4").bound());
+        assertEquals(new Interval(2, 4), MadCalc.compile("sqrt(x) + cube(1)", "x").bound(new Interval(1, 9)));
+        assertThrows(IllegalArgumentException.class, () -> MadCalc.compile("x", "x").bound());
+        assertThrows(IllegalArgumentException.class, () -> MadCalc.compile("sqrt(x)", "x").bound(new Interval(-2, -1)));
+    }
+
+    /**
+     * Tests bounding a registered function.
+     * Verifies that it is called for single numbers and gives the whole number line otherwise.
+     */
+    @Test
+    void testBoundCall() {
+        FunctionRegistry functions = new FunctionRegistry().register("hypot", 2, args -> Math.hypot(args[0], args[1]));
+        assertEquals(new Interval(5, 5), MadCalc.compile("hypot(3, 4)", functions).bound());
+        assertEquals(Interval.ENTIRE, MadCalc.compile("hypot(x, 4)", functions, "x").bound(new Interval(0, 1)));
+    }
+
+    /**
+     * Tests bounding in pieces.
+     * Verifies that more pieces give a tighter bound and that pieces where the formula fails are left out.
+     */
+    @Test
+    void testBoundInPieces() {
+        CompiledExpression expr = MadCalc.compile("x * x - 2 * x", "x");
+        Interval one = expr.bound(0, 2, 1);
+        Interval many = expr.bound(0, 2, 1000);
+        assertEquals(new Interval(-4, 4), one);
+        assertTrue(many.getLower() <= -1 && many.getLower() > -1.01, many.toString());
+        assertTrue(many.getUpper() >= 0 && many.getUpper() < 0.01, many.toString());
+        assertEquals(new Interval(0, 2), MadCalc.compile("sqrt(x)", "x").bound(-4, 4, 4));
+        assertThrows(IllegalArgumentException.class, () -> MadCalc.compile("sqrt(x)", "x").bound(-4, -1, 4));
+        assertThrows(IllegalArgumentException.class, () -> expr.bound(0, 2, 0));
+    }
+
+    /**
+     * Tests that bounds hold.
+     * Verifies that random points of random ranges evaluate to values inside the bound.
+     */
+    @Test
+    void testBoundContainsValues() {
+        CompiledExpression expr = MadCalc.compile("cube(x - y) / (y * y + 1) - pow2(x) * 0.1 + sqrt(y)", "x", "y");
+        SplittableRandom random = new SplittableRandom(7);
+        for (int i = 0; i < 200; i++) {
+            double x = random.nextDouble(-100, 100), y = random.nextDouble(0, 100);
+            Interval xs = new Interval(x, x + random.nextDouble(10));
+            Interval ys = new Interval(y, y + random.nextDouble(10));
+            Interval bound = expr.bound(xs, ys);
+            for (int j = 0; j < 50; j++) {
+                double value = expr.eval(random.nextDouble(xs.getLower(), Math.nextUp(xs.getUpper())),
+                        random.nextDouble(ys.getLower(), Math.nextUp(ys.getUpper())));
+                assertTrue(bound.contains(value), value + " outside " + bound);
+            }
+        }
+    }
+}
@@ -51,6 +51,52 @@ class MadCalcTest {
         assertTrue(ex2.getMessage().contains("Unexpected"));
     }
 
+    /**
+     * Tests whitespace handling in expressions.
+     * Verifies that all whitespace is ignored, including inside numbers.
+     */
+    @Test
+    void testWhitespaceIsIgnored() {
+        assertEquals(13.0, MadCalcTestHelper.evaluate(" 3 +\t( 9 + 1 ) "), 0.0001);
+        assertEquals(12.5, MadCalcTestHelper.evaluate("1 2 . 5"), 0.0001);
+    }
+
+    /**
+     * Tests numeric literals of many shapes.
+     * Verifies that each literal evaluates to exactly the value Double.parseDouble gives.
+     */
+    @Test
+    void testNumericLiteralsMatchParseDouble() {
+        String[] literals = {"0", "7", ".5", "5.", "0.1", "0.3", "123.456", "9007199254740993",
+                "12345678901234567890", "0.0000000000000000000001", "3.141592653589793238462643",
+                "00000000000000000000001.25", "1.7976931348623157"};
+        for (String literal : literals) {
+            assertEquals(Double.parseDouble(literal), MadCalcTestHelper.evaluate(literal), 0.0, literal);
+        }
+        java.util.Random random = new java.util.Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            String literal = Long.toString(random.nextLong() & Long.MAX_VALUE >>> random.nextInt(60));
+            int point = random.nextInt(literal.length() + 1);
+            literal = literal.substring(0, point) + "." + literal.substring(point);
+            assertEquals(Double.parseDouble(literal), MadCalcTestHelper.evaluate(literal), 0.0, literal);
+        }
+    }
+
+    /**
+     * Tests malformed numeric literals.
+     * Verifies that they are rejected instead of being partly read.
+     */
+    @Test
+    void testMalformedNumbers() {
+        ExpressionException e = assertThrows(ExpressionException.class, () -> MadCalcTestHelper.evaluate("1.2.3"));
+        assertEquals(ExpressionException.ErrorCode.MALFORMED_NUMBER, e.getCode());
+        assertEquals(0, e.getPosition());
+        assertEquals(0, e.getStackTrace().length);
+        assertEquals("Oops! That doesn't look like a valid expression. Please try again.", MadCalc.errorMessage("1.2.3", e));
+        assertEquals(ExpressionException.ErrorCode.MALFORMED_NUMBER,
+                assertThrows(ExpressionException.class, () -> MadCalcTestHelper.evaluate(".")).getCode());
+    }
+
     /**
      * Tests square root calculation with positive integers.
      * Verifies sqrt(16)=4 and sqrt(25)=5.
@@ -81,92 +127,54 @@ class MadCalcTest {
     }
 
     /**
-     * Helper class to access private methods of MadCalc using reflection.
-     * 
-     * <p>This class provides static methods that use Java reflection to invoke
-     * private methods in the MadCalc class for testing purposes.</p>
+     * Helper class to evaluate expressions and run the special function
+     * commands for testing purposes.
      */
     static class MadCalcTestHelper {
+        private static final Evaluator EVALUATOR = new Evaluator();
+
         /**
-         * Evaluates a mathematical expression using reflection to access
-         * the private evaluate method in MadCalc.
+         * Evaluates a mathematical expression with the public evaluator API.
          * 
          * @param expr the mathematical expression to evaluate
          * @return the result of the evaluation
          * @throws RuntimeException if the expression is invalid or evaluation fails
          */
         static double evaluate(String expr) {
-            // Use reflection to call private static method
-            try {
-                java.lang.reflect.Method m = MadCalc.class.getDeclaredMethod("evaluate", String.class);
-                m.setAccessible(true);
-                return (double) m.invoke(null, expr);
-            } catch (Exception e) {
-                throw new RuntimeException(e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
-            }
+            return EVALUATOR.evaluate(expr);
         }
 
         /**
-         * Calculates the square root of a number using reflection to access
-         * the private calculateSquareRoot method in MadCalc.
+         * Calculates the square root of a number with the 'sqrt' command.
          * 
          * @param numberStr the string representation of the number
          * @return the square root of the number
-         * @throws Exception if the string cannot be parsed or number is negative
+         * @throws RuntimeException if the argument is not a valid expression or is negative
          */
         static double calculateSquareRoot(String numberStr) throws Exception {
-            try {
-                java.lang.reflect.Method m = MadCalc.class.getDeclaredMethod("calculateSquareRoot", String.class);
-                m.setAccessible(true);
-                return (double) m.invoke(null, numberStr);
-            } catch (java.lang.reflect.InvocationTargetException e) {
-                if (e.getCause() instanceof RuntimeException) {
-                    throw (RuntimeException) e.getCause();
-                }
-                throw e;
-            }
+            return MadCalc.calculate("sqrt " + numberStr);
         }
 
         /**
-         * Calculates the power of two of a number using reflection to access
-         * the private calculatePowerOfTwo method in MadCalc.
+         * Calculates the power of two of a number with the 'pow2' command.
          * 
          * @param numberStr the string representation of the number
          * @return the square of the number
-         * @throws Exception if the string cannot be parsed as a number
+         * @throws RuntimeException if the argument is not a valid expression
          */
         static double calculatePowerOfTwo(String numberStr) throws Exception {
-            try {
-                java.lang.reflect.Method m = MadCalc.class.getDeclaredMethod("calculatePowerOfTwo", String.class);
-                m.setAccessible(true);
-                return (double) m.invoke(null, numberStr);
-            } catch (java.lang.reflect.InvocationTargetException e) {
-                if (e.getCause() instanceof RuntimeException) {
-                    throw (RuntimeException) e.getCause();
-                }
-                throw e;
-            }
+            return MadCalc.calculate("pow2 " + numberStr);
         }
 
         /**
-         * Calculates the cube of a number using reflection to access
-         * the private calculateCube method in MadCalc.
+         * Calculates the cube of a number with the 'cube' command.
          * 
          * @param numberStr the string representation of the number
          * @return the cube of the number
-         * @throws Exception if the string cannot be parsed as a number
+         * @throws RuntimeException if the argument is not a valid expression
          */
         static double calculateCube(String numberStr) throws Exception {
-            try {
-                java.lang.reflect.Method m = MadCalc.class.getDeclaredMethod("calculateCube", String.class);
-                m.setAccessible(true);
-                return (double) m.invoke(null, numberStr);
-            } catch (java.lang.reflect.InvocationTargetException e) {
-                if (e.getCause() instanceof RuntimeException) {
-                    throw (RuntimeException) e.getCause();
-                }
-                throw e;
-            }
+            return MadCalc.calculate("cube " + numberStr);
         }
     }
 
@@ -182,12 +190,16 @@ class MadCalcTest {
 
     /**
      * Tests square root calculation with non-numeric input.
-     * Verifies that a NumberFormatException is thrown for invalid input.
+     * Verifies that the user is asked for a number instead.
      */
     @Test
     void testSquareRootNonNumeric() throws Exception {
-        assertThrows(NumberFormatException.class, () -> MadCalcTestHelper.calculateSquareRoot("abc"));
-        assertThrows(NumberFormatException.class, () -> MadCalcTestHelper.calculateSquareRoot(""));
+        ExpressionException e = assertThrows(ExpressionException.class, () -> MadCalcTestHelper.calculateSquareRoot("abc"));
+        assertEquals(ExpressionException.ErrorCode.UNEXPECTED, e.getCode());
+        assertEquals(5, e.getPosition());
+        assertEquals("Oops! 'sqrt' needs a number. Please try again with 'sqrt <number>'.", MadCalc.errorMessage("sqrt abc", e));
+        ExpressionException empty = assertThrows(ExpressionException.class, () -> MadCalcTestHelper.calculateSquareRoot(""));
+        assertEquals(ExpressionException.ErrorCode.UNEXPECTED, empty.getCode());
     }
 
     /**
@@ -240,12 +252,16 @@ class MadCalcTest {
 
     /**
      * Tests power of two calculation with non-numeric input.
-     * Verifies that a NumberFormatException is thrown for invalid input.
+     * Verifies that the user is asked for a number instead.
      */
     @Test
     void testPowerOfTwoNonNumeric() throws Exception {
-        assertThrows(NumberFormatException.class, () -> MadCalcTestHelper.calculatePowerOfTwo("xyz"));
-        assertThrows(NumberFormatException.class, () -> MadCalcTestHelper.calculatePowerOfTwo(""));
+        ExpressionException e = assertThrows(ExpressionException.class, () -> MadCalcTestHelper.calculatePowerOfTwo("xyz"));
+        assertEquals(ExpressionException.ErrorCode.UNEXPECTED, e.getCode());
+        assertEquals(5, e.getPosition());
+        assertEquals("Oops! 'pow2' needs a number. Please try again with 'pow2 <number>'.", MadCalc.errorMessage("pow2 xyz", e));
+        ExpressionException empty = assertThrows(ExpressionException.class, () -> MadCalcTestHelper.calculatePowerOfTwo(""));
+        assertEquals(ExpressionException.ErrorCode.UNEXPECTED, empty.getCode());
     }
 
     /**
@@ -298,11 +314,29 @@ class MadCalcTest {
 
     /**
      * Tests cube calculation with non-numeric input.
-     * Verifies that a NumberFormatException is thrown for invalid input.
+     * Verifies that the user is asked for a number instead.
      */
     @Test
     void testCubeNonNumeric() throws Exception {
-        assertThrows(NumberFormatException.class, () -> MadCalcTestHelper.calculateCube("abc"));
-        assertThrows(NumberFormatException.class, () -> MadCalcTestHelper.calculateCube(""));
+        ExpressionException e = assertThrows(ExpressionException.class, () -> MadCalcTestHelper.calculateCube("abc"));
+        assertEquals(ExpressionException.ErrorCode.UNEXPECTED, e.getCode());
+        assertEquals(5, e.getPosition());
+        assertEquals("Oops! 'cube' needs a number. Please try again with 'cube <number>'.", MadCalc.errorMessage("cube abc", e));
+        ExpressionException empty = assertThrows(ExpressionException.class, () -> MadCalcTestHelper.calculateCube(""));
+        assertEquals(ExpressionException.ErrorCode.UNEXPECTED, empty.getCode());
+    }
+
+    /**
+     * Tests special functions inside expressions.
+     * Verifies 2*sqrt(16)+cube(3)=35, nested calls, any letter case and the command form.
+     */
+    @Test
+    void testFunctionsInExpressions() {
+        assertEquals(35.0, MadCalc.calculate("2*sqrt(16)+cube(3)"), 0.0001);
+        assertEquals(3.0, MadCalc.calculate("sqrt(pow2(3))"), 0.0001);
+        assertEquals(-8.0, MadCalc.calculate("-CUBE (1 + 1)"), 0.0001);
+        assertEquals(4.0, MadCalc.calculate("sqrt 9 + 7"), 0.0001);
+        RuntimeException e = assertThrows(IllegalArgumentException.class, () -> MadCalc.calculate("1 + sqrt(-4)"));
+        assertEquals("I can only calculate the square root of positive numbers!", MadCalc.errorMessage("1 + sqrt(-4)", e));
     }
-}
\ No newline at end of file
+}
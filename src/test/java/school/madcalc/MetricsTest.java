@@ -0,0 +1,166 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for the answer counters and latency histograms.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class MetricsTest {
+
+    /**
+     * Tests the histogram buckets.
+     * Verifies that every value lands in a bucket whose bounds contain it and are at most 12.5% wide.
+     */
+    @Test
+    void testBuckets() {
+        for (long value : new long[] {0, 1, 15, 16, 17, 31, 32, 1000, 123_456_789, Long.MAX_VALUE / 3, Long.MAX_VALUE}) {
+            int bucket = Metrics.Histogram.bucket(value);
+            long lower = Metrics.Histogram.lowerBound(bucket);
+            assertTrue(lower <= value, "lower bound of " + value);
+            if (bucket + 1 < Metrics.Histogram.bucket(Long.MAX_VALUE)) {
+                long upper = Metrics.Histogram.lowerBound(bucket + 1);
+                assertTrue(value < upper, "upper bound of " + value);
+                assertTrue(upper - lower <= Math.max(1, lower / 8), "width at " + value);
+            }
+        }
+        for (int bucket = 0; bucket < 400; bucket++) {
+            assertEquals(bucket, Metrics.Histogram.bucket(Metrics.Histogram.lowerBound(bucket)));
+        }
+    }
+
+    /**
+     * Tests percentiles.
+     * Verifies them against a uniform spread of recorded values.
+     */
+    @Test
+    void testPercentiles() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 1; i <= 10_000; i++) {
+            histogram.record(i * 100L);
+        }
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(500_050.0, histogram.getMeanNanos(), 0.0001);
+        assertEquals(1_000_000, histogram.getMaxNanos());
+        assertEquals(500_000, histogram.getP50Nanos(), 500_000 / 8.0);
+        assertEquals(990_000, histogram.getP99Nanos(), 990_000 / 8.0);
+        assertTrue(histogram.getP90Nanos() >= 900_000);
+        assertEquals(0, new Metrics.Histogram().getP99Nanos());
+    }
+
+    /**
+     * Tests adding histograms.
+     * Verifies that the sum of two halves matches one histogram of all values.
+     */
+    @Test
+    void testAddAll() {
+        Metrics.Histogram all = new Metrics.Histogram();
+        Metrics.Histogram low = new Metrics.Histogram();
+        Metrics.Histogram high = new Metrics.Histogram();
+        for (int i = 1; i <= 10_000; i++) {
+            all.record(i * 100L);
+            (i <= 5_000 ? low : high).record(i * 100L);
+        }
+        low.addAll(high);
+        assertEquals(all.getCount(), low.getCount());
+        assertEquals(all.getMeanNanos(), low.getMeanNanos(), 0.0001);
+        assertEquals(all.getMaxNanos(), low.getMaxNanos());
+        assertEquals(all.getP99Nanos(), low.getP99Nanos());
+    }
+
+    /**
+     * Tests the counters.
+     * Verifies that answers are counted per failure category and operation.
+     */
+    @Test
+    void testCounters() {
+        Metrics metrics = new Metrics();
+        Metrics.Recorder recorder = metrics.recorder();
+        recorder.success("2+3", 1_000);
+        recorder.success("  SQRT 4", 2_000);
+        recorder.success("cube 3", -1);
+        recorder.failure(new ExpressionException(ExpressionException.ErrorCode.MISMATCHED_PARENTHESES, 4, "Mismatched parentheses"));
+        recorder.failure(new ExpressionException(ExpressionException.ErrorCode.UNEXPECTED, 0, "Unexpected: x"));
+        recorder.failure(new ExpressionException(ExpressionException.ErrorCode.MALFORMED_NUMBER, 0, "Malformed number: 1.2.3"));
+        recorder.failure(new NegativeSquareRootException());
+        recorder.failure(new IllegalArgumentException("hypot needs 2 arguments"));
+        assertEquals(0, metrics.getAnswers());
+        assertEquals(0, metrics.getFailures());
+        recorder.flush();
+        assertEquals(8, metrics.getAnswers());
+        assertEquals(5, metrics.getFailures());
+        assertEquals(1L, metrics.getFailuresByCategory().get("mismatched parentheses"));
+        assertEquals(1L, metrics.getFailuresByCategory().get("number format"));
+        assertEquals(0L, metrics.getFailuresByCategory().get("no exact answer"));
+        assertEquals(1L, metrics.getFailuresByCategory().get("negative square root"));
+        assertEquals(1L, metrics.getFailuresByCategory().get("other"));
+        assertEquals(1, metrics.latency(Metrics.Operation.EXPRESSION).getCount());
+        assertEquals(1, metrics.latency(Metrics.Operation.SQRT).getCount());
+        assertEquals(0, metrics.latency(Metrics.Operation.CUBE).getCount());
+        String summary = metrics.summary();
+        assertTrue(summary.contains("answers: 8, failures: 5 (mismatched parentheses 1, unexpected 1, number format 1, negative square root 1, other 1)"), summary);
+        assertTrue(summary.contains("sqrt"), summary);
+    }
+
+    /**
+     * Tests finding the operation of a line.
+     * Verifies commands with any whitespace, calls anywhere in the line and names that only start like a function.
+     */
+    @Test
+    void testOperation() {
+        assertEquals(Metrics.Operation.SQRT, Metrics.Operation.of("sqrt 16"));
+        assertEquals(Metrics.Operation.SQRT, Metrics.Operation.of("  Sqrt\t16"));
+        assertEquals(Metrics.Operation.SQRT, Metrics.Operation.of("sqrt(16)"));
+        assertEquals(Metrics.Operation.CUBE, Metrics.Operation.of("2*cube(3)"));
+        assertEquals(Metrics.Operation.POW2, Metrics.Operation.of("1 + POW2 (2) + sqrt(4)"));
+        assertEquals(Metrics.Operation.EXPRESSION, Metrics.Operation.of("2 + 3"));
+        assertEquals(Metrics.Operation.EXPRESSION, Metrics.Operation.of("sqrtx + cube2"));
+        assertEquals(Metrics.Operation.EXPRESSION, Metrics.Operation.of("cubes"));
+    }
+
+    /**
+     * Tests sampling.
+     * Verifies that about one answer in the sample rate is timed.
+     */
+    @Test
+    void testSampling() {
+        Metrics.Recorder recorder = new Metrics().recorder();
+        int timed = 0;
+        for (int i = 0; i < 640_000; i++) {
+            if (recorder.sample()) timed++;
+        }
+        assertEquals(640_000 / Metrics.SAMPLE_RATE, timed, 1_000);
+    }
+
+    /**
+     * Tests the JMX registration.
+     * Verifies that the counters and histograms can be read through the platform MBean server.
+     */
+    @Test
+    void testMBeans() throws Exception {
+        Metrics metrics = new Metrics();
+        Metrics.Recorder recorder = metrics.recorder();
+        recorder.success("1+1", 5_000);
+        recorder.flush();
+        metrics.register();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName counters = new ObjectName("school.madcalc:type=Metrics");
+        ObjectName expression = new ObjectName("school.madcalc:type=Latency,name=expression");
+        try {
+            assertEquals(1L, server.getAttribute(counters, "Answers"));
+            assertEquals(5_000L, server.getAttribute(expression, "MaxNanos"));
+        } finally {
+            server.unregisterMBean(counters);
+            for (Metrics.Operation operation : Metrics.Operation.values()) {
+                server.unregisterMBean(new ObjectName("school.madcalc:type=Latency,name=" + operation.label()));
+            }
+        }
+    }
+}
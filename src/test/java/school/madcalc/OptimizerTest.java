@@ -0,0 +1,156 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for the tree simplification pass.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class OptimizerTest {
+    private static final String[] VARIABLES = {"x", "y"};
+
+    /**
+     * Tests constant folding.
+     * Verifies that constant-only expressions and constant prefixes become single constants.
+     */
+    @Test
+    void testConstantFolding() {
+        Node folded = optimize("3 + (9 + 1) * 2 - -4");
+        assertTrue(folded instanceof Node.Constant);
+        assertEquals(27.0, ((Node.Constant) folded).value, 0.0);
+        Node prefix = optimize("2 * 3 * x");
+        assertTrue(prefix instanceof Node.Chain);
+        assertEquals(2, ((Node.Chain) prefix).operands.length);
+        assertEquals(6.0, ((Node.Constant) ((Node.Chain) prefix).operands[0]).value, 0.0);
+        Node functions = optimize("pow2(3) + sqrt(16) * cube(2)");
+        assertEquals(41.0, ((Node.Constant) functions).value, 0.0);
+        assertTrue(optimize("sqrt(-4)") instanceof Node.SquareRoot);
+    }
+
+    /**
+     * Tests identity removal.
+     * Verifies that x*1, 1*x, x/1, x-0, --x and redundant parentheses disappear.
+     */
+    @Test
+    void testIdentities() {
+        for (String formula : new String[] {"x*1", "1*x", "x/1", "x-0", "--x", "((x))", "(x*1)/1-0", "----x"}) {
+            Node node = optimize(formula);
+            assertTrue(node instanceof Node.Variable, formula);
+        }
+        assertTrue(optimize("x+0") instanceof Node.Chain, "x+0 must stay because of negative zero");
+    }
+
+    /**
+     * Tests chain flattening.
+     * Verifies that a parenthesized leading chain is merged, but a trailing one is not.
+     */
+    @Test
+    void testFlattening() {
+        Node.Chain leading = (Node.Chain) optimize("((x + y) - x) + y");
+        assertEquals(4, leading.operands.length);
+        assertEquals("+-+", new String(leading.operators));
+        Node.Chain trailing = (Node.Chain) optimize("x - (y + x)");
+        assertEquals(2, trailing.operands.length);
+    }
+
+    /**
+     * Tests power detection.
+     * Verifies that x*x becomes a square and x*x*x a cube, also for larger operands.
+     */
+    @Test
+    void testPowers() {
+        assertTrue(optimize("x*x") instanceof Node.Square);
+        assertTrue(optimize("x*x*x") instanceof Node.Cube);
+        assertTrue(optimize("(x*x)*x") instanceof Node.Cube);
+        assertTrue(optimize("(x+y)*(x+y)") instanceof Node.Square);
+        Node.Chain rest = (Node.Chain) optimize("x*x*x*y");
+        assertTrue(rest.operands[0] instanceof Node.Cube);
+        assertTrue(optimize("y*x*x") instanceof Node.Chain);
+    }
+
+    /**
+     * Tests very deep nesting.
+     * Verifies that 100000 levels are simplified without overflowing the stack,
+     * that a deep run of additions is flattened into one chain and that deep equal operands are detected.
+     */
+    @Test
+    void testDeepNesting() {
+        int depth = 100_000;
+        Node.Chain flat = (Node.Chain) optimize("(".repeat(depth) + "x" + "+y)".repeat(depth));
+        assertEquals(depth + 1, flat.operands.length);
+        Node halving = optimize("(".repeat(depth) + "x" + "+1)*0.5".repeat(depth));
+        assertEquals(1.0, Node.evalPostfix(Node.postfix(halving), new double[] {0, 0}), 1e-9);
+        String roots = "sqrt(".repeat(depth) + "x" + ")".repeat(depth);
+        Node square = optimize("(" + roots + ")*(" + roots + ")");
+        assertTrue(square instanceof Node.Square);
+        assertEquals(1.0, Node.evalPostfix(Node.postfix(square), new double[] {1, 0}), 0.0);
+    }
+
+    /**
+     * Tests that optimization never changes a result.
+     * Verifies bit-identical results on thousands of random formulas and inputs,
+     * including negative zero, infinities and NaN, also when evaluated in postfix order.
+     */
+    @Test
+    void testResultsAreUnchanged() {
+        Random random = new Random(2024);
+        double[] special = {0.0, -0.0, 1.0, -1.0, 0.1, 3.0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN};
+        for (int f = 0; f < 2000; f++) {
+            String formula = randomFormula(random, 4);
+            Node plain = new Parser(formula, VARIABLES).parse();
+            Node optimized = Optimizer.optimize(plain);
+            for (double x : special) {
+                for (double y : special) {
+                    double[] vars = {x, y};
+                    assertEquals(Double.doubleToLongBits(plain.eval(vars)), Double.doubleToLongBits(optimized.eval(vars)),
+                            formula + " at x=" + x + ", y=" + y);
+                    assertEquals(Double.doubleToLongBits(plain.eval(vars)), Double.doubleToLongBits(Node.evalPostfix(Node.postfix(plain), vars)),
+                            formula + " in postfix order at x=" + x + ", y=" + y);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a random formula over x, y and a few interesting constants.
+     *
+     * @param random the random source
+     * @param depth the maximum nesting depth
+     * @return the formula text
+     */
+    private static String randomFormula(Random random, int depth) {
+        if (depth == 0 || random.nextInt(4) == 0) {
+            String[] atoms = {"x", "y", "0", "1", "2", "0.5", "-0", "-x"};
+            return atoms[random.nextInt(atoms.length)];
+        }
+        switch (random.nextInt(4)) {
+            case 0:
+                return "-" + randomFormula(random, depth - 1);
+            case 1:
+                return "(" + randomFormula(random, depth - 1) + ")";
+            default: {
+                StringBuilder sb = new StringBuilder(randomFormula(random, depth - 1));
+                int terms = 1 + random.nextInt(3);
+                for (int i = 0; i < terms; i++) {
+                    sb.append("+-*/".charAt(random.nextInt(4))).append(randomFormula(random, depth - 1));
+                }
+                return sb.toString();
+            }
+        }
+    }
+
+    /**
+     * Parses and optimizes a formula over x and y.
+     *
+     * @param formula the formula
+     * @return the optimized tree
+     */
+    private static Node optimize(String formula) {
+        return Optimizer.optimize(new Parser(formula, VARIABLES).parse());
+    }
+}
@@ -0,0 +1,42 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for command-line option parsing.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class OptionsTest {
+
+    /**
+     * Tests the cache options.
+     * Verifies that a policy is taken together with a cache size and refused without one.
+     */
+    @Test
+    void testCachePolicy() {
+        Options options = Options.parse(new String[] {"--cache", "100", "--cache-policy", "tinylfu"});
+        assertEquals(100, options.cacheSize);
+        assertEquals(ResultCache.Policy.TINY_LFU, options.cachePolicy);
+        assertEquals(ResultCache.Policy.LRU, Options.parse(new String[] {"--cache", "100"}).cachePolicy);
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> Options.parse(new String[] {"--cache-policy", "lru"}));
+        assertEquals("--cache-policy can only be used together with --cache", e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> Options.parse(new String[] {"--cache", "10", "--cache-policy", "fifo"}));
+    }
+
+    /**
+     * Tests options that only fit another one.
+     * Verifies that batch options without --batch and several modes at once are refused.
+     */
+    @Test
+    void testCombinations() {
+        assertThrows(IllegalArgumentException.class, () -> Options.parse(new String[] {"--out", "answers.txt"}));
+        assertThrows(IllegalArgumentException.class, () -> Options.parse(new String[] {"--threads", "4"}));
+        assertThrows(IllegalArgumentException.class, () -> Options.parse(new String[] {"--batch", "in.txt", "--serve", "8080"}));
+        assertEquals(4, Options.parse(new String[] {"--batch", "in.txt", "--threads", "4"}).threads);
+    }
+}
@@ -0,0 +1,153 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for the iterative expression parser.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class ParserTest {
+    private static final double[] NO_VALUES = new double[0];
+
+    /**
+     * Tests very deep parentheses.
+     * Verifies that 100000 nesting levels neither overflow the stack when
+     * evaluating nor when building a tree.
+     */
+    @Test
+    void testDeepNesting() {
+        int depth = 100_000;
+        String expression = "(".repeat(depth) + "1" + "+1)".repeat(depth);
+        assertEquals(depth + 1.0, new Parser(expression).evaluate(NO_VALUES), 0.0001);
+        assertTrue(new Parser("(".repeat(depth) + "7" + ")".repeat(depth)).parse() instanceof Node.Constant);
+    }
+
+    /**
+     * Tests long runs of unary signs.
+     * Verifies that only the parity of the minus signs matters and no nodes are stacked up.
+     */
+    @Test
+    void testSignRuns() {
+        assertEquals(5.0, new Parser("-".repeat(100_000) + "5").evaluate(NO_VALUES), 0.0001);
+        assertEquals(-5.0, new Parser("-".repeat(100_001) + "5").evaluate(NO_VALUES), 0.0001);
+        assertEquals(-5.0, new Parser("+-+".repeat(3) + "5").evaluate(NO_VALUES), 0.0001);
+        assertEquals(-3.0, new Parser("2 - -(-(-(-5)) - 0)").evaluate(NO_VALUES), 0.0001);
+        Node tree = new Parser("-(-(-(x)))", "x").parse();
+        assertTrue(tree instanceof Node.Negate);
+        assertTrue(((Node.Negate) tree).operand instanceof Node.Variable);
+    }
+
+    /**
+     * Tests the error messages.
+     * Verifies that they are the same as those of the recursive descent parser.
+     */
+    @Test
+    void testErrors() {
+        assertError("Mismatched parentheses", "(2+3");
+        assertError("Mismatched parentheses", "((2+3)");
+        assertError("Mismatched parentheses", "(2 3 x");
+        assertError("Unexpected: )", "2+3)");
+        assertError("Unexpected: )", "()");
+        assertError("Unexpected: *", "2+*3");
+        assertError("Unexpected: " + (char) -1, "2+");
+        assertError("Unexpected: " + (char) -1, "");
+        assertError("Unexpected: (", "(2)(3)");
+        assertError("Unexpected: y", "2*yes");
+        assertError("Unexpected: " + (char) -1, "(".repeat(50_000));
+        assertError("Wrong number of arguments for sqrt: expected 1", "sqrt(1, 2)");
+        assertError("Unexpected: 4", "2*sqrt 4");
+        assertError("Unexpected: )", "sqrt 4)");
+        assertError("Mismatched parentheses", "cube(2");
+    }
+
+    /**
+     * Tests the error codes and positions.
+     * Verifies that each error tells what is wrong and at which character, and carries no stack trace.
+     */
+    @Test
+    void testErrorPositions() {
+        assertErrorAt(ExpressionException.ErrorCode.MISMATCHED_PARENTHESES, 4, "(2+3");
+        assertErrorAt(ExpressionException.ErrorCode.MISMATCHED_PARENTHESES, 7, "(2 + 3 x");
+        assertErrorAt(ExpressionException.ErrorCode.UNEXPECTED, 3, "2+3)");
+        assertErrorAt(ExpressionException.ErrorCode.UNEXPECTED, 4, "2 + * 3");
+        assertErrorAt(ExpressionException.ErrorCode.UNEXPECTED, 4, "2 + ");
+        assertErrorAt(ExpressionException.ErrorCode.UNEXPECTED, 0, "");
+        assertErrorAt(ExpressionException.ErrorCode.UNEXPECTED, 2, "2*yes");
+        assertErrorAt(ExpressionException.ErrorCode.UNEXPECTED, 7, "2*sqrt 4");
+        assertErrorAt(ExpressionException.ErrorCode.WRONG_NUMBER_OF_ARGUMENTS, 6, "sqrt(1, 2)");
+        assertErrorAt(ExpressionException.ErrorCode.MALFORMED_NUMBER, 4, "1 + 1.2.3 * 4");
+        assertErrorAt(ExpressionException.ErrorCode.MALFORMED_NUMBER, 3, "2*(.)");
+        assertEquals(1e30, new Parser("1000000000000000000000000000000").parse().eval(new double[0]), 0.0);
+        FunctionRegistry functions = new FunctionRegistry().register("hypot", 2, args -> Math.hypot(args[0], args[1]));
+        ExpressionException tooFew = assertThrows(ExpressionException.class, () -> new Parser("1 + hypot(2 )").usingFunctions(functions).parse());
+        assertEquals(ExpressionException.ErrorCode.WRONG_NUMBER_OF_ARGUMENTS, tooFew.getCode());
+        assertEquals(12, tooFew.getPosition());
+        ExpressionException e = assertThrows(ExpressionException.class, () -> new Parser("(((").parse());
+        assertEquals(0, e.getStackTrace().length);
+    }
+
+    /**
+     * Tests that evaluating while parsing agrees with evaluating the tree.
+     * Verifies bit-identical results for random formulas with variables.
+     */
+    @Test
+    void testEvaluateMatchesTree() {
+        Random random = new Random(11);
+        String[] names = {"x", "y"};
+        for (int f = 0; f < 2000; f++) {
+            String formula = randomFormula(random, 5);
+            double[] values = {random.nextDouble() * 10 - 5, random.nextInt(3) - 1};
+            double expected = new Parser(formula, names).parse().eval(values);
+            double actual = new Parser(formula, names).evaluate(values);
+            assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(actual), formula);
+        }
+    }
+
+    /**
+     * Asserts that both parsing modes reject an expression with a message.
+     *
+     * @param message the expected message
+     * @param expression the expression
+     */
+    private static void assertErrorAt(ExpressionException.ErrorCode code, int position, String expression) {
+        ExpressionException e = assertThrows(ExpressionException.class, () -> new Parser(expression).evaluate(NO_VALUES));
+        assertEquals(code, e.getCode(), expression);
+        assertEquals(position, e.getPosition(), expression);
+        e = assertThrows(ExpressionException.class, () -> new Parser(expression).parse());
+        assertEquals(code, e.getCode(), expression);
+        assertEquals(position, e.getPosition(), expression);
+    }
+
+    private static void assertError(String message, String expression) {
+        assertEquals(message, assertThrows(RuntimeException.class, () -> new Parser(expression).evaluate(NO_VALUES)).getMessage());
+        assertEquals(message, assertThrows(RuntimeException.class, () -> new Parser(expression).parse()).getMessage());
+    }
+
+    /**
+     * Builds a random formula over x, y and small numbers.
+     *
+     * @param random the random source
+     * @param depth the maximum nesting depth
+     * @return the formula text
+     */
+    private static String randomFormula(Random random, int depth) {
+        if (depth == 0 || random.nextInt(3) == 0) {
+            String[] atoms = {"x", "y", "0", "1", "2.5", "7", "-x", "--y", "pow2(x)", "-cube(y - 1)", "sqrt(x*x)"};
+            return atoms[random.nextInt(atoms.length)];
+        }
+        StringBuilder sb = new StringBuilder();
+        if (random.nextBoolean()) sb.append('-');
+        sb.append('(').append(randomFormula(random, depth - 1));
+        int terms = random.nextInt(4);
+        for (int i = 0; i < terms; i++) {
+            sb.append("+-*/".charAt(random.nextInt(4))).append(randomFormula(random, depth - 1));
+        }
+        return sb.append(')').toString();
+    }
+}
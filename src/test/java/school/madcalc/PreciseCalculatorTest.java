@@ -0,0 +1,186 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for exact evaluation with the long, decimal and rational backends.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class PreciseCalculatorTest {
+    private static final PreciseCalculator LONG = new PreciseCalculator(PreciseCalculator.Backend.LONG, MathContext.DECIMAL128);
+    private static final PreciseCalculator DECIMAL = new PreciseCalculator(PreciseCalculator.Backend.DECIMAL, MathContext.DECIMAL128);
+    private static final PreciseCalculator RATIONAL = new PreciseCalculator(PreciseCalculator.Backend.RATIONAL, MathContext.DECIMAL128);
+
+    /**
+     * Tests decimal arithmetic.
+     * Verifies that decimal fractions add up exactly and answers are plain decimals.
+     */
+    @Test
+    void testDecimal() {
+        assertEquals("0.3", DECIMAL.calculate("0.1+0.2"));
+        assertEquals("1.1", DECIMAL.calculate("3.30 / 3"));
+        assertEquals("0.25", DECIMAL.calculate("1/4"));
+        assertEquals("100", DECIMAL.calculate("(2 + 8) * 10.0"));
+        assertEquals("0.3333333333333333333333333333333333", DECIMAL.calculate("1/3"));
+        assertEquals("-19.99", DECIMAL.calculate("-(9.99 + 10)"));
+    }
+
+    /**
+     * Tests large whole numbers.
+     * Verifies that overflowing the long fast path promotes instead of losing digits.
+     */
+    @Test
+    void testPromotionOnOverflow() {
+        assertEquals("18446744073709551614", DECIMAL.calculate("9223372036854775807 * 2"));
+        assertEquals("85070591730234615847396907784232501249", RATIONAL.calculate("9223372036854775807 * 9223372036854775807"));
+        assertEquals("9007199254740993", DECIMAL.calculate("9007199254740992 + 1"));
+    }
+
+    /**
+     * Tests the decimal context.
+     * Verifies that every literal and every operation is rounded to the configured digits, half-even.
+     */
+    @Test
+    void testDecimalContext() {
+        PreciseCalculator fiveDigits = new PreciseCalculator(PreciseCalculator.Backend.DECIMAL, new MathContext(5, RoundingMode.HALF_EVEN));
+        assertEquals("123460", fiveDigits.calculate("123455 + 0"));
+        assertEquals("0.33333", fiveDigits.calculate("1/3"));
+        assertEquals("12345", fiveDigits.calculate("12340 + 5"));
+        PreciseCalculator unlimited = new PreciseCalculator(PreciseCalculator.Backend.DECIMAL, MathContext.UNLIMITED);
+        assertEquals("0.125", unlimited.calculate("1/8"));
+        assertThrows(ArithmeticException.class, () -> unlimited.calculate("1/3"));
+        PreciseCalculator threeDigits = new PreciseCalculator(PreciseCalculator.Backend.DECIMAL, new MathContext(3, RoundingMode.HALF_EVEN));
+        String root = threeDigits.calculate("sqrt 15241383936");
+        assertEquals(0, new BigDecimal(root).compareTo(new BigDecimal("123000")), root);
+        assertEquals(root, threeDigits.calculate("sqrt(15241383936)"));
+        assertEquals("12", threeDigits.calculate("sqrt 144"));
+        assertEquals("12300", threeDigits.calculate("12345"));
+        assertEquals("12300", threeDigits.calculate("12345+0"));
+        assertEquals("-12300", threeDigits.calculate("-12345"));
+        assertEquals("1.24", threeDigits.calculate("1.235"));
+    }
+
+    /**
+     * Tests that the fast path and the big-number path agree.
+     * Verifies on random inputs that the answers equal BigDecimal arithmetic done directly.
+     */
+    @Test
+    void testFastPathMatchesBigDecimal() {
+        MathContext context = new MathContext(12, RoundingMode.HALF_EVEN);
+        PreciseCalculator calculator = new PreciseCalculator(PreciseCalculator.Backend.DECIMAL, context);
+        Random random = new Random(5);
+        String[] ops = {"+", "-", "*", "/"};
+        for (int i = 0; i < 5000; i++) {
+            BigDecimal a = BigDecimal.valueOf(random.nextInt(2_000_000) - 1_000_000, random.nextInt(4));
+            BigDecimal b = BigDecimal.valueOf(random.nextInt(2_000) + 1, random.nextInt(3));
+            BigDecimal c = BigDecimal.valueOf(random.nextInt(100_000), random.nextInt(6));
+            String op1 = ops[random.nextInt(4)], op2 = ops[random.nextInt(2) + 2];
+            BigDecimal product = apply(op2, b, c, context);
+            BigDecimal expected = op1.equals("+") || op1.equals("-") ? apply(op1, a, product, context) : apply(op2, apply(op1, a, b, context), c, context);
+            String formula = a.toPlainString() + op1 + b.toPlainString() + op2 + c.toPlainString();
+            if (c.signum() == 0 && op2.equals("/")) {
+                continue;
+            }
+            assertEquals(expected.stripTrailingZeros().toPlainString(), calculator.calculate(formula), formula);
+        }
+    }
+
+    /**
+     * Tests exact fractions.
+     * Verifies that fractions are reduced and printed as numerator/denominator.
+     */
+    @Test
+    void testRational() {
+        assertEquals("1/3", RATIONAL.calculate("1/3"));
+        assertEquals("1", RATIONAL.calculate("1/3 + 2/3"));
+        assertEquals("3/10", RATIONAL.calculate("0.1 + 0.2"));
+        assertEquals("-5/6", RATIONAL.calculate("-(1/2 + 1/3)"));
+        assertThrows(ArithmeticException.class, () -> RATIONAL.calculate("1/(3-3)"));
+    }
+
+    /**
+     * Tests whole-number arithmetic.
+     * Verifies exact results and that overflow and fractions are errors, not rounded.
+     */
+    @Test
+    void testLong() {
+        assertEquals("9223372036854775807", LONG.calculate("9223372036854775806 + 1"));
+        assertEquals("3", LONG.calculate("6 / 2"));
+        assertEquals("2", LONG.calculate("4.0 / 2"));
+        assertEquals("Integer overflow", assertThrows(ArithmeticException.class, () -> LONG.calculate("9223372036854775807 + 1")).getMessage());
+        assertEquals("Not an integer", assertThrows(ArithmeticException.class, () -> LONG.calculate("7 / 2")).getMessage());
+        assertEquals("Not an integer", assertThrows(ArithmeticException.class, () -> LONG.calculate("0.5 + 1")).getMessage());
+        assertEquals("Division by zero", assertThrows(ArithmeticException.class, () -> LONG.calculate("1 / 0")).getMessage());
+    }
+
+    /**
+     * Tests the special functions.
+     * Verifies precision-aware square root, power of two and cube in every backend.
+     */
+    @Test
+    void testSpecialFunctions() {
+        assertEquals("0.01", DECIMAL.calculate("pow2 0.1"));
+        assertEquals("0.001", DECIMAL.calculate("cube 0.1"));
+        assertEquals("-27", LONG.calculate("cube -3"));
+        assertEquals("1.414213562373095048801688724209698", DECIMAL.calculate("sqrt 2"));
+        assertEquals("12", LONG.calculate("sqrt 144"));
+        assertEquals("1/2", RATIONAL.calculate("sqrt 0.25"));
+        assertEquals("3/2", RATIONAL.calculate("sqrt 2.25"));
+        assertThrows(ArithmeticException.class, () -> LONG.calculate("sqrt 2"));
+        assertThrows(ArithmeticException.class, () -> RATIONAL.calculate("sqrt 2"));
+        assertThrows(IllegalArgumentException.class, () -> DECIMAL.calculate("sqrt -4"));
+        assertThrows(RuntimeException.class, () -> DECIMAL.calculate("pow2 abc"));
+        assertEquals("35", LONG.calculate("2*sqrt(16)+cube(3)"));
+        assertEquals("9/4", RATIONAL.calculate("pow2(sqrt(0.25) + 1)"));
+    }
+
+    /**
+     * Tests very deep nesting.
+     * Verifies that 100000 levels are evaluated without overflowing the stack,
+     * on the fast path and after promotion, by every backend.
+     */
+    @Test
+    void testDeepNesting() {
+        int depth = 100_000;
+        String sum = "(".repeat(depth) + "1" + "+1)".repeat(depth);
+        assertEquals("100001", LONG.calculate(sum));
+        assertEquals("100001", DECIMAL.calculate(sum));
+        assertEquals("100001", RATIONAL.calculate(sum));
+        String promoted = "(".repeat(depth) + "9223372036854775807" + "+1)".repeat(depth);
+        assertEquals("9223372036854875807", DECIMAL.calculate(promoted));
+        assertEquals("9223372036854875807", RATIONAL.calculate(promoted));
+        String roots = "sqrt(".repeat(depth) + "0.5 - 1/2 + 1" + ")".repeat(depth);
+        assertEquals("1", DECIMAL.calculate(roots));
+        assertEquals("1", RATIONAL.calculate(roots));
+    }
+
+    /**
+     * Tests the friendly messages.
+     * Verifies that a missing exact answer is explained and parse errors are unchanged.
+     */
+    @Test
+    void testErrorMessages() {
+        RuntimeException overflow = assertThrows(ArithmeticException.class, () -> LONG.calculate("9223372036854775807 * 2"));
+        assertEquals("Oops! I can't calculate that exactly: Integer overflow", MadCalc.errorMessage("9223372036854775807 * 2", overflow));
+        RuntimeException parse = assertThrows(RuntimeException.class, () -> DECIMAL.calculate("(1+2"));
+        assertTrue(MadCalc.errorMessage("(1+2", parse).contains("parentheses"));
+    }
+
+    private static BigDecimal apply(String op, BigDecimal a, BigDecimal b, MathContext context) {
+        switch (op) {
+            case "+": return a.add(b, context);
+            case "-": return a.subtract(b, context);
+            case "*": return a.multiply(b, context);
+            default: return a.divide(b, context);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for the answer cache.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class ResultCacheTest {
+
+    /**
+     * Tests that a repeated key is calculated only once.
+     * Verifies the hit and miss counters.
+     */
+    @Test
+    void testRepeatedKeyIsCached() {
+        ResultCache cache = new ResultCache(100, ResultCache.Policy.LRU);
+        AtomicInteger calculations = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(13.0, cache.get("3+(9+1)", () -> {
+                calculations.incrementAndGet();
+                return 13.0;
+            }), 0.0);
+        }
+        assertEquals(1, calculations.get());
+        assertEquals(4, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    /**
+     * Tests that failed calculations are not cached.
+     * Verifies that the exception reaches the caller every time.
+     */
+    @Test
+    void testFailuresAreNotCached() {
+        ResultCache cache = new ResultCache(100, ResultCache.Policy.LRU);
+        for (int i = 0; i < 2; i++) {
+            assertThrows(RuntimeException.class, () -> cache.get("(2+3", () -> {
+                throw new RuntimeException("Mismatched parentheses");
+            }));
+        }
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.misses());
+    }
+
+    /**
+     * Tests the size bound for both policies.
+     * Verifies that the cache never grows beyond its maximum size and counts evictions.
+     */
+    @Test
+    void testSizeIsBounded() {
+        for (ResultCache.Policy policy : ResultCache.Policy.values()) {
+            ResultCache cache = new ResultCache(32, policy);
+            for (int i = 0; i < 1000; i++) {
+                int n = i;
+                cache.get("key" + n, () -> n);
+            }
+            assertTrue(cache.size() <= 32, policy + " size " + cache.size());
+        }
+        ResultCache lru = new ResultCache(32, ResultCache.Policy.LRU);
+        for (int i = 0; i < 1000; i++) {
+            lru.get("key" + i, () -> 0);
+        }
+        assertEquals(1000 - lru.size(), lru.evictions());
+    }
+
+    /**
+     * Tests TinyLFU admission.
+     * Verifies that a popular key survives a scan of one-off keys better than with plain LRU.
+     */
+    @Test
+    void testTinyLfuKeepsPopularKeys() {
+        long lruMisses = popularMisses(ResultCache.Policy.LRU);
+        long tinyLfuMisses = popularMisses(ResultCache.Policy.TINY_LFU);
+        assertTrue(tinyLfuMisses < lruMisses, "TinyLFU " + tinyLfuMisses + " vs LRU " + lruMisses);
+        assertTrue(tinyLfuMisses <= 2, "TinyLFU missed the popular key " + tinyLfuMisses + " times");
+    }
+
+    /**
+     * Requests one popular key between a long scan of one-off keys.
+     *
+     * @param policy the eviction policy to use
+     * @return how often the popular key had to be calculated
+     */
+    private static long popularMisses(ResultCache.Policy policy) {
+        ResultCache cache = new ResultCache(16, policy);
+        AtomicInteger calculations = new AtomicInteger();
+        for (int i = 0; i < 10_000; i++) {
+            cache.get("once" + i, () -> 0);
+            if (i % 10 == 0) {
+                cache.get("popular", () -> calculations.incrementAndGet());
+            }
+        }
+        return calculations.get();
+    }
+
+    /**
+     * Tests key normalization.
+     * Verifies that whitespace variants share a key but invalid numbers do not.
+     */
+    @Test
+    void testNormalize() {
+        assertEquals("3+(9+1)", ResultCache.normalize(" 3 + (9 +\t1) "));
+        assertEquals(ResultCache.normalize("3+(9+1)"), ResultCache.normalize("3 + (9 + 1)"));
+        assertEquals("sqrt 16", ResultCache.normalize("  SQRT   16 "));
+        assertEquals("sqrt 16", ResultCache.normalize("sqrt 1 6"));
+        assertEquals("s qrt(16)", ResultCache.normalize("s qrt( 16 )"));
+        assertEquals("2*cube(3)", ResultCache.normalize("2 * CUBE (3)"));
+    }
+
+    /**
+     * Tests commands separated by other whitespace than a space.
+     * Verifies that a command and the unknown name made by dropping its whitespace never share an answer.
+     */
+    @Test
+    void testCommandWhitespaceKeepsTokensApart() {
+        assertEquals("sqrt 16", ResultCache.normalize("sqrt\t16"));
+        ResultCache cache = new ResultCache(100, ResultCache.Policy.LRU);
+        Evaluator evaluator = new Evaluator();
+        for (String[] pair : new String[][] {{"sqrt\t16", "sqrt16"}, {"cube\f2", "cube2"}, {"pow2\r\n3", "pow23"}}) {
+            String command = pair[0], name = pair[1];
+            assertEquals(evaluator.evaluate(command), cache.get(ResultCache.normalize(command), () -> evaluator.evaluate(command)), 0.0);
+            ExpressionException e = assertThrows(ExpressionException.class,
+                    () -> cache.get(ResultCache.normalize(name), () -> evaluator.evaluate(name)));
+            assertEquals(ExpressionException.ErrorCode.UNEXPECTED, e.getCode());
+        }
+    }
+
+    /**
+     * Tests whitespace inside a name.
+     * Verifies that a name split by whitespace still fails after the whole name was cached.
+     */
+    @Test
+    void testSplitNameIsNotCached() {
+        ResultCache cache = new ResultCache(100, ResultCache.Policy.LRU);
+        Evaluator evaluator = new Evaluator();
+        for (String line : new String[] {"sqrt(16)", "s qrt(16)", "cu\tbe(2)", "2 * po w2(3)"}) {
+            String whole = line.replaceAll("[ \t]", "");
+            assertEquals(evaluator.evaluate(whole), cache.get(ResultCache.normalize(whole), () -> evaluator.evaluate(whole)), 0.0);
+            if (!line.equals(whole)) {
+                ExpressionException e = assertThrows(ExpressionException.class,
+                        () -> cache.get(ResultCache.normalize(line), () -> evaluator.evaluate(line)));
+                assertEquals(ExpressionException.ErrorCode.UNEXPECTED, e.getCode());
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package school.madcalc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.math.MathContext;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for named formulas with incremental recalculation.
+ *
+ * @author Mad Calc Team
+ * @version 1.0
+ */
+class WorkbookTest {
+
+    /**
+     * Tests assignments and references.
+     * Verifies that formulas see the values of the cells they name, including special functions.
+     */
+    @Test
+    void testAssignments() {
+        Workbook workbook = new Workbook();
+        workbook.assign("a", "3 + (9+1)");
+        workbook.assign("b", "sqrt a + 3");
+        workbook.assign("c", "pow2 b - a");
+        assertEquals("13.0", workbook.answer("a"));
+        assertEquals("4.0", workbook.answer("b"));
+        assertEquals("81.0", workbook.answer("c"));
+        assertEquals("17.0", workbook.calculate("a + b"));
+    }
+
+    /**
+     * Tests incremental recalculation.
+     * Verifies that only cells downstream of a change are recalculated.
+     */
+    @Test
+    void testOnlyDownstreamIsRecalculated() {
+        Workbook workbook = new Workbook();
+        workbook.assign("x", "1");
+        workbook.assign("y", "100");
+        workbook.assign("a", "x * 2");
+        workbook.assign("b", "a + 1");
+        workbook.assign("c", "y + 1");
+        workbook.assign("d", "b + c");
+        assertEquals(3, workbook.assign("x", "5"));
+        assertEquals("11.0", workbook.answer("b"));
+        assertEquals("112.0", workbook.answer("d"));
+        assertEquals(2, workbook.assign("y", "0"));
+        assertEquals(0, workbook.assign("d", "b * c"));
+        assertEquals("11.0", workbook.answer("d"));
+    }
+
+    /**
+     * Tests that unchanged values stop the recalculation.
+     * Verifies that dependents of a cell whose value stayed the same are not recalculated.
+     */
+    @Test
+    void testUnchangedValueStopsPropagation() {
+        Workbook workbook = new Workbook();
+        workbook.assign("x", "3");
+        workbook.assign("sign", "x / x");
+        workbook.assign("z", "sign * 10");
+        assertEquals(1, workbook.assign("x", "4"));
+        assertEquals("10.0", workbook.answer("z"));
+    }
+
+    /**
+     * Tests a long chain of formulas.
+     * Verifies that ten thousand linked cells are updated without recursion, in order.
+     */
+    @Test
+    void testLongChain() {
+        Workbook workbook = new Workbook();
+        workbook.assign("c0", "1");
+        for (int i = 1; i < 10_000; i++) {
+            workbook.assign("c" + i, "c" + (i - 1) + " + 1");
+        }
+        assertEquals("10000.0", workbook.answer("c9999"));
+        assertEquals(9_999, workbook.assign("c0", "2"));
+        assertEquals("10001.0", workbook.answer("c9999"));
+    }
+
+    /**
+     * Tests a deeply nested formula.
+     * Verifies that 100000 levels of parentheses are simplified and calculated without recursion.
+     */
+    @Test
+    void testDeepNesting() {
+        int depth = 100_000;
+        Workbook workbook = new Workbook();
+        workbook.assign("a", "2");
+        workbook.assign("b", "(".repeat(depth) + "a" + "+1)".repeat(depth));
+        assertEquals("100002.0", workbook.answer("b"));
+        assertEquals("1.0", workbook.calculate("sqrt(".repeat(depth) + "a - 1" + ")".repeat(depth)));
+    }
+
+    /**
+     * Tests names that are used before they are defined.
+     * Verifies that a formula gets its value once the name is assigned.
+     */
+    @Test
+    void testForwardReference() {
+        Workbook workbook = new Workbook();
+        workbook.assign("total", "price * quantity");
+        assertEquals("Undefined variable: price", assertThrows(IllegalStateException.class, () -> workbook.answer("total")).getMessage());
+        workbook.assign("price", "2.5");
+        workbook.assign("quantity", "4");
+        assertEquals("10.0", workbook.answer("total"));
+    }
+
+    /**
+     * Tests circular references.
+     * Verifies that an assignment creating a cycle is rejected and changes nothing.
+     */
+    @Test
+    void testCircularReference() {
+        Workbook workbook = new Workbook();
+        workbook.assign("a", "1");
+        workbook.assign("b", "a + 1");
+        workbook.assign("c", "b + 1");
+        assertThrows(IllegalArgumentException.class, () -> workbook.assign("a", "c + 1"));
+        assertThrows(IllegalArgumentException.class, () -> workbook.assign("d", "d + 1"));
+        assertEquals("3.0", workbook.answer("c"));
+        assertEquals(2, workbook.assign("a", "10"));
+        assertEquals("12.0", workbook.answer("c"));
+    }
+
+    /**
+     * Tests errors inside formulas.
+     * Verifies that an error flows downstream and clears once its cause is fixed.
+     */
+    @Test
+    void testErrors() {
+        Workbook workbook = new Workbook();
+        workbook.assign("a", "-4");
+        workbook.assign("root", "sqrt a");
+        workbook.assign("twice", "root * 2");
+        assertThrows(IllegalArgumentException.class, () -> workbook.answer("twice"));
+        workbook.assign("a", "16");
+        assertEquals("8.0", workbook.answer("twice"));
+        assertThrows(RuntimeException.class, () -> workbook.assign("a", "(1"));
+        assertEquals("16.0", workbook.answer("a"));
+        assertThrows(IllegalArgumentException.class, () -> workbook.assign("sqrt", "1"));
+    }
+
+    /**
+     * Tests exact answers.
+     * Verifies that with a precise calculator cells hold exact answers and formulas are calculated from them.
+     */
+    @Test
+    void testExactAnswers() {
+        Workbook rational = new Workbook(new PreciseCalculator(PreciseCalculator.Backend.RATIONAL, MathContext.DECIMAL128));
+        rational.assign("third", "1/3");
+        rational.assign("one", "third * 3");
+        rational.assign("minus", "-third - third");
+        assertEquals("1/3", rational.answer("third"));
+        assertEquals("1", rational.answer("one"));
+        assertEquals("-2/3", rational.answer("minus"));
+        assertEquals("11/10", rational.calculate("one + 0.1"));
+        assertEquals(2, rational.assign("third", "2/3"));
+        assertEquals("2", rational.answer("one"));
+        assertEquals("-4/3", rational.answer("minus"));
+        Workbook decimal = new Workbook(new PreciseCalculator(PreciseCalculator.Backend.DECIMAL, MathContext.DECIMAL128));
+        decimal.assign("a", "0.1");
+        decimal.assign("b", "a + 0.2");
+        assertEquals("0.3", decimal.answer("b"));
+        assertEquals("0.04", decimal.calculate("pow2 b - a"));
+        Workbook whole = new Workbook(new PreciseCalculator(PreciseCalculator.Backend.LONG, MathContext.DECIMAL128));
+        whole.assign("a", "9223372036854775807");
+        whole.assign("b", "a + 1");
+        assertThrows(ArithmeticException.class, () -> whole.answer("b"));
+        whole.assign("a", "-7");
+        assertEquals("-6", whole.answer("b"));
+    }
+
+    /**
+     * Tests finding names in a line without parsing it.
+     * Verifies that function names in any letter case are not names of cells.
+     */
+    @Test
+    void testMentionsNames() {
+        assertTrue(Workbook.mentionsNames("a + 1"));
+        assertTrue(Workbook.mentionsNames("2*sqrt(total_2)"));
+        assertTrue(Workbook.mentionsNames("sqrtx"));
+        assertFalse(Workbook.mentionsNames("2*SQRT(16) + cube 3"));
+        assertFalse(Workbook.mentionsNames("pow2(1 + (2"));
+    }
+
+    /**
+     * Tests the interactive session responses.
+     * Verifies assignments, expressions using names and friendly messages.
+     */
+    @Test
+    void testRespond() {
+        Workbook workbook = new Workbook();
+        assertEquals("🎉 The answer is: 5.0", MadCalc.respond(workbook, "2+3"));
+        assertEquals("🎉 a = 13.0", MadCalc.respond(workbook, "a = 3 + (9+1)"));
+        assertEquals("🎉 b = 26.0", MadCalc.respond(workbook, "b = a * 2"));
+        assertEquals("🎉 a = 1.0 (1 dependent formula updated)", MadCalc.respond(workbook, "a = 1"));
+        assertEquals("🎉 The answer is: 3.0", MadCalc.respond(workbook, "a + b"));
+        assertEquals("🎉 The answer is: 4.0", MadCalc.respond(workbook, "pow2 2"));
+        assertTrue(MadCalc.respond(workbook, "c = z + 1").contains("z has no value yet"));
+        assertTrue(MadCalc.respond(workbook, "a = b").contains("depend on itself"));
+        assertTrue(MadCalc.respond(workbook, "a = (b").contains("parentheses"));
+        assertNull(Workbook.splitAssignment("2 = 3"));
+    }
+
+    /**
+     * Tests the session with --precision and --stats.
+     * Verifies that answers from the workbook are exact and counted like the other answers.
+     */
+    @Test
+    void testRespondWithOptions() {
+        MadCalc.configure(Options.parse(new String[] {"--precision", "rational", "--stats"}));
+        try {
+            Workbook workbook = new Workbook(new PreciseCalculator(PreciseCalculator.Backend.RATIONAL, MathContext.DECIMAL128));
+            assertEquals("🎉 The answer is: 1/3", MadCalc.respond(workbook, "1/3"));
+            assertEquals("🎉 a = 1/3", MadCalc.respond(workbook, "a = 1/3"));
+            assertEquals("🎉 The answer is: 1", MadCalc.respond(workbook, "a * 3"));
+            assertEquals("🎉 The answer is: 4", MadCalc.respond(workbook, "sqrt 16"));
+            assertTrue(MadCalc.respond(workbook, "b = sqrt(a - 1)").contains("square root"));
+            assertEquals(5, MadCalc.metrics().getAnswers());
+            assertEquals(1, MadCalc.metrics().getFailures());
+            assertEquals(1, MadCalc.metrics().getFailuresByCategory().get("negative square root"));
+        } finally {
+            MadCalc.configure(Options.parse(new String[0]));
+        }
+    }
+}